@@ -0,0 +1,348 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reusable per-search counts indexed by document id. Counts live in a dense array
+ * so adding a posting is a single array write, and the documents that were touched
+ * are remembered in order so clearing and collecting only visit those.
+ *
+ * Not thread-safe, {@link InvertedIndex} keeps one per thread. Searches with a lot of
+ * postings can split them across the fork-join pool with {@link #addAllParallel(List)},
+ * each part counted in its own accumulator and merged back in order.
+ */
+public class Accumulator {
+	/** Fewest postings a search needs before it is split across threads */
+	public static final int PARALLEL_THRESHOLD = 1 << 15;
+
+	/** Fewest postings given to each part of a split search */
+	private static final int MIN_PART = 1 << 13;
+
+	/**
+	 * Accumulators of merged parts, reused by later parts so a split search doesn't make
+	 * room for every document in every part. A part can't keep one per thread, the same
+	 * worker may count another part before this one is merged
+	 */
+	private static final ArrayBlockingQueue<Accumulator> spares = new ArrayBlockingQueue<>(Math.max(2, 2 * ForkJoinPool.getCommonPoolParallelism()));
+
+	/** Count of each document, 0 if untouched */
+	private int[] counts;
+
+	/** Score of each document, only used by searches that score as they go */
+	private double[] scores;
+
+	/** Touched documents in the order they were first added to */
+	private int[] touched;
+
+	/** Number of touched documents */
+	private int size;
+
+	/** Number of documents the last search made room for */
+	private int documents;
+
+	/**
+	 * Constructor for Accumulator
+	 */
+	public Accumulator() {
+		this.counts = new int[16];
+		this.scores = new double[16];
+		this.touched = new int[16];
+		this.size = 0;
+		this.documents = 0;
+	}
+
+	/**
+	 * Clears the previous search and makes room for every document
+	 *
+	 * @param documents the number of documents that could be added to
+	 */
+	public void reset(int documents) {
+		for (int i = 0; i < size; i++) {
+			counts[touched[i]] = 0;
+			scores[touched[i]] = 0;
+		}
+		size = 0;
+		this.documents = documents;
+		if (counts.length < documents) {
+			counts = new int[Math.max(documents, counts.length * 2)];
+			scores = new double[counts.length];
+		}
+	}
+
+	/**
+	 * Adds to a document's count
+	 *
+	 * @param document the document id
+	 * @param count the amount to add, must be positive
+	 */
+	public void add(int document, int count) {
+		if (counts[document] == 0) {
+			if (size == touched.length) {
+				touched = Arrays.copyOf(touched, size * 2);
+			}
+			touched[size++] = document;
+		}
+		counts[document] += count;
+	}
+
+	/**
+	 * Adds every posting of the list, going through them in location order so
+	 * documents are first touched in the same order the index map would give
+	 *
+	 * @param list the list to add
+	 */
+	public void addAll(PostingList list) {
+		addAll(list, 0, list.size());
+	}
+
+	/**
+	 * Adds part of the list, from from up to to in location order
+	 *
+	 * @param list the list to add
+	 * @param from the first posting in location order
+	 * @param to the posting to stop before
+	 */
+	public void addAll(PostingList list, int from, int to) {
+		Deadline deadline = Deadline.current();
+		for (int i = from; i < to; i++) {
+			if (deadline != null && i > from && (i - from) % Deadline.CHECK_EVERY == 0 && deadline.expired()) {
+				return;
+			}
+			int posting = list.byLocation(i);
+			add(list.document(posting), list.count(posting));
+		}
+	}
+
+	/**
+	 * Adds the counts of another accumulator, in the order it touched its documents
+	 *
+	 * @param other the accumulator to add
+	 */
+	public void addAll(Accumulator other) {
+		for (int i = 0; i < other.size; i++) {
+			int document = other.touched[i];
+			add(document, other.counts[document]);
+		}
+	}
+
+	/**
+	 * Adds counts kept from an earlier search, see {@link Refinements}
+	 *
+	 * @param documents the documents, in the order they were touched
+	 * @param counts the count of each document
+	 */
+	public void addAll(int[] documents, int[] counts) {
+		for (int i = 0; i < documents.length; i++) {
+			add(documents[i], counts[i]);
+		}
+	}
+
+	/**
+	 * Takes away every posting of a list that was added before. Documents whose count drops
+	 * to 0 stay touched until {@link #compact()}, so nothing can be added after this until then.
+	 * It never stops for a {@link Deadline}, counts left too high would be wrong, not just partial
+	 *
+	 * @param list the list to take away
+	 */
+	public void subtractAll(PostingList list) {
+		for (int i = 0; i < list.size(); i++) {
+			counts[list.document(i)] -= list.count(i);
+		}
+	}
+
+	/**
+	 * Forgets the touched documents whose count is 0, keeping the rest in order
+	 */
+	public void compact() {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (counts[touched[i]] != 0) {
+				touched[kept++] = touched[i];
+			}
+		}
+		size = kept;
+	}
+
+	/**
+	 * Adds every list like calling {@link #addAll(PostingList)} on each in order, but if there
+	 * are enough postings splits them into contiguous parts counted at the same time. Parts
+	 * are merged back in order, so the counts and the order documents were touched in come
+	 * out the same as adding them one at a time. Parts run under the caller's {@link Deadline}
+	 *
+	 * @param lists the lists to add
+	 * @return returns true if the lists were split, false if they were added on this thread
+	 */
+	public boolean addAllParallel(List<PostingList> lists) {
+		long total = 0;
+		for (PostingList list : lists) {
+			total += list.size();
+		}
+		int parts = (int) Math.min(ForkJoinPool.getCommonPoolParallelism(), total / MIN_PART);
+		if (total < PARALLEL_THRESHOLD || parts < 2) {
+			for (PostingList list : lists) {
+				addAll(list);
+			}
+			return false;
+		}
+
+		ArrayList<Part> tasks = new ArrayList<>(parts);
+		long each = (total + parts - 1) / parts;
+		Part part = new Part(documents);
+		for (PostingList list : lists) {
+			int from = 0;
+			while (from < list.size()) {
+				int to = (int) Math.min(list.size(), from + each - part.postings);
+				part.add(list, from, to);
+				from = to;
+				if (part.postings == each) {
+					tasks.add(part);
+					part = new Part(documents);
+				}
+			}
+		}
+		if (part.postings > 0) {
+			tasks.add(part);
+		}
+
+		ForkJoinTask.invokeAll(tasks);
+		for (Part task : tasks) {
+			addAll(task.accumulator);
+			spares.offer(task.accumulator);
+		}
+		return true;
+	}
+
+	/**
+	 * A contiguous run of postings counted in its own accumulator
+	 */
+	private static class Part extends RecursiveAction {
+		/** Generated serial version id */
+		private static final long serialVersionUID = 1L;
+
+		/** The lists the postings come from */
+		private final ArrayList<PostingList> lists;
+
+		/** First posting of each list, in location order */
+		private final ArrayList<Integer> froms;
+
+		/** Posting to stop before in each list */
+		private final ArrayList<Integer> tos;
+
+		/** Number of documents the accumulator needs room for */
+		private final int documents;
+
+		/** Number of postings in this part */
+		private long postings;
+
+		/** The counts of this part, taken from the spares when it runs */
+		private Accumulator accumulator;
+
+		/** The deadline of the search this part belongs to, null if there isn't one */
+		private final Deadline deadline;
+
+		/**
+		 * @param documents the number of documents the accumulator needs room for
+		 */
+		private Part(int documents) {
+			this.lists = new ArrayList<>();
+			this.froms = new ArrayList<>();
+			this.tos = new ArrayList<>();
+			this.documents = documents;
+			this.postings = 0;
+			this.deadline = Deadline.current();
+		}
+
+		/**
+		 * @param list the list
+		 * @param from the first posting in location order
+		 * @param to the posting to stop before
+		 */
+		private void add(PostingList list, int from, int to) {
+			lists.add(list);
+			froms.add(from);
+			tos.add(to);
+			postings += to - from;
+		}
+
+		@Override
+		protected void compute() {
+			accumulator = spares.poll();
+			if (accumulator == null) {
+				accumulator = new Accumulator();
+			}
+			accumulator.reset(documents);
+			Deadline.run(deadline, () -> {
+				for (int i = 0; i < lists.size(); i++) {
+					accumulator.addAll(lists.get(i), froms.get(i), tos.get(i));
+				}
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Adds every posting of the list with its BM25 score, in location order
+	 *
+	 * @param list the list to add
+	 * @param idf the weight of the list's word
+	 * @param norms the BM25 norm of each document by id
+	 * @see Bm25
+	 */
+	public void addAll(PostingList list, double idf, float[] norms) {
+		Deadline deadline = Deadline.current();
+		for (int i = 0; i < list.size(); i++) {
+			if (deadline != null && i > 0 && i % Deadline.CHECK_EVERY == 0 && deadline.expired()) {
+				return;
+			}
+			int posting = list.byLocation(i);
+			int document = list.document(posting);
+			int count = list.count(posting);
+			add(document, count);
+			scores[document] += Bm25.score(count, idf, norms[document]);
+		}
+	}
+
+	/**
+	 * @return returns the number of touched documents
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return returns a copy of the touched documents, in the order they were touched
+	 */
+	public int[] documents() {
+		return Arrays.copyOf(touched, size);
+	}
+
+	/**
+	 * @param i the touched index
+	 * @return returns the i-th touched document
+	 */
+	public int document(int i) {
+		return touched[i];
+	}
+
+	/**
+	 * @param document the document id
+	 * @return returns the document's count
+	 */
+	public int count(int document) {
+		return counts[document];
+	}
+
+	/**
+	 * @param document the document id
+	 * @return returns the document's score, if the search scored as it went
+	 */
+	public double score(int document) {
+		return scores[document];
+	}
+}
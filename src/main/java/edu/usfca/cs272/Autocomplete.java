@@ -0,0 +1,286 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Suggests completions of a prefix from the words of an index, the words in the most
+ * documents first, fast enough to run on every keystroke.
+ *
+ * The words are kept sorted, so the words starting with a prefix are one range found with
+ * a binary search. The best completions of every prefix matching more than a few words are
+ * worked out ahead of time, and ranges of only a few words are sorted when asked for, so no
+ * lookup looks at more than {@link #SCAN} words.
+ *
+ * The table is built from one version of the index. Once the index changes it is rebuilt in
+ * the background, at most once every {@link #REBUILD_MILLIS}, and lookups keep using the
+ * old table until the new one is ready.
+ */
+public class Autocomplete {
+	/** Ranges of at most this many words are sorted when asked for instead of kept */
+	public static final int SCAN = 64;
+
+	/** Default number of completions kept per prefix */
+	public static final int DEFAULT_MAX = 10;
+
+	/** Least time in milliseconds between rebuilds */
+	public static final long REBUILD_MILLIS = 1000;
+
+	/** The index the words come from */
+	private final InvertedIndex index;
+
+	/** Most completions kept per prefix */
+	private final int max;
+
+	/** The current table */
+	private volatile Table table;
+
+	/** True while a rebuild is running */
+	private final AtomicBoolean building;
+
+	/**
+	 * Constructor for Autocomplete, builds the first table right away
+	 *
+	 * @param index the index the words come from
+	 * @param max most completions kept per prefix
+	 */
+	public Autocomplete(InvertedIndex index, int max) {
+		this.index = index;
+		this.max = Math.max(1, max);
+		this.building = new AtomicBoolean(false);
+		this.table = build();
+	}
+
+	/**
+	 * @return returns a table of the current version of the index
+	 */
+	private Table build() {
+		long version = index.version();
+		return new Table(index.documentFrequencies(), max, version, System.nanoTime());
+	}
+
+	/**
+	 * Starts a rebuild in the background if the index changed and the table is old enough
+	 *
+	 * @param current the current table
+	 */
+	private void refresh(Table current) {
+		if (current.version == index.version()
+				|| System.nanoTime() - current.built < REBUILD_MILLIS * 1_000_000
+				|| !building.compareAndSet(false, true)) {
+			return;
+		}
+		ForkJoinPool.commonPool().execute(() -> {
+			try {
+				table = build();
+			}
+			finally {
+				building.set(false);
+			}
+		});
+	}
+
+	/**
+	 * Suggests completions of a prefix
+	 *
+	 * @param prefix the prefix, cleaned and stemmed like the words of the index
+	 * @param count the number of completions wanted, at most the number kept per prefix
+	 * @return returns the completions and the number of documents each is in, most first
+	 */
+	public Map<String, Integer> suggest(String prefix, int count) {
+		Table current = table;
+		refresh(current);
+		return current.suggest(prefix, count);
+	}
+
+	/**
+	 * @return returns the number of words that can be suggested
+	 */
+	public int size() {
+		return table.words.length;
+	}
+
+	/**
+	 * @return returns the most completions kept per prefix
+	 */
+	public int max() {
+		return max;
+	}
+
+	/**
+	 * The words of one version of the index and the best completions of their prefixes
+	 */
+	private static class Table {
+		/** Most completions kept per prefix */
+		private final int max;
+
+		/** Every word in sorted order */
+		private final String[] words;
+
+		/** The number of documents each word is in */
+		private final int[] frequencies;
+
+		/** The best completions of every prefix matching more than {@link #SCAN} words, as word numbers */
+		private final HashMap<String, int[]> top;
+
+		/** The version of the index the table was built from */
+		private final long version;
+
+		/** When the table was built, in nanoseconds */
+		private final long built;
+
+		/**
+		 * Builds the table
+		 *
+		 * @param frequencies the number of documents each word is in, sorted by word
+		 * @param max most completions kept per prefix
+		 * @param version the version of the index
+		 * @param built when the table was built
+		 */
+		private Table(SortedMap<String, Integer> frequencies, int max, long version, long built) {
+			this.max = max;
+			this.version = version;
+			this.built = built;
+			this.words = frequencies.keySet().toArray(new String[0]);
+			this.frequencies = new int[words.length];
+			int i = 0;
+			for (int frequency : frequencies.values()) {
+				this.frequencies[i++] = frequency;
+			}
+			this.top = new HashMap<>();
+			if (words.length > 0) {
+				build(0, words.length, 0);
+			}
+		}
+
+		/**
+		 * Works out the best completions of the prefix every word in the range shares, and of
+		 * every longer prefix, keeping the ones of ranges bigger than {@link #SCAN}
+		 *
+		 * @param from the first word of the range
+		 * @param to the end of the range
+		 * @param depth the length of the shared prefix
+		 * @return returns the best completions of the range
+		 */
+		private int[] build(int from, int to, int depth) {
+			if (to - from <= SCAN) {
+				return scan(from, to);
+			}
+
+			// words are sorted, so a word that is exactly the prefix comes first and the rest group by their next letter
+			ArrayList<int[]> parts = new ArrayList<>();
+			int start = from;
+			if (words[start].length() == depth) {
+				parts.add(new int[] { start });
+				start++;
+			}
+			while (start < to) {
+				char next = words[start].charAt(depth);
+				int end = start + 1;
+				while (end < to && words[end].charAt(depth) == next) {
+					end++;
+				}
+				parts.add(build(start, end, depth + 1));
+				start = end;
+			}
+
+			int[] best = best(parts);
+			top.put(words[from].substring(0, depth), best);
+			return best;
+		}
+
+		/**
+		 * @param from the first word of the range
+		 * @param to the end of the range
+		 * @return returns the best completions of the range, found by sorting it
+		 */
+		private int[] scan(int from, int to) {
+			Integer[] range = new Integer[to - from];
+			for (int i = from; i < to; i++) {
+				range[i - from] = i;
+			}
+			Arrays.sort(range, this::compare);
+			int[] best = new int[Math.min(max, range.length)];
+			for (int i = 0; i < best.length; i++) {
+				best[i] = range[i];
+			}
+			return best;
+		}
+
+		/**
+		 * Merges the best completions of the parts of a range
+		 *
+		 * @param parts the best completions of each part, each in order
+		 * @return returns the best completions of the whole range
+		 */
+		private int[] best(List<int[]> parts) {
+			int[] cursors = new int[parts.size()];
+			int size = 0;
+			for (int[] part : parts) {
+				size += part.length;
+			}
+			int[] best = new int[Math.min(max, size)];
+			for (int i = 0; i < best.length; i++) {
+				int pick = -1;
+				for (int j = 0; j < parts.size(); j++) {
+					if (cursors[j] < parts.get(j).length
+							&& (pick < 0 || compare(parts.get(j)[cursors[j]], parts.get(pick)[cursors[pick]]) < 0)) {
+						pick = j;
+					}
+				}
+				best[i] = parts.get(pick)[cursors[pick]++];
+			}
+			return best;
+		}
+
+		/**
+		 * Orders words by the documents they are in, most first, then alphabetically
+		 *
+		 * @param a a word number
+		 * @param b another word number
+		 * @return returns a negative number if a comes first
+		 */
+		private int compare(int a, int b) {
+			int compared = Integer.compare(frequencies[b], frequencies[a]);
+			return compared != 0 ? compared : Integer.compare(a, b);
+		}
+
+		/**
+		 * Suggests completions of a prefix
+		 *
+		 * @param prefix the prefix, cleaned like the words of the index
+		 * @param count the number of completions wanted, at most the number kept per prefix
+		 * @return returns the completions and the number of documents each is in, most first
+		 */
+		private Map<String, Integer> suggest(String prefix, int count) {
+			LinkedHashMap<String, Integer> suggestions = new LinkedHashMap<>();
+			int from = Arrays.binarySearch(words, prefix);
+			if (from < 0) {
+				from = -from - 1;
+			}
+			if (count <= 0 || from == words.length || !words[from].startsWith(prefix)) {
+				return suggestions;
+			}
+
+			int[] best = top.get(prefix);
+			if (best == null) {
+				int to = from + 1;
+				while (to < words.length && to - from <= SCAN && words[to].startsWith(prefix)) {
+					to++;
+				}
+				best = scan(from, to);
+			}
+			for (int i = 0; i < Math.min(count, best.length); i++) {
+				suggestions.put(words[best[i]], frequencies[best[i]]);
+			}
+			return suggestions;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package edu.usfca.cs272;
+
+/**
+ * Okapi BM25 scoring. A word's score in a document grows with how often it
+ * appears there, but levels off, and is weighted by how rare the word is across
+ * all documents. Long documents are held back compared to the average length.
+ *
+ * The length part only depends on the document, so it is worked out for every
+ * document at once into a norm table, leaving one array read per posting.
+ */
+public class Bm25 {
+	/** How quickly repeated words stop adding to the score */
+	public static final double K1 = 1.2;
+
+	/** How much document length is held against the score, 0 for none and 1 for fully */
+	public static final double B = 0.75;
+
+	/**
+	 * Builds the norm table, {@code K1 * (1 - B + B * length / average)} for each document
+	 *
+	 * @param lengths word count of each document by id
+	 * @param documents the number of documents
+	 * @param total the sum of every document's word count
+	 * @return returns the norm of each document by id
+	 */
+	public static float[] norms(int[] lengths, int documents, long total) {
+		float[] norms = new float[documents];
+		double average = documents == 0 ? 1 : total / (double) documents;
+		for (int i = 0; i < documents; i++) {
+			norms[i] = (float) (K1 * (1 - B + B * lengths[i] / average));
+		}
+		return norms;
+	}
+
+	/**
+	 * Inverse document frequency, never negative even for words in most documents
+	 *
+	 * @param frequency the number of documents the word is in
+	 * @param documents the number of documents
+	 * @return returns the word's weight
+	 */
+	public static double idf(int frequency, int documents) {
+		return Math.log(1 + (documents - frequency + 0.5) / (frequency + 0.5));
+	}
+
+	/**
+	 * Scores one word in one document
+	 *
+	 * @param count the number of times the word is in the document
+	 * @param idf the word's weight
+	 * @param norm the document's norm
+	 * @return returns the word's score in the document
+	 */
+	public static double score(int count, double idf, float norm) {
+		return idf * count * (K1 + 1) / (count + norm);
+	}
+
+	/** Prevent instantiating this class of static methods. */
+	private Bm25() {
+	}
+}
@@ -0,0 +1,542 @@
+package edu.usfca.cs272;
+
+import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Parses and evaluates boolean queries made of words, {@code AND}, {@code OR},
+ * {@code NOT} and parentheses. Operators must be upper case to count as operators,
+ * and a line is only a boolean query if one of them sits between two operands, so a
+ * line like {@code SHOUTING AND} is searched as plain words.
+ *
+ * NOT binds tightest, then AND, then OR. Words next to each other without an
+ * operator are OR'd like a normal query, except {@code a NOT b} which means
+ * {@code a AND NOT b}. NOT only removes documents from an AND, so a NOT with
+ * nothing to remove from matches nothing.
+ *
+ * A matching document's count is the sum of the counts of the words that matched
+ * it, the same as {@link InvertedIndex#exactSearch(java.util.Set)} for plain words.
+ * Like the words of a plain query, repeated operands of an AND or OR are only counted once.
+ *
+ * Given how many documents each word is in, the parts of an AND are evaluated from the
+ * one expected to match the fewest documents, and an AND with a part that can't match
+ * anything is skipped without looking up the rest.
+ */
+public class BooleanQuery {
+	/** Regular expression that matches a single token of a query line */
+	public static final Pattern TOKEN_REGEX = Pattern.compile("[()]|[^\\s()]+");
+
+	/** The root of the parsed query, null if nothing was left after stemming */
+	private final Node root;
+
+	/** The tokens being parsed, only used while parsing */
+	private final List<String> tokens;
+
+	/** The next token to parse, only used while parsing */
+	private int next;
+
+	/**
+	 * Parses a boolean query line
+	 *
+	 * @param line the query line
+	 * @param stemmer the stemmer to use on words
+	 */
+	public BooleanQuery(String line, Stemmer stemmer) {
+		this.tokens = new ArrayList<>();
+		Matcher matcher = TOKEN_REGEX.matcher(line);
+		while (matcher.find()) {
+			String token = matcher.group();
+			if (isOperator(token) || token.equals("(") || token.equals(")")) {
+				tokens.add(token);
+			} else {
+				// stem here so the parser only ever sees operators, parentheses, and stems
+				for (String stem : FileStemmer.listStems(token, stemmer)) {
+					tokens.add(stem);
+				}
+			}
+		}
+		this.next = 0;
+		this.root = parseOr(false);
+	}
+
+	/**
+	 * Parses a boolean query line using the default stemmer for English
+	 *
+	 * @param line the query line
+	 */
+	public BooleanQuery(String line) {
+		this(line, new SnowballStemmer(ENGLISH));
+	}
+
+	/**
+	 * Checks whether a query line uses any boolean operators, an operator only counts if
+	 * it comes after a word or group and before a word, group, or NOT
+	 *
+	 * @param line the query line
+	 * @return returns true if the line should be parsed as a boolean query
+	 */
+	public static boolean isBoolean(String line) {
+		List<String> tokens = TOKEN_REGEX.matcher(line).results().map(MatchResult::group).toList();
+		for (int i = 1; i + 1 < tokens.size(); i++) {
+			String before = tokens.get(i - 1);
+			String after = tokens.get(i + 1);
+			if (isOperator(tokens.get(i)) && !isOperator(before) && !before.equals("(")
+					&& !after.equals("AND") && !after.equals("OR") && !after.equals(")")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return returns true if there is nothing to search for
+	 */
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	/**
+	 * Evaluates the query
+	 *
+	 * @param postings looks up the posting list of a stem, returning null if there is none
+	 * @return returns the matching documents and their counts
+	 */
+	public PostingList evaluate(Function<String, PostingList> postings) {
+		return evaluate(postings, null);
+	}
+
+	/**
+	 * Evaluates the query, planning the order of every AND from estimates of how many
+	 * documents each word is in
+	 *
+	 * @param postings looks up the posting list of a stem, returning null if there is none
+	 * @param frequency estimates the number of documents a stem is in, null to keep the query's order
+	 * @return returns the matching documents and their counts
+	 */
+	public PostingList evaluate(Function<String, PostingList> postings, ToLongFunction<String> frequency) {
+		return root == null ? PostingList.empty() : root.evaluate(postings, frequency);
+	}
+
+	/**
+	 * Estimates the most documents the query can match
+	 *
+	 * @param frequency estimates the number of documents a stem is in
+	 * @return returns the estimate
+	 */
+	public long estimate(ToLongFunction<String> frequency) {
+		return root == null ? 0 : root.estimate(frequency);
+	}
+
+	/**
+	 * Describes how the query is evaluated, like {@link #toString()} but with the
+	 * estimated documents of every word and every AND in the order it is evaluated
+	 *
+	 * @param frequency estimates the number of documents a stem is in
+	 * @return returns the description
+	 */
+	public String explain(ToLongFunction<String> frequency) {
+		return root == null ? "" : root.explain(frequency);
+	}
+
+	/**
+	 * The query in a normal form, used as the key for its results
+	 */
+	@Override
+	public String toString() {
+		return root == null ? "" : root.toString();
+	}
+
+	/**
+	 * @param token the token to check
+	 * @return returns true if the token is AND, OR, or NOT
+	 */
+	private static boolean isOperator(String token) {
+		return token.equals("AND") || token.equals("OR") || token.equals("NOT");
+	}
+
+	/**
+	 * @return returns the next token without using it, or null at the end
+	 */
+	private String peek() {
+		return next < tokens.size() ? tokens.get(next) : null;
+	}
+
+	/**
+	 * Parses terms joined by OR, or by nothing at all
+	 *
+	 * @param nested true if inside parentheses, so a closing parenthesis ends the group
+	 * @return returns the parsed node, or null if there was nothing
+	 */
+	private Node parseOr(boolean nested) {
+		ArrayList<Node> children = new ArrayList<>();
+		String token;
+		while ((token = peek()) != null && !(nested && token.equals(")"))) {
+			if (token.equals("OR") || token.equals("AND") || token.equals(")")) {
+				// dangling operator or unmatched parenthesis
+				next++;
+				continue;
+			}
+			Node child = parseAnd();
+			if (child instanceof Or or) {
+				// a group of ORs inside an OR is the same as its parts
+				for (Node part : or.children) {
+					addOnce(part, children);
+				}
+			} else if (child != null) {
+				addOnce(child, children);
+			}
+		}
+		return children.isEmpty() ? null : children.size() == 1 ? children.get(0) : new Or(children);
+	}
+
+	/**
+	 * Parses terms joined by AND or NOT
+	 *
+	 * @return returns the parsed node, or null if there was nothing
+	 */
+	private Node parseAnd() {
+		ArrayList<Node> include = new ArrayList<>();
+		ArrayList<Node> exclude = new ArrayList<>();
+		add(parseUnary(), include, exclude);
+
+		String token;
+		while ((token = peek()) != null && (token.equals("AND") || token.equals("NOT"))) {
+			if (token.equals("AND")) {
+				next++;
+			}
+			add(parseUnary(), include, exclude);
+		}
+
+		if (include.isEmpty()) {
+			return exclude.isEmpty() ? null : new Not(exclude.size() == 1 ? exclude.get(0) : new Or(exclude));
+		}
+		return include.size() == 1 && exclude.isEmpty() ? include.get(0) : new And(include, exclude);
+	}
+
+	/**
+	 * Parses a single word, a NOT, or a group in parentheses
+	 *
+	 * @return returns the parsed node, or null if there was nothing
+	 */
+	private Node parseUnary() {
+		String token = peek();
+		if (token == null || token.equals(")") || token.equals("AND") || token.equals("OR")) {
+			return null;
+		}
+		next++;
+		if (token.equals("NOT")) {
+			Node child = parseUnary();
+			return child == null ? null : child instanceof Not not ? not.child : new Not(child);
+		}
+		if (token.equals("(")) {
+			Node group = parseOr(true);
+			if (")".equals(peek())) {
+				next++;
+			}
+			return group;
+		}
+		return new Term(token);
+	}
+
+	/**
+	 * Sorts a parsed node into the included or excluded side of an AND
+	 *
+	 * @param node the node, may be null
+	 * @param include the included nodes
+	 * @param exclude the excluded nodes
+	 */
+	private static void add(Node node, List<Node> include, List<Node> exclude) {
+		if (node instanceof Not not) {
+			addOnce(not.child, exclude);
+		} else if (node instanceof And and) {
+			// a group of ANDs inside an AND is the same as its parts
+			for (Node part : and.include) {
+				addOnce(part, include);
+			}
+			for (Node part : and.exclude) {
+				addOnce(part, exclude);
+			}
+		} else if (node != null) {
+			addOnce(node, include);
+		}
+	}
+
+	/**
+	 * Adds a node to the operands of an AND or OR unless the same operand is already
+	 * there, so {@code a OR a} doesn't count a twice
+	 *
+	 * @param node the node
+	 * @param operands the operands so far
+	 */
+	private static void addOnce(Node node, List<Node> operands) {
+		String normal = node.toString();
+		for (Node operand : operands) {
+			if (operand.toString().equals(normal)) {
+				return;
+			}
+		}
+		operands.add(node);
+	}
+
+	/**
+	 * A parsed piece of the query
+	 */
+	private static abstract class Node {
+		/**
+		 * @param postings looks up the posting list of a stem
+		 * @param frequency estimates the number of documents a stem is in, may be null
+		 * @return returns the matching documents and their counts
+		 */
+		public abstract PostingList evaluate(Function<String, PostingList> postings, ToLongFunction<String> frequency);
+
+		/**
+		 * @param frequency estimates the number of documents a stem is in
+		 * @return returns the most documents this part can match
+		 */
+		public abstract long estimate(ToLongFunction<String> frequency);
+
+		/**
+		 * @param frequency estimates the number of documents a stem is in
+		 * @return returns this part with its estimates, in the order it is evaluated
+		 */
+		public abstract String explain(ToLongFunction<String> frequency);
+	}
+
+	/**
+	 * A single stem
+	 */
+	private static class Term extends Node {
+		/** The stem */
+		private final String word;
+
+		/**
+		 * @param word the stem
+		 */
+		private Term(String word) {
+			this.word = word;
+		}
+
+		@Override
+		public PostingList evaluate(Function<String, PostingList> postings, ToLongFunction<String> frequency) {
+			PostingList list = postings.apply(word);
+			return list == null ? PostingList.empty() : list;
+		}
+
+		@Override
+		public long estimate(ToLongFunction<String> frequency) {
+			return frequency.applyAsLong(word);
+		}
+
+		@Override
+		public String explain(ToLongFunction<String> frequency) {
+			return word + "[" + estimate(frequency) + "]";
+		}
+
+		@Override
+		public String toString() {
+			return word;
+		}
+	}
+
+	/**
+	 * Documents matching any child
+	 */
+	private static class Or extends Node {
+		/** The children */
+		private final List<Node> children;
+
+		/**
+		 * @param children the children
+		 */
+		private Or(List<Node> children) {
+			this.children = children;
+		}
+
+		@Override
+		public PostingList evaluate(Function<String, PostingList> postings, ToLongFunction<String> frequency) {
+			ArrayList<PostingList> lists = new ArrayList<>();
+			for (Node child : children) {
+				lists.add(child.evaluate(postings, frequency));
+			}
+			return PostingList.union(lists);
+		}
+
+		@Override
+		public long estimate(ToLongFunction<String> frequency) {
+			long sum = 0;
+			for (Node child : children) {
+				sum += child.estimate(frequency);
+			}
+			return sum;
+		}
+
+		@Override
+		public String explain(ToLongFunction<String> frequency) {
+			ArrayList<String> parts = new ArrayList<>();
+			for (Node child : children) {
+				parts.add(child.explain(frequency));
+			}
+			String joined = String.join(" OR ", parts);
+			return children.size() > 1 ? "(" + joined + ")" : joined;
+		}
+
+		@Override
+		public String toString() {
+			return join(children, " OR ");
+		}
+	}
+
+	/**
+	 * Documents matching every included child and no excluded child
+	 */
+	private static class And extends Node {
+		/** The children documents must match */
+		private final List<Node> include;
+
+		/** The children documents must not match */
+		private final List<Node> exclude;
+
+		/**
+		 * @param include the children documents must match
+		 * @param exclude the children documents must not match
+		 */
+		private And(List<Node> include, List<Node> exclude) {
+			this.include = include;
+			this.exclude = exclude;
+		}
+
+		@Override
+		public PostingList evaluate(Function<String, PostingList> postings, ToLongFunction<String> frequency) {
+			List<Node> ordered = include;
+			if (frequency != null) {
+				ordered = planned(frequency);
+				if (ordered.get(0).estimate(frequency) == 0) {
+					// the rarest part matches nothing, so neither can the AND
+					return PostingList.empty();
+				}
+			}
+
+			ArrayList<PostingList> included = new ArrayList<>();
+			for (Node child : ordered) {
+				PostingList list = child.evaluate(postings, frequency);
+				if (list.size() == 0) {
+					// nothing can match, no need to look at the rest
+					return list;
+				}
+				included.add(list);
+			}
+			ArrayList<PostingList> excluded = new ArrayList<>();
+			for (Node child : exclude) {
+				excluded.add(child.evaluate(postings, frequency));
+			}
+			if (!excluded.isEmpty() && Deadline.expiredNow()) {
+				// an excluded list cut short would let through documents it should have taken out
+				return PostingList.empty();
+			}
+			return PostingList.intersect(included, excluded);
+		}
+
+		/**
+		 * @param frequency estimates the number of documents a stem is in
+		 * @return returns the included children, the one expected to match the fewest documents first
+		 */
+		private List<Node> planned(ToLongFunction<String> frequency) {
+			return include.stream().sorted(Comparator.comparingLong(child -> child.estimate(frequency))).toList();
+		}
+
+		@Override
+		public long estimate(ToLongFunction<String> frequency) {
+			long min = Long.MAX_VALUE;
+			for (Node child : include) {
+				min = Math.min(min, child.estimate(frequency));
+			}
+			return min;
+		}
+
+		@Override
+		public String explain(ToLongFunction<String> frequency) {
+			ArrayList<String> parts = new ArrayList<>();
+			for (Node child : planned(frequency)) {
+				parts.add(child.explain(frequency));
+			}
+			for (Node child : exclude) {
+				parts.add("NOT " + child.explain(frequency));
+			}
+			return "(" + String.join(" AND ", parts) + ")";
+		}
+
+		@Override
+		public String toString() {
+			ArrayList<String> parts = new ArrayList<>();
+			for (Node child : include) {
+				parts.add(child.toString());
+			}
+			for (Node child : exclude) {
+				parts.add("NOT " + child.toString());
+			}
+			return "(" + String.join(" AND ", parts) + ")";
+		}
+	}
+
+	/**
+	 * A NOT with nothing to remove from, matches nothing
+	 */
+	private static class Not extends Node {
+		/** The negated child */
+		private final Node child;
+
+		/**
+		 * @param child the negated child
+		 */
+		private Not(Node child) {
+			this.child = child;
+		}
+
+		@Override
+		public PostingList evaluate(Function<String, PostingList> postings, ToLongFunction<String> frequency) {
+			return PostingList.empty();
+		}
+
+		@Override
+		public long estimate(ToLongFunction<String> frequency) {
+			return 0;
+		}
+
+		@Override
+		public String explain(ToLongFunction<String> frequency) {
+			return "NOT " + child.explain(frequency);
+		}
+
+		@Override
+		public String toString() {
+			return "NOT " + child.toString();
+		}
+	}
+
+	/**
+	 * Joins the nodes, putting parentheses around the group if there is more than one
+	 *
+	 * @param nodes the nodes to join
+	 * @param operator the operator between them
+	 * @return returns the joined string
+	 */
+	private static String join(List<Node> nodes, String operator) {
+		ArrayList<String> parts = new ArrayList<>();
+		for (Node node : nodes) {
+			parts.add(node.toString());
+		}
+		String joined = String.join(operator, parts);
+		return nodes.size() > 1 ? "(" + joined + ")" : joined;
+	}
+}
@@ -0,0 +1,390 @@
+package edu.usfca.cs272;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counts how long threads wait for and hold a lock or monitor, so a slow crawl or build
+ * can be traced to the lock it is stuck on. Stats are shared by name, every
+ * {@link MultiReaderLock} of the index records into "index" for example, and can be read
+ * with {@link #get(String)}, {@link #all()} or {@link #report()}.
+ *
+ * Recording is off until {@link #enable()} is called. While it is off the only cost is
+ * reading one volatile flag, {@link #start()} returns 0 and everything given 0 returns
+ * right away.
+ *
+ * Usage around a monitor:
+ *
+ * <pre>
+ * long start = ContentionStats.start();
+ * synchronized (monitor) {
+ *   long acquired = stats.acquired(start);
+ *   try { ... } finally { stats.released(acquired); }
+ * }
+ * </pre>
+ */
+public class ContentionStats {
+	/** Waits on a monitor at least this long in nanoseconds are counted as contended */
+	private static final long CONTENDED = 10_000;
+
+	/** True while recording */
+	private static volatile boolean enabled = false;
+
+	/** Every stats object by name */
+	private static final ConcurrentHashMap<String, ContentionStats> registry = new ConcurrentHashMap<>();
+
+	/** Logger used for the periodic report. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** Runs the periodic report, null if not logging */
+	private static ScheduledExecutorService reporter = null;
+
+	/** The name shown in reports */
+	private final String name;
+
+	/** Number of times the lock was taken */
+	private final LongAdder acquisitions;
+
+	/** Number of times the lock was taken after waiting for it */
+	private final LongAdder contended;
+
+	/** Time spent waiting for the lock */
+	private final Histogram waits;
+
+	/** Time the lock was held */
+	private final Histogram holds;
+
+	/**
+	 * Constructor for ContentionStats, use {@link #get(String)} instead
+	 *
+	 * @param name the name shown in reports
+	 */
+	private ContentionStats(String name) {
+		this.name = name;
+		this.acquisitions = new LongAdder();
+		this.contended = new LongAdder();
+		this.waits = new Histogram();
+		this.holds = new Histogram();
+	}
+
+	/**
+	 * Returns the stats with a name, creating them if needed
+	 *
+	 * @param name the name
+	 * @return returns the shared stats for that name
+	 */
+	public static ContentionStats get(String name) {
+		return registry.computeIfAbsent(name, ContentionStats::new);
+	}
+
+	/**
+	 * @return returns every stats object by name, sorted
+	 */
+	public static Map<String, ContentionStats> all() {
+		return new TreeMap<>(registry);
+	}
+
+	/**
+	 * Starts recording
+	 */
+	public static void enable() {
+		enabled = true;
+	}
+
+	/**
+	 * Stops recording, the numbers so far are kept
+	 */
+	public static void disable() {
+		enabled = false;
+	}
+
+	/**
+	 * @return returns true while recording
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Marks the start of a wait, call before trying to take the lock
+	 *
+	 * @return returns the current time in nanoseconds, or 0 if not recording
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records that the lock was taken, counting it as contended if the wait was long
+	 * enough that the thread must have blocked
+	 *
+	 * @param start the time from {@link #start()}
+	 * @return returns the time the lock was taken, to pass to {@link #released(long)}, or 0
+	 *   if not recording
+	 */
+	public long acquired(long start) {
+		if (start == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		return record(start, now, now - start >= CONTENDED);
+	}
+
+	/**
+	 * Records that the lock was taken, for locks that know whether the thread had to wait
+	 *
+	 * @param start the time from {@link #start()}
+	 * @param waited true if the thread had to wait
+	 * @return returns the time the lock was taken, or 0 if not recording
+	 */
+	public long acquired(long start, boolean waited) {
+		if (start == 0) {
+			return 0;
+		}
+		return record(start, System.nanoTime(), waited);
+	}
+
+	/**
+	 * @param start when the wait started
+	 * @param now when the lock was taken
+	 * @param waited true if the thread had to wait
+	 * @return returns now
+	 */
+	private long record(long start, long now, boolean waited) {
+		acquisitions.increment();
+		if (waited) {
+			contended.increment();
+		}
+		waits.add(now - start);
+		return now;
+	}
+
+	/**
+	 * Records that the lock was released
+	 *
+	 * @param acquired the time from {@link #acquired(long)}
+	 */
+	public void released(long acquired) {
+		if (acquired != 0) {
+			holds.add(System.nanoTime() - acquired);
+		}
+	}
+
+	/**
+	 * @return returns the name shown in reports
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * @return returns the number of times the lock was taken while recording
+	 */
+	public long acquisitions() {
+		return acquisitions.sum();
+	}
+
+	/**
+	 * @return returns the number of times the lock was taken after a wait
+	 */
+	public long contended() {
+		return contended.sum();
+	}
+
+	/**
+	 * @return returns the wait times
+	 */
+	public Histogram waits() {
+		return waits;
+	}
+
+	/**
+	 * @return returns the hold times
+	 */
+	public Histogram holds() {
+		return holds;
+	}
+
+	/**
+	 * Clears the numbers recorded so far
+	 */
+	public void reset() {
+		acquisitions.reset();
+		contended.reset();
+		waits.reset();
+		holds.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %,d taken, %,d contended, wait %s, hold %s",
+				name, acquisitions(), contended(), waits, holds);
+	}
+
+	/**
+	 * Describes every stats object that recorded something, one per line
+	 *
+	 * @return returns the report
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder();
+		for (ContentionStats stats : all().values()) {
+			if (stats.acquisitions() > 0) {
+				report.append(stats).append(System.lineSeparator());
+			}
+		}
+		return report.toString().strip();
+	}
+
+	/**
+	 * Starts recording and logs the report every so often until {@link #stopLogging()}
+	 *
+	 * @param seconds the time between reports
+	 */
+	public static synchronized void startLogging(int seconds) {
+		enable();
+		if (reporter != null) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ContentionStats");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> {
+			String report = report();
+			if (!report.isEmpty()) {
+				log.info("Lock contention:{}{}", System.lineSeparator(), report);
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the periodic report, recording stays on
+	 */
+	public static synchronized void stopLogging() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+
+	/**
+	 * Histogram of durations in power of two nanosecond buckets, bucket i counts durations
+	 * from 2^(i-1) up to 2^i nanoseconds. Coarse, but adding is one atomic increment
+	 */
+	public static class Histogram {
+		/** Number of buckets, the last one holds everything over about 9 minutes */
+		private static final int BUCKETS = 40;
+
+		/** Count of each bucket */
+		private final AtomicLongArray buckets;
+
+		/** Sum of every duration */
+		private final LongAdder total;
+
+		/** Constructor for Histogram */
+		private Histogram() {
+			this.buckets = new AtomicLongArray(BUCKETS);
+			this.total = new LongAdder();
+		}
+
+		/**
+		 * @param nanos the duration
+		 */
+		private void add(long nanos) {
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+			buckets.incrementAndGet(bucket);
+			total.add(nanos);
+		}
+
+		/**
+		 * @param from the first bucket
+		 * @return returns the number of durations in that bucket or later
+		 */
+		private long above(int from) {
+			long sum = 0;
+			for (int i = from; i < BUCKETS; i++) {
+				sum += buckets.get(i);
+			}
+			return sum;
+		}
+
+		/** Clears the histogram */
+		private void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			total.reset();
+		}
+
+		/**
+		 * @return returns the number of durations
+		 */
+		public long count() {
+			return above(0);
+		}
+
+		/**
+		 * @return returns the mean duration in nanoseconds
+		 */
+		public double mean() {
+			long count = count();
+			return count == 0 ? 0 : total.sum() / (double) count;
+		}
+
+		/**
+		 * Estimates a percentile as the upper edge of the bucket it falls in
+		 *
+		 * @param percent the percentile, 0 to 100
+		 * @return returns the estimated duration in nanoseconds
+		 */
+		public long percentile(double percent) {
+			long count = count();
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(count * percent / 100.0);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return 1L << i;
+				}
+			}
+			return 1L << (BUCKETS - 1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("mean %s p50 %s p99 %s max %s", format(mean()),
+					format(percentile(50)), format(percentile(99)), format(percentile(100)));
+		}
+
+		/**
+		 * @param nanos a duration in nanoseconds
+		 * @return returns the duration in readable units
+		 */
+		private static String format(double nanos) {
+			if (nanos < 1_000) {
+				return String.format("%.0fns", nanos);
+			}
+			if (nanos < 1_000_000) {
+				return String.format("%.1fus", nanos / 1_000);
+			}
+			if (nanos < 1_000_000_000) {
+				return String.format("%.1fms", nanos / 1_000_000);
+			}
+			return String.format("%.2fs", nanos / 1_000_000_000);
+		}
+	}
+}
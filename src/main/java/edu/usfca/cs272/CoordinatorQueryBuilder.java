@@ -0,0 +1,327 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.InvertedIndex.Result;
+
+/**
+ * Answers queries by sending them to shard servers in other processes and merging
+ * what they send back. Each shard server holds part of the index and answers on its
+ * {@code /shard} path, see {@link ServerHandler}.
+ *
+ * Every shard is asked at once. A shard that hasn't answered by the deadline, or
+ * that fails, is left out, so a slow shard makes results incomplete instead of late.
+ * Searches run under a {@link Deadline} pass what is left of it on to the shards, and
+ * are marked partial if any shard was left out or ran out of time itself. Results missing
+ * any shard are never kept, so the same query asks every shard again next time.
+ *
+ * Searches from the server are kept in a bounded {@link ResultCache}. This process can't
+ * tell when a shard's index changes, so its results should expire after a while, see
+ * {@link #DEFAULT_TTL_MILLIS}. Only queries built from a query file are kept for output.
+ */
+public class CoordinatorQueryBuilder implements QueryBuilderInterface {
+
+	/** Logger to use for this class. */
+	public static final Logger log = LogManager.getLogger();
+
+	/** Default time in milliseconds cached results are kept, since shards change on their own */
+	public static final long DEFAULT_TTL_MILLIS = 60_000;
+
+	/** lock for this class. */
+	private final MultiReaderLock lock;
+
+	/** Total results and their keys (words), only queries that were built */
+	private final TreeMap<String, List<Result>> results;
+
+	/** Recent results of every query, including ones that were only searched */
+	private final ResultCache cache;
+
+	/** The shard search addresses, like {@code http://localhost:8081/shard} */
+	private final List<URI> shards;
+
+	/** The shared workQueue to use */
+	private final WorkQueue queue;
+
+	/** either partial or exact search, the shard servers must be started the same way */
+	private final boolean partial;
+
+	/** number of merged results to keep per query, all of them if 0 or less */
+	private final int limit;
+
+	/** whether the shard servers score with BM25 */
+	private final boolean bm25;
+
+	/** how long to wait for the shards on each query */
+	private final Duration deadline;
+
+	/** Client used for every shard request */
+	private final HttpClient client;
+
+	/** Empty index used to make results, since results belong to an index */
+	private final InvertedIndex factory;
+
+	/**
+	 * Constructor for CoordinatorQueryBuilder
+	 *
+	 * @param shards the shard search addresses
+	 * @param queue the queue to use from driver
+	 * @param partial the type of search the shard servers do
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether the shard servers score with BM25
+	 * @param deadline how long to wait for the shards on each query
+	 */
+	public CoordinatorQueryBuilder(List<URI> shards, WorkQueue queue, boolean partial, int limit, boolean bm25, Duration deadline) {
+		this(shards, queue, partial, limit, bm25, deadline, new ResultCache(() -> 0, ResultCache.DEFAULT_BYTES, true, DEFAULT_TTL_MILLIS));
+	}
+
+	/**
+	 * Constructor for CoordinatorQueryBuilder with the cache to keep recent results in
+	 *
+	 * @param shards the shard search addresses
+	 * @param queue the queue to use from driver
+	 * @param partial the type of search the shard servers do
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether the shard servers score with BM25
+	 * @param deadline how long to wait for the shards on each query
+	 * @param cache the cache for results, it should expire them since shards change on their own
+	 */
+	public CoordinatorQueryBuilder(List<URI> shards, WorkQueue queue, boolean partial, int limit, boolean bm25, Duration deadline, ResultCache cache) {
+		this.lock = new MultiReaderLock("coordinator");
+		this.results = new TreeMap<>();
+		this.cache = cache;
+		this.shards = List.copyOf(shards);
+		this.queue = queue;
+		this.partial = partial;
+		this.limit = limit;
+		this.bm25 = bm25;
+		this.deadline = deadline;
+		this.client = HttpClient.newBuilder().connectTimeout(deadline).build();
+		this.factory = new InvertedIndex();
+	}
+
+	@Override
+	public List<Result> get(String line) {
+		String joined = stemmedJoin(line);
+		lock.readLock().lock();
+		try {
+			var resultList = results.get(joined);
+			return resultList == null ? Collections.emptyList() : Collections.unmodifiableList(resultList);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public NavigableSet<String> get() {
+		lock.readLock().lock();
+		try {
+			return Collections.unmodifiableNavigableSet(results.navigableKeySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean getPartial() {
+		return this.partial;
+	}
+
+	@Override
+	public boolean getBm25() {
+		return this.bm25;
+	}
+
+	@Override
+	public boolean contains(String line) {
+		String joined = stemmedJoin(line);
+		lock.readLock().lock();
+		try {
+			return results.containsKey(joined);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringWriter writer = new StringWriter();
+		try {
+			lock.readLock().lock();
+			try {
+				JsonWriter.writeQueryArrays(results, writer, 0);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+		return writer.toString();
+	}
+
+	@Override
+	public void asJson(Path path) throws IOException {
+		lock.readLock().lock();
+		try {
+			JsonWriter.writeQueryArrays(results, path);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void build(Path path) throws IOException {
+		QueryBuilderInterface.super.build(path);
+		queue.finish();
+	}
+
+	/**
+	 * This method does not shutdown nor join (finish) the queue, it only executes tasks
+	 */
+	@Override
+	public void build(String line) {
+		queue.execute(() -> search(line, true));
+	}
+
+	/**
+	 * Searches the line without storing its results, answering from the cache if it can
+	 */
+	@Override
+	public List<Result> search(String line) {
+		return search(line, false);
+	}
+
+	/**
+	 * Searches a line on the shards unless its results are cached
+	 *
+	 * @param line the query line
+	 * @param store whether to store the results for output
+	 * @return returns query results
+	 */
+	private List<Result> search(String line, boolean store) {
+		String joined = stemmedJoin(line);
+		if (joined.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		if (store) {
+			lock.readLock().lock();
+			try {
+				var resultList = results.get(joined);
+				if(resultList != null) {
+					return resultList;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		AtomicBoolean incomplete = new AtomicBoolean(false);
+		List<Result> queryResults = cache.get(joined, () -> scatter(line, incomplete), () -> !incomplete.get());
+		Deadline budget = Deadline.current();
+		if (!store || incomplete.get() || (budget != null && budget.reached())) {
+			// don't keep results missing a shard or cut short by one request's budget
+			return queryResults;
+		}
+
+		lock.writeLock().lock();
+		try {
+			results.putIfAbsent(joined, queryResults);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return queryResults;
+	}
+
+	/**
+	 * Sends the query to every shard, waits up to the deadline, and merges whatever came back
+	 *
+	 * @param line the query line, shards parse it themselves
+	 * @param incomplete set if a shard was left out or only sent partial results
+	 * @return returns the merged results
+	 */
+	private ArrayList<Result> scatter(String line, AtomicBoolean incomplete) {
+		String query = "?q=" + URLEncoder.encode(line, UTF_8);
+		Duration wait = deadline;
+		Deadline budget = Deadline.current();
+		if (budget != null) {
+			if (budget.remaining().compareTo(wait) < 0) {
+				wait = budget.remaining();
+			}
+			query += "&budget=" + wait.toMillis();
+		}
+
+		ArrayList<CompletableFuture<List<Result>>> futures = new ArrayList<>();
+		for (URI shard : shards) {
+			HttpRequest request = HttpRequest.newBuilder(URI.create(shard + query)).timeout(deadline).GET().build();
+			futures.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString(UTF_8))
+					.thenApply(response -> parse(response, incomplete))
+					.completeOnTimeout(null, wait.toMillis(), TimeUnit.MILLISECONDS)
+					.exceptionally(e -> null));
+		}
+
+		ArrayList<Result> merged = new ArrayList<>();
+		for (int i = 0; i < futures.size(); i++) {
+			List<Result> part = futures.get(i).join();
+			if (part == null) {
+				log.warn("Shard {} did not answer \"{}\" in time, results are incomplete.", shards.get(i), line);
+				incomplete.set(true);
+			} else {
+				merged.addAll(part);
+			}
+		}
+		if (budget != null && incomplete.get()) {
+			budget.reach();
+		}
+		Collections.sort(merged);
+		if (limit > 0 && merged.size() > limit) {
+			return new ArrayList<>(merged.subList(0, limit));
+		}
+		return merged;
+	}
+
+	/**
+	 * Reads the results a shard sent back, see {@link ServerHandler#formatShard(List)}
+	 *
+	 * @param response the shard's response
+	 * @param incomplete set if the shard ran out of time and only sent partial results
+	 * @return returns the results, or null if the shard failed
+	 */
+	private List<Result> parse(HttpResponse<String> response, AtomicBoolean incomplete) {
+		if (response.statusCode() != 200) {
+			return null;
+		}
+		if (response.headers().firstValue(ServerHandler.PARTIAL_HEADER).isPresent()) {
+			incomplete.set(true);
+		}
+		ArrayList<Result> parsed = new ArrayList<>();
+		for (String row : response.body().split("\n")) {
+			String[] parts = row.split("\t", 3);
+			if (parts.length == 3) {
+				parsed.add(factory.result(parts[2], Integer.parseInt(parts[0]), Double.parseDouble(parts[1])));
+			}
+		}
+		return parsed;
+	}
+}
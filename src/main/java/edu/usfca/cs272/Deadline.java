@@ -0,0 +1,128 @@
+package edu.usfca.cs272;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * A time budget for one search. The search loops in {@link InvertedIndex},
+ * {@link Accumulator}, and {@link WandSearcher} check the deadline of the thread they
+ * run on every so often, and once it passes they stop and return the best results found
+ * so far. Afterwards {@link #reached()} tells the caller the results are partial.
+ *
+ * The deadline is given to a search with {@link #run(Supplier)}, so none of the search
+ * methods need another parameter. Work split onto other threads has to be run under
+ * the same deadline with {@link #run(Deadline, Supplier)}.
+ */
+public class Deadline {
+	/** How many postings or documents loops go through between checks */
+	public static final int CHECK_EVERY = 1024;
+
+	/** The deadline of the search running on each thread, null if there isn't one */
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+	/** When the budget runs out, in {@link System#nanoTime()} */
+	private final long end;
+
+	/** True once a search stopped early because of this deadline */
+	private volatile boolean reached;
+
+	/**
+	 * Constructor for Deadline, starting the budget now
+	 *
+	 * @param budget how long searches under this deadline may take
+	 */
+	public Deadline(Duration budget) {
+		this.end = System.nanoTime() + budget.toNanos();
+		this.reached = false;
+	}
+
+	/**
+	 * @return returns the deadline of the search running on this thread, or null if there isn't one
+	 */
+	public static Deadline current() {
+		return current.get();
+	}
+
+	/**
+	 * Checks if the search should stop, called from search loops while there is work left.
+	 * Once this returns true the results are marked partial
+	 *
+	 * @return returns true if the budget ran out
+	 */
+	public boolean expired() {
+		if (!reached && System.nanoTime() - end >= 0) {
+			reached = true;
+		}
+		return reached;
+	}
+
+	/**
+	 * Checks the deadline of the search running on this thread, if there is one
+	 *
+	 * @return returns true if there is a deadline and it ran out
+	 */
+	public static boolean expiredNow() {
+		Deadline deadline = current.get();
+		return deadline != null && deadline.expired();
+	}
+
+	/**
+	 * @return returns the time left, zero once it ran out
+	 */
+	public Duration remaining() {
+		return Duration.ofNanos(Math.max(0, end - System.nanoTime()));
+	}
+
+	/**
+	 * Marks the results partial without waiting for the time to run out, used when results
+	 * come from a search that was cut short somewhere else
+	 */
+	public void reach() {
+		reached = true;
+	}
+
+	/**
+	 * @return returns true if a search under this deadline stopped early and its results are partial
+	 */
+	public boolean reached() {
+		return reached;
+	}
+
+	/**
+	 * Runs a search under this deadline
+	 *
+	 * @param <T> the type returned by the search
+	 * @param search the search
+	 * @return returns what the search returned
+	 */
+	public <T> T run(Supplier<T> search) {
+		return run(this, search);
+	}
+
+	/**
+	 * Runs something under a deadline on this thread, putting back whatever deadline the
+	 * thread had before. Used to carry a search's deadline to work split onto other threads
+	 *
+	 * @param <T> the type returned
+	 * @param deadline the deadline, or null for none
+	 * @param search what to run
+	 * @return returns what was returned
+	 */
+	public static <T> T run(Deadline deadline, Supplier<T> search) {
+		Deadline previous = current.get();
+		if (previous == deadline) {
+			return search.get();
+		}
+		current.set(deadline);
+		try {
+			return search.get();
+		}
+		finally {
+			if (previous == null) {
+				current.remove();
+			} else {
+				current.set(previous);
+			}
+		}
+	}
+}
@@ -6,7 +6,10 @@ import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
 
 /**
  * Class responsible for running this project based on the provided command-line
@@ -31,38 +34,102 @@ public class Driver {
 		Instant start = Instant.now();
 		ArgumentParser parser = new ArgumentParser();
 		parser.parse(args);
-		boolean multiThread = parser.hasFlag("-threads") || parser.hasFlag("-html") || parser.hasFlag("-server");
+		boolean multiThread = parser.hasFlag("-threads") || parser.hasFlag("-html") || parser.hasFlag("-server") || parser.hasFlag("-shards")
+				|| parser.hasFlag("-coordinator") || parser.hasFlag("-wal") || parser.hasFlag("-spimi");
 		boolean partial = parser.hasFlag("-partial");
+		int limit = parser.getInteger("-limit", 0);
+		boolean bm25 = parser.hasFlag("-bm25");
+		// query words also match words within this many edits, so misspelled queries still find something
+		int fuzzy = parser.hasFlag("-fuzzy") ? Math.max(1, parser.getInteger("-fuzzy", 1)) : 0;
 
 		InvertedIndex index = null;
 		ThreadSafeInvertedIndex safe = null;
 		WorkQueue queue = null;
 		QueryBuilderInterface queries = null;
 		WebCrawler crawler = null;
+		WriteAheadLog wal = null;
+		ResultCache cache = null;
+		TermDictionary terms = null;
+
+		if(parser.hasFlag("-stats")) {
+			ContentionStats.startLogging(Math.max(1, parser.getInteger("-stats", 10)));
+		}
 
 		if(multiThread) {
 			int threads = multiThread ? Math.max(1, parser.getInteger("-threads", 5)) : 1;
-			safe = new ThreadSafeInvertedIndex();
+			int shards = parser.getInteger("-shards", 1);
+			boolean optimistic = parser.hasFlag("-optimistic");
+			safe = shards > 1 ? new ShardedInvertedIndex(shards, optimistic) : new ThreadSafeInvertedIndex(optimistic);
 			index = safe;
+			if(parser.hasFlag("-wal")) {
+				Path walPath = parser.getPath("-wal", Path.of("wal"));
+				try {
+					WriteAheadLog opened = new WriteAheadLog(walPath);
+					opened.recover(safe);
+					safe.setLog(opened);
+					wal = opened;
+				}
+				catch (IOException e) {
+					System.out.println("Unable to recover from the log at: " + walPath);
+				}
+			}
 			queue = new WorkQueue(threads);
-			queries = new MultiThreadedQueryBuilder(safe, queue, partial);
+			cache = cache(parser, safe);
+			queries = new MultiThreadedQueryBuilder(safe, queue, partial, limit, bm25, fuzzy, cache);
 			int total = parser.getInteger("-crawl", 1);
+			// local indexes of a build share one String per word, dropped once the build is done
+			terms = new TermDictionary();
 			crawler = new WebCrawler(queue, safe, total);
+			if(parser.hasFlag("-coordinator")) {
+				// the shard servers hold the index, this process only merges their results
+				List<URI> servers = new ArrayList<>();
+				for(String server : parser.getString("-coordinator", "").split(",")) {
+					if(!server.isBlank()) {
+						servers.add(URI.create("http://" + server.strip() + "/shard"));
+					}
+				}
+				Duration deadline = Duration.ofMillis(parser.getInteger("-deadline", 1000));
+				// the shards change without this process knowing, so cached results expire instead
+				cache = cache(parser, () -> 0, CoordinatorQueryBuilder.DEFAULT_TTL_MILLIS / 1000);
+				queries = new CoordinatorQueryBuilder(servers, queue, partial, limit, bm25, deadline, cache);
+			}
 		} else {
 			index = new InvertedIndex();
-			queries = new QueryBuilder(index, partial);
+			cache = cache(parser, index);
+			queries = new QueryBuilder(index, partial, limit, bm25, fuzzy, cache);
+		}
+		index.setPrefixCache(prefixCache(parser));
+		if(parser.hasFlag("-refine")) {
+			// searches that add or drop a few words from a recent one only count those words
+			index.setRefinements(new Refinements(Math.max(0, parser.getInteger("-refine", 8)) * 1024L * 1024L));
 		}
 
 		if(parser.hasFlag("-text")) {
 			Path textPath = parser.getPath("-text");
 			try {
-				if(safe != null) {
-					MultiThreadedTextFileIndexer.indexDirectory(textPath, safe, queue);
+				if(safe != null && parser.hasFlag("-partition")) {
+					// "i/n" keeps only the files that belong to part i of n, for running as one shard server
+					String[] partition = parser.getString("-partition", "0/1").split("/");
+					int part = Integer.parseInt(partition[0]);
+					int parts = Math.max(1, Integer.parseInt(partition[1]));
+					MultiThreadedTextFileIndexer.indexDirectory(textPath, safe, queue,
+							path -> Math.floorMod(path.toString().hashCode(), parts) == part, terms);
+				} else if(safe != null && parser.hasFlag("-spimi")) {
+					// builds through sorted runs on disk so only the budget in MB is held while indexing,
+					// merging into the index still holds all of it once built, -spimiout writes it to a file instead
+					long budget = Math.max(1, parser.getInteger("-spimi", 256)) * 1024L * 1024L;
+					if(parser.hasFlag("-spimiout")) {
+						SpimiIndexer.indexDirectory(textPath, parser.getPath("-spimiout", Path.of("index.bin")), queue, budget);
+					} else {
+						SpimiIndexer.indexDirectory(textPath, safe, queue, budget);
+					}
+				} else if(safe != null) {
+					MultiThreadedTextFileIndexer.indexDirectory(textPath, safe, queue, path -> true, terms);
 				} else {
 					TextFileIndexer.indexDirectory(textPath, index);
 				}
 			}
-			catch (IOException | NullPointerException e) {
+			catch (IOException | NullPointerException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
 				System.out.println("Unable to index the files at path: " + textPath);
 			}
 		}
@@ -84,7 +151,11 @@ public class Driver {
 		if(parser.hasFlag("-query")) {
 			Path path = parser.getPath("-query");
 			try {
-				queries.build(path);
+				if(parser.hasFlag("-batch")) {
+					queries.buildBatch(path);
+				} else {
+					queries.build(path);
+				}
 			}
 			catch (IOException | NullPointerException e) {
 				System.out.println("Unable to query items in this file: " + path);
@@ -93,7 +164,13 @@ public class Driver {
 
 		if(parser.hasFlag("-server")) {
 			int port = parser.getInteger("-server", 8080);
-			ServerHandler server = new ServerHandler(port, queries);
+			// a search that runs past its budget answers with the best results so far
+			Duration budget = parser.hasFlag("-budget") ? Duration.ofMillis(Math.max(1, parser.getInteger("-budget", 1000))) : null;
+			// completions for /suggest come from a table of the index's words built ahead of time,
+			// a coordinator's own index is empty so it leaves suggesting to the shard servers
+			Autocomplete autocomplete = parser.hasFlag("-coordinator") ? null
+					: new Autocomplete(index, Math.max(1, parser.getInteger("-suggest", Autocomplete.DEFAULT_MAX)));
+			ServerHandler server = new ServerHandler(port, queries, budget, autocomplete);
 			try {
 				server.run();
 			} catch(Exception e) {
@@ -105,6 +182,17 @@ public class Driver {
 			queue.shutdown();
 		}
 
+		if(wal != null) {
+			// everything is in the index now, start the next run from a snapshot instead of the log
+			try {
+				wal.checkpoint(safe);
+				wal.close();
+			}
+			catch (IOException e) {
+				System.out.println("Unable to write a snapshot of the index, the log was kept");
+			}
+		}
+
 		if(parser.hasFlag("-counts")) {
 			Path path = parser.getPath("-counts", Path.of("counts.json"));
 			try {
@@ -139,10 +227,67 @@ public class Driver {
 			queue.join();
 		}
 
+		if(parser.hasFlag("-stats")) {
+			ContentionStats.stopLogging();
+			System.out.println(ContentionStats.report());
+			System.out.println(cache);
+			System.out.println(index.prefixCache());
+			if(index.refinements() != null) {
+				System.out.println(index.refinements());
+			}
+		}
+
+		if(parser.hasFlag("-memory")) {
+			Runtime runtime = Runtime.getRuntime();
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			if(terms != null) {
+				System.out.println(terms);
+			}
+			System.out.printf("Heap used: %.1f MB%n", used / (1024.0 * 1024.0));
+		}
+
 		System.out.println("Working Directory: " + Path.of(".").toAbsolutePath().normalize());
 		System.out.println("Arguments: " + Arrays.toString(args));
 		long elapsed = Duration.between(start, Instant.now()).toMillis();
 		double seconds = (double) elapsed / Duration.ofSeconds(1).toMillis();
 		System.out.printf("Elapsed: %f seconds%n", seconds);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Makes the result cache from the flags: -cache sets its size in MB, 0 to turn it off,
+	 * -lru turns off TinyLFU admission, and -ttl sets how many seconds results are kept
+	 *
+	 * @param parser the parsed flags
+	 * @param index the index the results come from
+	 * @return returns the cache
+	 */
+	private static ResultCache cache(ArgumentParser parser, InvertedIndex index) {
+		return cache(parser, index::version, 0);
+	}
+
+	/**
+	 * Makes the result cache from the flags, see {@link #cache(ArgumentParser, InvertedIndex)}
+	 *
+	 * @param parser the parsed flags
+	 * @param version returns the version of whatever the results come from
+	 * @param ttl seconds results are kept without -ttl, 0 to keep them until evicted
+	 * @return returns the cache
+	 */
+	private static ResultCache cache(ArgumentParser parser, LongSupplier version, long ttl) {
+		long bytes = parser.hasFlag("-cache") ? Math.max(0, parser.getInteger("-cache", 32)) * 1024L * 1024L : ResultCache.DEFAULT_BYTES;
+		long seconds = Math.max(0, parser.getInteger("-ttl", (int) ttl));
+		return new ResultCache(version, bytes, !parser.hasFlag("-lru"), seconds * 1000L);
+	}
+
+	/**
+	 * Makes the prefix cache from the flags: -prefixcache sets its size in MB, 0 to turn it
+	 * off, and -expansions sets the most words a partial search prefix expands into
+	 *
+	 * @param parser the parsed flags
+	 * @return returns the cache
+	 */
+	private static PrefixCache prefixCache(ArgumentParser parser) {
+		long bytes = parser.hasFlag("-prefixcache") ? Math.max(0, parser.getInteger("-prefixcache", 16)) * 1024L * 1024L : PrefixCache.DEFAULT_BYTES;
+		return new PrefixCache(bytes, parser.getInteger("-expansions", 0));
+	}
+}
@@ -1,17 +1,27 @@
 package edu.usfca.cs272;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 /**
  * InvertedIndex Class
@@ -20,22 +30,169 @@ import java.util.TreeSet;
 public class InvertedIndex {
 
 	/**
-	 * CountMap, holds file names and their size in words as an Integer
+	 * CountMap, holds file names and their size in words as an Integer.
+	 * A TreeMap, or a {@link PersistentTreeMap} in a snapshot
 	 */
-	private final TreeMap<String, Integer> counts;
+	private final NavigableMap<String, Integer> counts;
 
 	/**
 	 * index, keys are words in each file, value is a map, where the keys are the file paths as
-	 * strings and value is an TreeSet of Integers of each location the word appears in the file
+	 * strings and value is an TreeSet of Integers of each location the word appears in the file.
+	 * TreeMaps and TreeSets, or {@link PersistentTreeMap}s and unmodifiable sets in a snapshot
 	 */
-	private final TreeMap<String, TreeMap<String, TreeSet<Integer>>> index;
+	private final NavigableMap<String, NavigableMap<String, NavigableSet<Integer>>> index;
+
+	/**
+	 * Sum of every location's word count, for the average length used by BM25
+	 */
+	private long totalLength;
+
+	/**
+	 * BM25 norm of each location by document id, built when first needed and
+	 * thrown away when the index changes. Volatile since searches under a read lock may build it
+	 */
+	private volatile float[] norms;
+
+	/**
+	 * Every location in the order it was first added, the position in this array is the location's document id.
+	 * Only the first documents are used, snapshots share the array since only later slots are ever written
+	 */
+	private String[] locations;
+
+	/**
+	 * Number of locations, the rest of the locations array is free
+	 */
+	private int documents;
+
+	/**
+	 * Document id of each location, the reverse of locations. Shared with snapshots,
+	 * which ignore ids of documents added after them
+	 */
+	private final ConcurrentHashMap<String, Integer> ids;
+
+	/**
+	 * Word count of each location by document id, the same numbers as counts but with no
+	 * lookups needed so searches can score without going through counts
+	 */
+	private int[] lengths;
+
+	/**
+	 * Number of lengths the latest snapshot shares, changing one of them copies the array first
+	 */
+	private int shared;
+
+	/**
+	 * Posting lists built for top-k searches, filled in as words are searched and cleared whenever the index changes.
+	 * Concurrent since searches under a read lock may fill it at the same time
+	 */
+	private final ConcurrentHashMap<String, PostingList> postings;
+
+	/**
+	 * Posting lists of the previous snapshot, taken over by this one the first time their word
+	 * is searched. Null if there is no previous snapshot or a location it had changed since
+	 */
+	private final Map<String, PostingList> carried;
+
+	/**
+	 * Words added to since the previous snapshot, their carried posting lists are out of date
+	 */
+	private final Set<String> stale;
+
+	/**
+	 * Reusable search counts, one per searching thread, shared by every snapshot of the index
+	 */
+	private final ThreadLocal<Accumulator> accumulators;
+
+	/**
+	 * Merged postings of recently searched prefixes, cleared when the index changes
+	 */
+	private volatile PrefixCache prefixes;
+
+	/**
+	 * Counts of recent searches that refined searches start from, null to count every search in full
+	 */
+	private volatile Refinements refinements;
+
+	/**
+	 * Number of changes made to the index, so anything built from it can tell it is out of date
+	 */
+	private volatile long version;
+
+	/**
+	 * Set once a newer copy replaces this one, see {@link #snapshot(InvertedIndex, SortedMap)}
+	 */
+	private volatile boolean replaced;
+
+	/**
+	 * Shared instances of words for the local indexes of one build, null to keep words as given
+	 */
+	private final TermDictionary terms;
 
 	/**
 	 * Constructor for InvertedIndex Class
 	 */
 	public InvertedIndex() {
+		this(null);
+	}
+
+	/**
+	 * Constructor for a local index of a build, the first instance of every word it keeps
+	 * is swapped for the dictionary's so all local indexes share one String per word.
+	 * Words it already has aren't looked up, the index wouldn't keep that copy anyway
+	 *
+	 * @param terms the dictionary of the build, or null to keep words as given
+	 */
+	public InvertedIndex(TermDictionary terms) {
 		this.counts = new TreeMap<>();
 		this.index = new TreeMap<>();
+		this.locations = new String[16];
+		this.documents = 0;
+		this.ids = new ConcurrentHashMap<>();
+		this.lengths = new int[16];
+		this.shared = 0;
+		this.totalLength = 0;
+		this.norms = null;
+		this.postings = new ConcurrentHashMap<>();
+		this.carried = null;
+		this.stale = Set.of();
+		this.accumulators = ThreadLocal.withInitial(Accumulator::new);
+		this.prefixes = new PrefixCache(PrefixCache.DEFAULT_BYTES, 0);
+		this.refinements = null;
+		this.version = 0;
+		this.replaced = false;
+		this.terms = terms;
+	}
+
+	/**
+	 * Constructor for a snapshot, it shares the locations, ids, lengths, and accumulators of the index it is of
+	 *
+	 * @param owner the index the snapshot is of
+	 * @param counts the counts of the snapshot
+	 * @param index the words of the snapshot
+	 * @param carried the posting lists of the previous snapshot, or null to build every list again
+	 * @param stale the words whose carried posting lists are out of date
+	 * @see #snapshot(InvertedIndex, SortedMap)
+	 */
+	private InvertedIndex(InvertedIndex owner, NavigableMap<String, Integer> counts, NavigableMap<String, NavigableMap<String, NavigableSet<Integer>>> index,
+			Map<String, PostingList> carried, Set<String> stale) {
+		this.counts = counts;
+		this.index = index;
+		this.locations = owner.locations;
+		this.documents = owner.documents;
+		this.ids = owner.ids;
+		this.lengths = owner.lengths;
+		this.shared = owner.documents;
+		this.totalLength = owner.totalLength;
+		this.norms = null;
+		this.postings = new ConcurrentHashMap<>();
+		this.carried = carried;
+		this.stale = stale;
+		this.accumulators = owner.accumulators;
+		this.prefixes = owner.prefixes.fresh();
+		this.refinements = owner.refinements;
+		this.version = owner.version;
+		this.replaced = false;
+		this.terms = null;
 	}
 
 	/**
@@ -144,6 +301,20 @@ public class InvertedIndex {
 		return Collections.unmodifiableNavigableSet(index.navigableKeySet());
 	}
 
+	/**
+	 * Gets every word with the number of documents it is in, used to suggest completions
+	 *
+	 * @return returns the document frequency of every word, sorted by word
+	 * @see Autocomplete
+	 */
+	public NavigableMap<String, Integer> documentFrequencies() {
+		TreeMap<String, Integer> frequencies = new TreeMap<>();
+		for (var entry : index.entrySet()) {
+			frequencies.put(entry.getKey(), entry.getValue().size());
+		}
+		return frequencies;
+	}
+
 	/**
 	 * Add function to add a single word to the index
 	 *
@@ -156,10 +327,27 @@ public class InvertedIndex {
 	 * @param wordNumber the number of word we are currently at
 	 */
 	public void add(String word, String location, int wordNumber) {
-		index.computeIfAbsent(word, i -> new TreeMap<>())
-		.computeIfAbsent(location, i -> new TreeSet<>())
-		.add(wordNumber);
-		counts.merge(location, wordNumber, Math::max);
+		addWord(word, location, wordNumber);
+	}
+
+	/**
+	 * Adds a single word, {@link #addAll(List, String)} uses this instead of
+	 * {@link #add(String, String, int)} so a subclass locking or publishing each add
+	 * only does it once for the whole location
+	 *
+	 * @param word the word itself
+	 * @param location the location to the file
+	 * @param wordNumber the number of word we are currently at
+	 */
+	private void addWord(String word, String location, int wordNumber) {
+		NavigableMap<String, NavigableSet<Integer>> inner = index.get(word);
+		if (inner == null) {
+			// only the first instance of a word is kept, later ones are thrown away with their line
+			inner = new TreeMap<>();
+			index.put(terms == null ? word : terms.intern(word), inner);
+		}
+		inner.computeIfAbsent(location, i -> new TreeSet<>()).add(wordNumber);
+		changed(location, counts.merge(location, wordNumber, Math::max));
 	}
 
 	/**
@@ -171,7 +359,7 @@ public class InvertedIndex {
 	public void addAll(List<String> words, String location) {
 		int position = 1;
 		for(String word : words) {
-			add(word, location, position++);
+			addWord(word, location, position++);
 		}
 	}
 
@@ -188,7 +376,7 @@ public class InvertedIndex {
 			var otherValue = otherEntry.getValue();
 
 			if (thisEntry == null) {
-				this.index.put(word, otherValue);
+				this.index.put(terms == null ? word : terms.intern(word), otherValue);
 			}	else {
 				for (var otherInnerEntry : otherValue.entrySet()) {
 					String location = otherInnerEntry.getKey();
@@ -207,10 +395,275 @@ public class InvertedIndex {
 		for (var otherEntry : bufferIndex.counts.entrySet()) {
 			String location = otherEntry.getKey();
 			var otherValue = otherEntry.getValue();
-			counts.merge(location, otherValue, Math::max);
+			changed(location, counts.merge(location, otherValue, Math::max));
+		}
+	}
+
+	/**
+	 * Adds only the words of another index from from, inclusive, to to, exclusive. Like
+	 * {@link #addAll(InvertedIndex)} the other index's sets are shared, so different ranges
+	 * of the same indexes can be added into different indexes at the same time.
+	 * Counts come from the last position of each added word, the same way {@link #add(String, String, int)} keeps them
+	 *
+	 * @param bufferIndex the index we are transferring elements from
+	 * @param from the first word to add, or null to start at the beginning
+	 * @param to the word to stop before, or null to go to the end
+	 */
+	public void addAll(InvertedIndex bufferIndex, String from, String to) {
+		NavigableMap<String, NavigableMap<String, NavigableSet<Integer>>> range = bufferIndex.index;
+		if (from != null) {
+			range = range.tailMap(from, true);
+		}
+		if (to != null) {
+			range = range.headMap(to, false);
+		}
+
+		HashMap<String, Integer> lasts = new HashMap<>();
+		for (var otherEntry : range.entrySet()) {
+			var thisEntry = this.index.computeIfAbsent(otherEntry.getKey(), i -> new TreeMap<>());
+			for (var otherInnerEntry : otherEntry.getValue().entrySet()) {
+				String location = otherInnerEntry.getKey();
+				var otherInnerSet = otherInnerEntry.getValue();
+				var thisInnerSet = thisEntry.putIfAbsent(location, otherInnerSet);
+				if (thisInnerSet != null) {
+					thisInnerSet.addAll(otherInnerSet);
+				}
+				lasts.merge(location, otherInnerSet.last(), Math::max);
+			}
+		}
+		for (var entry : lasts.entrySet()) {
+			changed(entry.getKey(), counts.merge(entry.getKey(), entry.getValue(), Math::max));
+		}
+	}
+
+	/**
+	 * Makes a separate copy of this index holding only some of its locations.
+	 * Nothing is shared with this index, so either can change afterwards
+	 *
+	 * @param keep decides which locations are copied
+	 * @return returns the copy
+	 */
+	public InvertedIndex copy(Predicate<String> keep) {
+		InvertedIndex copy = new InvertedIndex();
+		for (var entry : index.entrySet()) {
+			for (var inner : entry.getValue().entrySet()) {
+				if (keep.test(inner.getKey())) {
+					copy.index.computeIfAbsent(entry.getKey(), i -> new TreeMap<>())
+					.put(inner.getKey(), new TreeSet<>(inner.getValue()));
+				}
+			}
+		}
+		for (var entry : counts.entrySet()) {
+			if (keep.test(entry.getKey())) {
+				copy.counts.put(entry.getKey(), entry.getValue());
+				copy.changed(entry.getKey(), entry.getValue());
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Makes a copy of this index that is never changed, for searching without locks.
+	 * The copy is made of {@link PersistentTreeMap}s that share everything with the previous
+	 * copy except the paths to what changed, so only the changed positions are copied and the
+	 * rest costs a few nodes per change. Locations, ids, and lengths are shared with this index,
+	 * which only writes parts of them the copy doesn't read. Document ids stay the same as in this index.
+	 * If only new locations were added to, the copy takes over the posting lists the previous
+	 * copy built for words that didn't change, since their documents and lengths are the same.
+	 * The previous copy is marked as replaced, so nothing keeps it around for later searches
+	 *
+	 * @param previous the previous copy, made by this method from this index, or null for the first
+	 * @param changed the locations each word was added to since the previous copy was made
+	 * @return returns the new copy
+	 */
+	InvertedIndex snapshot(InvertedIndex previous, SortedMap<String, ? extends Set<String>> changed) {
+		PersistentTreeMap<String, NavigableMap<String, NavigableSet<Integer>>> words = PersistentTreeMap.empty();
+		PersistentTreeMap<String, Integer> sizes = PersistentTreeMap.empty();
+		if (previous != null) {
+			words = persistent(previous.index);
+			sizes = persistent(previous.counts);
+		}
+
+		TreeMap<String, NavigableMap<String, NavigableSet<Integer>>> changedWords = new TreeMap<>();
+		TreeMap<String, Integer> changedCounts = new TreeMap<>();
+		boolean carry = previous != null;
+		for (var entry : changed.entrySet()) {
+			var inner = index.get(entry.getKey());
+			TreeMap<String, NavigableSet<Integer>> positions = new TreeMap<>();
+			for (String location : entry.getValue()) {
+				positions.put(location, Collections.unmodifiableNavigableSet(new TreeSet<>(inner.get(location))));
+				if (changedCounts.put(location, counts.get(location)) == null && carry) {
+					// an older location's length changed, which every list holding it was scored with
+					carry = ids.get(location) >= previous.documents;
+				}
+			}
+			var old = words.get(entry.getKey());
+			changedWords.put(entry.getKey(), old == null ? PersistentTreeMap.of(positions) : persistent(old).withAll(positions));
+		}
+
+		InvertedIndex snapshot = new InvertedIndex(this, sizes.withAll(changedCounts), words.withAll(changedWords),
+				carry ? previous.postings : null, carry ? new HashSet<>(changed.keySet()) : Set.of());
+		shared = documents;
+		if (previous != null) {
+			previous.replaced = true;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @param <V> the type of values
+	 * @param map a map of a snapshot, or any other sorted map
+	 * @return returns the map if it is persistent, otherwise a persistent copy of it
+	 */
+	private static <V> PersistentTreeMap<String, V> persistent(NavigableMap<String, V> map) {
+		return map instanceof PersistentTreeMap<String, V> persistent ? persistent : PersistentTreeMap.of(map);
+	}
+
+	/**
+	 * Writes the whole index in a compact binary form that {@link #read(DataInput)} can load back
+	 *
+	 * @param out where to write
+	 * @throws IOException if unable to write
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(counts.size());
+		for (var entry : counts.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+		out.writeInt(index.size());
+		for (var entry : index.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (var inner : entry.getValue().entrySet()) {
+				out.writeUTF(inner.getKey());
+				out.writeInt(inner.getValue().size());
+				for (int position : inner.getValue()) {
+					out.writeInt(position);
+				}
+			}
 		}
 	}
 
+	/**
+	 * Reads an index written by {@link #write(DataOutput)}
+	 *
+	 * @param in where to read from
+	 * @return returns the index that was read
+	 * @throws IOException if unable to read or the data is cut short
+	 */
+	public static InvertedIndex read(DataInput in) throws IOException {
+		InvertedIndex read = new InvertedIndex();
+		int locations = in.readInt();
+		for (int i = 0; i < locations; i++) {
+			String location = in.readUTF();
+			int count = in.readInt();
+			read.counts.put(location, count);
+			read.changed(location, count);
+		}
+		int words = in.readInt();
+		for (int i = 0; i < words; i++) {
+			var inner = read.index.computeIfAbsent(in.readUTF(), w -> new TreeMap<>());
+			int wordLocations = in.readInt();
+			for (int j = 0; j < wordLocations; j++) {
+				TreeSet<Integer> positions = new TreeSet<>();
+				inner.put(in.readUTF(), positions);
+				int size = in.readInt();
+				for (int k = 0; k < size; k++) {
+					positions.add(in.readInt());
+				}
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * Gives the location a document id if it doesn't have one yet, updates its length,
+	 * and throws away any posting lists built before this change
+	 *
+	 * @param location the location that was added to
+	 * @param length the location's word count after the change
+	 */
+	private void changed(String location, int length) {
+		Integer id = ids.get(location);
+		if (id == null) {
+			id = documents;
+			if (id == locations.length) {
+				locations = Arrays.copyOf(locations, id * 2);
+				lengths = Arrays.copyOf(lengths, id * 2);
+				shared = 0;
+			}
+			locations[id] = location;
+			ids.put(location, id);
+			documents++;
+		} else if (id < shared) {
+			// a snapshot reads this length, it keeps the old array
+			lengths = Arrays.copyOf(lengths, lengths.length);
+			shared = 0;
+		}
+		totalLength += length - lengths[id];
+		lengths[id] = length;
+		norms = null;
+		if (!postings.isEmpty()) {
+			postings.clear();
+		}
+		prefixes.clear();
+		version++;
+	}
+
+	/**
+	 * Returns a number that changes every time the index does, used to tell when
+	 * results cached from it are out of date
+	 *
+	 * @return returns the version of the index
+	 * @see ResultCache
+	 */
+	public long version() {
+		return version;
+	}
+
+	/**
+	 * @return returns true if a newer copy replaced this one, so it won't be searched again
+	 */
+	boolean replaced() {
+		return replaced;
+	}
+
+	/**
+	 * Sets the cache of merged prefix postings used by partial searches, and with it the cap
+	 * on how many words a prefix expands into, see {@link PrefixCache}
+	 *
+	 * @param cache the cache, it should be empty
+	 */
+	public void setPrefixCache(PrefixCache cache) {
+		this.prefixes = cache;
+	}
+
+	/**
+	 * @return returns the cache of merged prefix postings, for its settings and counts
+	 */
+	public PrefixCache prefixCache() {
+		return prefixes;
+	}
+
+	/**
+	 * Sets where the counts of recent bag-of-words searches are kept, so a search that only
+	 * adds or drops a few words from a recent one counts just those, see {@link Refinements}.
+	 * BM25, phrase, and boolean searches don't use them
+	 *
+	 * @param refinements the kept counts, null to count every search in full
+	 */
+	public void setRefinements(Refinements refinements) {
+		this.refinements = refinements;
+	}
+
+	/**
+	 * @return returns where the counts of recent searches are kept, null if they aren't
+	 */
+	public Refinements refinements() {
+		return refinements;
+	}
+
 	/**
 	 * Checks if the index contains the word at a specific position in a file.
 	 * @CITE Original Method signature generated with chatgpt
@@ -290,84 +743,758 @@ public class InvertedIndex {
 	 * @return returns results
 	 */
 	public ArrayList<Result> partialSearch(Set<String> stemmedWords) {
-		HashMap<String, Result> lookup = new HashMap<>();
-		ArrayList<Result> results = new ArrayList<>();
+		return search(stemmedWords, true, 0);
+	}
 
-		for (String word : stemmedWords) {
-			for(var tailMap : index.tailMap(word).entrySet()) {
-				if(tailMap.getKey().startsWith(word)) {
-					var wordsMap = tailMap.getValue();
-					searchWords(wordsMap, lookup, results);
-				} else {
-					// once we are done starting with the keyWord we wont need to search anymore
-					break;
-				}
+	/**
+	 * Will return the amount of words in a file, made for Result, this is only for exact searches
+	 * @CITE ChatGpt was consulted when making the TreeMap of queries
+	 *
+	 * @param stemmedWords words to look for
+	 * @return returns results
+	 */
+	public ArrayList<Result> exactSearch(Set<String> stemmedWords) {
+		return search(stemmedWords, false, 0);
+	}
+
+	/**
+	 * Will return the amount of words in a file, made for Result
+	 * @CITE ChatGpt was consulted when making the TreeMap of queries
+	 *
+	 * @param stemmedWords words to look for
+	 * @param partial determines whether we partial search
+	 * @return returns queries
+	 */
+	public ArrayList<Result> searchQueries(Set<String> stemmedWords, boolean partial) {
+		if(partial) {
+			return partialSearch(stemmedWords);
+		} else {
+			return exactSearch(stemmedWords);
+		}
+	}
+
+	/**
+	 * Searches like searchQueries but scores with BM25 instead of count over word count,
+	 * see {@link Bm25}. Every word adds its own weighted score, partial matches included
+	 *
+	 * @param stemmedWords words to look for
+	 * @param partial determines whether we partial search
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns results sorted by BM25 score
+	 */
+	public ArrayList<Result> bm25Search(Set<String> stemmedWords, boolean partial, int limit) {
+		return search(plan(stemmedWords, partial, true, limit), true);
+	}
+
+	/**
+	 * Scores the posting lists with BM25
+	 *
+	 * @param lists the posting lists of the query's words
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns results sorted by BM25 score
+	 */
+	private ArrayList<Result> bm25Search(List<PostingList> lists, int limit) {
+		Accumulator accumulator = accumulator();
+		float[] table = norms();
+		int documents = this.documents;
+		for (PostingList list : lists) {
+			accumulator.addAll(list, Bm25.idf(list.size(), documents), table);
+		}
+		return collect(accumulator, limit, true);
+	}
+
+	/**
+	 * Gets the BM25 norm table, building it if the index changed since the last time.
+	 * Caller must hold the read lock if there is one.
+	 *
+	 * @return returns the norm of each location by document id
+	 */
+	private float[] norms() {
+		float[] table = norms;
+		if (table == null) {
+			// racing readers build the same table, whichever is kept is fine
+			table = Bm25.norms(lengths, documents, totalLength);
+			norms = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Gets this thread's accumulator, cleared and big enough for every location.
+	 * Reusing it means a search allocates nothing per matching location until results are made
+	 *
+	 * @return returns the accumulator
+	 */
+	private Accumulator accumulator() {
+		Accumulator accumulator = accumulators.get();
+		accumulator.reset(documents);
+		return accumulator;
+	}
+
+	/**
+	 * Makes, scores, and sorts a result for every touched location, in the order they were touched
+	 *
+	 * @param accumulator the accumulator holding the counts
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns results
+	 */
+	private ArrayList<Result> collect(Accumulator accumulator, int limit) {
+		return collect(accumulator, limit, false);
+	}
+
+	/**
+	 * Makes and sorts a result for every touched location, in the order they were touched
+	 *
+	 * @param accumulator the accumulator holding the counts
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @param scored true to use the accumulator's scores instead of count over word count
+	 * @return returns results
+	 */
+	private ArrayList<Result> collect(Accumulator accumulator, int limit, boolean scored) {
+		ArrayList<Result> results = new ArrayList<>(accumulator.size());
+		for (int i = 0; i < accumulator.size(); i++) {
+			int id = accumulator.document(i);
+			Result result = result(id, accumulator.count(id));
+			if (scored) {
+				result.score = accumulator.score(id);
 			}
+			results.add(result);
 		}
 		Collections.sort(results);
+		if (limit > 0 && results.size() > limit) {
+			results.subList(limit, results.size()).clear();
+		}
 		return results;
 	}
 
 	/**
-	 * Will return the amount of words in a file, made for Result, this is only for exact searches
-	 * @CITE ChatGpt was consulted when making the TreeMap of queries
+	 * Top-k version of partialSearch, only the best limit results are returned
+	 * Every word starting with a stem gets its own posting list, so words matched by
+	 * more than one stem are counted more than once just like partialSearch
 	 *
 	 * @param stemmedWords words to look for
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the first limit results of partialSearch
+	 */
+	public ArrayList<Result> partialSearch(Set<String> stemmedWords, int limit) {
+		return search(stemmedWords, true, limit);
+	}
+
+	/**
+	 * Top-k version of exactSearch, only the best limit results are returned
+	 *
+	 * @param stemmedWords words to look for
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the first limit results of exactSearch
+	 */
+	public ArrayList<Result> exactSearch(Set<String> stemmedWords, int limit) {
+		return search(stemmedWords, false, limit);
+	}
+
+	/**
+	 * Searches for every word within a few edits of each query word, so misspelled queries
+	 * still find something, see {@link #fuzzyWords(String, int, boolean)}. Scored like
+	 * partialSearch, each query word counts every word it matched
+	 *
+	 * @param stemmedWords words to look for
+	 * @param distance most edits a matched word can be from a query word, at most {@link LevenshteinAutomaton#MAX_DISTANCE}
+	 * @param partial whether a word also matches if only its start is within the distance
+	 * @param bm25 whether to score with BM25
+	 * @param limit the number of results to return, all of them if 0 or less
 	 * @return returns results
 	 */
-	public ArrayList<Result> exactSearch(Set<String> stemmedWords) {
-		HashMap<String, Result> lookup = new HashMap<>();
-		ArrayList<Result> results = new ArrayList<>();
+	public ArrayList<Result> fuzzySearch(Set<String> stemmedWords, int distance, boolean partial, boolean bm25, int limit) {
+		return search(fuzzyPlan(stemmedWords, distance, partial, bm25, limit), bm25);
+	}
+
+	/**
+	 * Runs a planned bag-of-words search
+	 *
+	 * @param plan the plan, see {@link #plan(Set, boolean, boolean, int)}
+	 * @param bm25 whether to score with BM25
+	 * @return returns results
+	 */
+	private ArrayList<Result> search(QueryPlan plan, boolean bm25) {
+		if (bm25 && plan.strategy() != QueryPlan.Strategy.EMPTY) {
+			return bm25Search(plan.lists(), plan.limit());
+		}
+		return search(plan);
+	}
+
+	/**
+	 * Counts the matches of a planned search the way the plan chose
+	 *
+	 * @param plan the plan, see {@link #plan(Set, boolean, boolean, int)}
+	 * @return returns results
+	 */
+	private ArrayList<Result> search(QueryPlan plan) {
+		if (plan.strategy() == QueryPlan.Strategy.EMPTY) {
+			return new ArrayList<>();
+		}
+		if (plan.strategy() == QueryPlan.Strategy.PRUNED) {
+			return new WandSearcher(this, plan.lists(), plan.limit()).search();
+		}
+		Accumulator accumulator = accumulator();
+		count(plan, accumulator);
+		return collect(accumulator, plan.limit());
+	}
+
+	/**
+	 * Counts every posting of a planned search, split across threads if the plan says to
+	 *
+	 * @param plan the plan
+	 * @param accumulator the accumulator to count in
+	 */
+	private void count(QueryPlan plan, Accumulator accumulator) {
+		if (plan.strategy() == QueryPlan.Strategy.PARALLEL) {
+			accumulator.addAllParallel(plan.lists());
+		} else {
+			for (PostingList list : plan.lists()) {
+				accumulator.addAll(list);
+			}
+		}
+	}
+
+	/**
+	 * Runs a counting bag-of-words search. If recent searches are kept, see
+	 * {@link #setRefinements(Refinements)}, and one of them differs from this one by fewer
+	 * postings than this one has, the search starts from its counts and only counts the
+	 * postings of the words that changed. Results are the same either way.
+	 * Caller must hold the read lock if there is one.
+	 *
+	 * @param stemmedWords words to look for
+	 * @param partial whether each word matches every word it is a prefix of
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns results
+	 */
+	private ArrayList<Result> search(Set<String> stemmedWords, boolean partial, int limit) {
+		QueryPlan plan = plan(stemmedWords, partial, false, limit);
+		Refinements recent = refinements;
+		if (recent == null || plan.strategy() == QueryPlan.Strategy.EMPTY) {
+			return search(plan);
+		}
+
+		HashMap<String, QueryPlan.Term> terms = new HashMap<>();
+		long postings = 0;
+		for (QueryPlan.Term term : plan.terms()) {
+			terms.put(term.word(), term);
+			postings += term.documents();
+		}
+
+		// the closest recent search is the one with the fewest postings added and taken away
+		Refinements.Search closest = null;
+		long cheapest = postings;
+		for (Refinements.Search search : recent.recent(this, partial)) {
+			long cost = 0;
+			for (String word : stemmedWords) {
+				if (!search.words().contains(word)) {
+					cost += terms.get(word).documents();
+				}
+			}
+			for (String word : search.words()) {
+				if (!stemmedWords.contains(word)) {
+					cost += terms.computeIfAbsent(word, key -> term(key, partial, false)).documents();
+				}
+			}
+			if (cost < cheapest) {
+				cheapest = cost;
+				closest = search;
+			}
+		}
+
+		if (closest == null && plan.strategy() == QueryPlan.Strategy.PRUNED) {
+			// a pruned search doesn't count everything, so there is nothing to keep
+			return search(plan);
+		}
+
+		Accumulator accumulator = accumulator();
+		if (closest == null) {
+			count(plan, accumulator);
+			recent.addCounted();
+		} else {
+			// everything is added before anything is taken away, see Accumulator#subtractAll
+			accumulator.addAll(closest.documents(), closest.counts());
+			for (String word : stemmedWords) {
+				if (!closest.words().contains(word)) {
+					for (PostingList list : terms.get(word).lists()) {
+						accumulator.addAll(list);
+					}
+				}
+			}
+			for (String word : closest.words()) {
+				if (!stemmedWords.contains(word)) {
+					for (PostingList list : terms.get(word).lists()) {
+						accumulator.subtractAll(list);
+					}
+				}
+			}
+			accumulator.compact();
+			recent.addRefined(postings - cheapest);
+		}
+
+		Deadline deadline = Deadline.current();
+		if (deadline == null || !deadline.reached()) {
+			recent.add(this, partial, stemmedWords, accumulator);
+		}
+		return collect(accumulator, limit);
+	}
+
+	/**
+	 * Plans a bag-of-words search from how many documents each word is in, without searching.
+	 * See {@link QueryPlan} for how the plan is chosen, its toString explains it
+	 *
+	 * @param stemmedWords words to look for
+	 * @param partial whether each word matches every word it is a prefix of
+	 * @param bm25 whether to score with BM25
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public QueryPlan plan(Set<String> stemmedWords, boolean partial, boolean bm25, int limit) {
+		ArrayList<QueryPlan.Term> terms = new ArrayList<>();
+		for (String word : stemmedWords) {
+			terms.add(term(word, partial, bm25));
+		}
+		return QueryPlan.words(terms, partial, bm25, limit);
+	}
+
+	/**
+	 * Plans a phrase search, without searching
+	 *
+	 * @param phrases the parsed clauses of the query
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public QueryPlan plan(List<PhraseQuery> phrases, int limit) {
+		TreeSet<String> words = new TreeSet<>();
+		for (PhraseQuery phrase : phrases) {
+			words.addAll(phrase.getTerms());
+		}
+		ArrayList<QueryPlan.Term> terms = new ArrayList<>();
+		for (String word : words) {
+			terms.add(term(word, false, false));
+		}
+		return QueryPlan.phrases(phrases, terms, limit);
+	}
+
+	/**
+	 * Plans a boolean search, without searching
+	 *
+	 * @param query the parsed query
+	 * @param partial whether each word matches every word it is a prefix of
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public QueryPlan plan(BooleanQuery query, boolean partial, int limit) {
+		ToLongFunction<String> frequency = word -> frequency(word, partial);
+		return QueryPlan.bool(query.explain(frequency), query.estimate(frequency), limit);
+	}
 
+	/**
+	 * Plans a fuzzy search, without searching, see {@link #fuzzySearch(Set, int, boolean, boolean, int)}
+	 *
+	 * @param stemmedWords words to look for
+	 * @param distance most edits a matched word can be from a query word
+	 * @param partial whether a word also matches if only its start is within the distance
+	 * @param bm25 whether to score with BM25
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public QueryPlan fuzzyPlan(Set<String> stemmedWords, int distance, boolean partial, boolean bm25, int limit) {
+		ArrayList<QueryPlan.Term> terms = new ArrayList<>();
 		for (String word : stemmedWords) {
-			var wordsMap = index.get(word);
-			if(wordsMap == null) {
-				continue;
+			ArrayList<PostingList> lists = new ArrayList<>();
+			for (String match : fuzzyWords(word, distance, partial)) {
+				lists.add(postings(match));
 			}
-			searchWords(wordsMap, lookup, results);
+			QueryPlan.Term term = new QueryPlan.Term(word, lists);
+			// BM25 gives every word its own weight, counting can merge them like partial search does
+			terms.add(bm25 ? term : term.merged(lengths));
 		}
-		Collections.sort(results);
-		return results;
+		return QueryPlan.fuzzy(terms, Math.max(0, Math.min(LevenshteinAutomaton.MAX_DISTANCE, distance)), partial, bm25, limit);
+	}
 
+	/**
+	 * Searches many bag-of-words queries at once. The posting lists of every word are looked
+	 * up, or for partial searches every word starting with it, once for the whole batch and
+	 * shared by every query using the word. Results are the same as searching each query
+	 * with {@link #searchQueries(Set, boolean, int)} or {@link #bm25Search(Set, boolean, int)}
+	 *
+	 * @param queries the stemmed words of each query
+	 * @param partial determines whether we partial search
+	 * @param bm25 whether to score with BM25
+	 * @param limit the number of results to return per query, all of them if 0 or less
+	 * @return returns the results of each query, in the same order as the queries
+	 */
+	public List<ArrayList<Result>> batchSearch(List<? extends Set<String>> queries, boolean partial, boolean bm25, int limit) {
+		HashMap<String, QueryPlan.Term> shared = new HashMap<>();
+		ArrayList<ArrayList<Result>> results = new ArrayList<>(queries.size());
+		for (Set<String> query : queries) {
+			ArrayList<QueryPlan.Term> terms = new ArrayList<>();
+			for (String word : query) {
+				terms.add(shared.computeIfAbsent(word, key -> term(key, partial, bm25)));
+			}
+			results.add(search(QueryPlan.words(terms, partial, bm25, limit), bm25));
+		}
+		return results;
 	}
 
 	/**
-	 * Will return the amount of words in a file, made for Result
-	 * @CITE ChatGpt was consulted when making the TreeMap of queries
+	 * Top-k version of searchQueries
 	 *
 	 * @param stemmedWords words to look for
 	 * @param partial determines whether we partial search
+	 * @param limit the number of results to return, all of them if 0 or less
 	 * @return returns queries
 	 */
-	public ArrayList<Result> searchQueries(Set<String> stemmedWords, boolean partial) {
+	public ArrayList<Result> searchQueries(Set<String> stemmedWords, boolean partial, int limit) {
 		if(partial) {
-			return partialSearch(stemmedWords);
+			return partialSearch(stemmedWords, limit);
 		} else {
-			return exactSearch(stemmedWords);
+			return exactSearch(stemmedWords, limit);
+		}
+	}
+
+	/**
+	 * Searches for quoted phrases and lone words, see {@link PhraseQuery}.
+	 * A result's count is the number of times its phrases and words occur in the location
+	 *
+	 * @param phrases the parsed clauses of the query
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns results
+	 */
+	public ArrayList<Result> phraseSearch(List<PhraseQuery> phrases, int limit) {
+		Accumulator accumulator = accumulator();
+
+		for (PhraseQuery phrase : phrases) {
+			if (phrase.getTerms().size() == 1) {
+				PostingList list = postings(phrase.getTerms().get(0));
+				if (list != null) {
+					accumulator.addAll(list);
+				}
+			} else {
+				searchPhrase(phrase, accumulator);
+			}
 		}
+		return collect(accumulator, limit);
 	}
 
 	/**
-	 * helper function for searchPartial and searchExact
-	 * creates a new query if needed, otherwise adds locations and count to existing query
+	 * helper function for phraseSearch
+	 * Finds the locations holding every word by walking the rarest word's postings and
+	 * skipping ahead in the others, then only those locations have their positions checked
 	 *
-	 * @param wordsMap the words we want to go through
-	 * @param lookup the lookup map to add to
-	 * @param results the result list we will modify
+	 * @param phrase the phrase to find
+	 * @param accumulator the accumulator to add matches to
 	 */
-	private void searchWords(TreeMap<String, TreeSet<Integer>> wordsMap, HashMap<String, Result> lookup, ArrayList<Result> results) {
-		for (var entry : wordsMap.entrySet()) {
-			String location = entry.getKey();
-			int matches = entry.getValue().size();
-			Result result = lookup.get(location);
+	private void searchPhrase(PhraseQuery phrase, Accumulator accumulator) {
+		List<String> terms = phrase.getTerms();
+		ArrayList<PostingList> lists = new ArrayList<>();
+		for (String term : new HashSet<>(terms)) {
+			PostingList list = postings(term);
+			if (list == null) {
+				return;
+			}
+			lists.add(list);
+		}
+		lists.sort(Comparator.comparingInt(PostingList::size));
+
+		PostingList rarest = lists.get(0);
+		int[] cursors = new int[lists.size()];
+		Deadline deadline = Deadline.current();
+
+		outer:
+		for (int i = 0; i < rarest.size(); i++) {
+			if (deadline != null && deadline.expired()) {
+				return;
+			}
+			int id = rarest.document(i);
+			for (int j = 1; j < lists.size(); j++) {
+				cursors[j] = lists.get(j).advance(cursors[j], id);
+				if (cursors[j] == lists.get(j).size()) {
+					break outer;
+				}
+				if (lists.get(j).document(cursors[j]) != id) {
+					continue outer;
+				}
+			}
+
+			String location = locations[id];
+			int[][] positions = new int[terms.size()][];
+			for (int j = 0; j < positions.length; j++) {
+				positions[j] = index.get(terms.get(j)).get(location).stream().mapToInt(Integer::intValue).toArray();
+			}
+
+			int matches = phrase.count(positions);
+			if (matches > 0) {
+				accumulator.add(id, matches);
+			}
+		}
+	}
+
+	/**
+	 * Searches using a parsed boolean query, see {@link BooleanQuery}
+	 *
+	 * @param query the parsed query
+	 * @param partial whether each word matches every word it is a prefix of
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns results
+	 */
+	public ArrayList<Result> booleanSearch(BooleanQuery query, boolean partial, int limit) {
+		PostingList matches = query.evaluate(partial ? this::prefixPostings : this::postings, word -> frequency(word, partial));
+		Accumulator accumulator = accumulator();
+		accumulator.addAll(matches);
+		return collect(accumulator, limit);
+	}
+
+	/**
+	 * Gets the posting lists a query word matches. For partial counting searches the lists of
+	 * every word starting with it are merged into one, which counts the same and is cached for
+	 * the next search of the prefix. BM25 gives every word its own weight, so it keeps them
+	 * apart. Caller must hold the read lock if there is one.
+	 *
+	 * @param word the word to look for
+	 * @param partial whether the word matches every word it is a prefix of
+	 * @param bm25 whether the lists will be scored with BM25
+	 * @return returns the word and its posting lists, none if it isn't in the index
+	 */
+	private QueryPlan.Term term(String word, boolean partial, boolean bm25) {
+		if (partial) {
+			return bm25 ? expand(word) : merged(word);
+		}
+		PostingList list = postings(word);
+		return new QueryPlan.Term(word, list == null ? List.of() : List.of(list));
+	}
+
+	/**
+	 * Estimates the documents a word is in, for partial searches the documents any word it
+	 * is a prefix of is in. Caller must hold the read lock if there is one.
+	 *
+	 * @param word the word to look for
+	 * @param partial whether the word matches every word it is a prefix of
+	 * @return returns the estimate
+	 */
+	private long frequency(String word, boolean partial) {
+		return term(word, partial, false).documents();
+	}
+
+	/**
+	 * Gets the posting list of every word starting with the prefix, in word order. If the
+	 * prefix matches more words than {@link PrefixCache#maxExpansions()}, only the words in
+	 * the most documents are kept. Caller must hold the read lock if there is one.
+	 *
+	 * @param prefix the prefix to look for
+	 * @return returns the prefix and the posting lists of the words kept
+	 */
+	private QueryPlan.Term expand(String prefix) {
+		ArrayList<PostingList> lists = new ArrayList<>();
+		Deadline deadline = Deadline.current();
+		// postings gathered since the deadline was last checked, building the lists is the slow part
+		long unchecked = 0;
+		for (String key : index.tailMap(prefix).keySet()) {
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			if (deadline != null && unchecked >= Deadline.CHECK_EVERY) {
+				unchecked = 0;
+				if (deadline.expired()) {
+					break;
+				}
+			}
+			PostingList list = postings(key);
+			lists.add(list);
+			unchecked += list.size() + 1;
+		}
+
+		int max = prefixes.maxExpansions();
+		if (max <= 0 || lists.size() <= max) {
+			return new QueryPlan.Term(prefix, lists);
+		}
+		// the size of the smallest list kept, lists that size are kept in word order until there are enough
+		int[] sizes = lists.stream().mapToInt(PostingList::size).sorted().toArray();
+		int cutoff = sizes[sizes.length - max];
+		int ties = max - (int) Arrays.stream(sizes).filter(size -> size > cutoff).count();
+		ArrayList<PostingList> kept = new ArrayList<>(max);
+		for (PostingList list : lists) {
+			if (list.size() > cutoff || (list.size() == cutoff && ties-- > 0)) {
+				kept.add(list);
+			}
+		}
+		return new QueryPlan.Term(prefix, kept, true);
+	}
+
+	/**
+	 * Finds every word in the index within a few edits of a word by walking the sorted words
+	 * with a {@link LevenshteinAutomaton}. Words sharing a prefix the automaton rejects are
+	 * skipped all at once, and once only the word's own letters can continue the walk jumps
+	 * straight to them, so it only visits prefixes that can still match instead of every
+	 * word. The distance is kept below the length of the word, or a short word would match
+	 * every short word in the index. Caller must hold the read lock if there is one.
+	 *
+	 * @param word the word to look for
+	 * @param distance most edits a matched word can be from the word, at most {@link LevenshteinAutomaton#MAX_DISTANCE}
+	 * @param partial whether a word also matches if only its start is within the distance
+	 * @return returns the matched words in sorted order
+	 */
+	public List<String> fuzzyWords(String word, int distance, boolean partial) {
+		ArrayList<String> words = new ArrayList<>();
+		if (!word.isEmpty()) {
+			LevenshteinAutomaton automaton = new LevenshteinAutomaton(word, Math.min(distance, word.length() - 1));
+			if (!index.isEmpty()) {
+				fuzzyWords(automaton, automaton.start(), "", index.firstKey(), partial, words);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Adds the words starting with a prefix that the automaton accepts
+	 *
+	 * @param automaton the automaton
+	 * @param state the state the automaton is in after reading the prefix
+	 * @param prefix the prefix
+	 * @param first the first word starting with the prefix, so it isn't looked up again
+	 * @param partial whether every word starting with an accepted prefix matches
+	 * @param words where matched words are added, in sorted order
+	 */
+	private void fuzzyWords(LevenshteinAutomaton automaton, int state, String prefix, String first, boolean partial, List<String> words) {
+		if (partial && automaton.accepts(state)) {
+			for (String key : index.tailMap(first).keySet()) {
+				if (!key.startsWith(prefix)) {
+					break;
+				}
+				words.add(key);
+			}
+			return;
+		}
+		Deadline deadline = Deadline.current();
+		if (deadline != null && deadline.expired()) {
+			return;
+		}
 
-			if (result == null) {
-				result = new Result(location);
-				lookup.put(location, result);
-				results.add(result);
+		String key = first;
+		if (key.length() == prefix.length()) {
+			if (automaton.accepts(state)) {
+				words.add(key);
 			}
-			result.increment(matches);
+			key = index.higherKey(key);
 		}
+
+		if (!automaton.anyLetter(state)) {
+			// only the letters of the word can continue, so jump straight to the words with each
+			for (char letter : automaton.letters()) {
+				if (key == null || !key.startsWith(prefix)) {
+					return;
+				}
+				char present = key.charAt(prefix.length());
+				if (letter < present) {
+					continue;
+				}
+				String child = prefix + letter;
+				if (letter > present) {
+					key = index.ceilingKey(child);
+					if (key == null || !key.startsWith(child)) {
+						continue;
+					}
+				}
+				int next = automaton.step(state, letter);
+				if (next != LevenshteinAutomaton.DEAD) {
+					fuzzyWords(automaton, next, child, key, partial, words);
+				}
+			}
+			return;
+		}
+
+		while (key != null && key.startsWith(prefix)) {
+			// every word continuing with the same letter is walked or skipped together
+			char letter = key.charAt(prefix.length());
+			int next = automaton.step(state, letter);
+			if (next != LevenshteinAutomaton.DEAD) {
+				fuzzyWords(automaton, next, prefix + letter, key, partial, words);
+			}
+			if (letter == Character.MAX_VALUE) {
+				return;
+			}
+			key = index.ceilingKey(prefix + (char) (letter + 1));
+		}
+	}
+
+	/**
+	 * Gets one posting list holding every word starting with the prefix, counts added up,
+	 * from the prefix cache if it is there. Caller must hold the read lock if there is one.
+	 *
+	 * @param prefix the prefix to look for
+	 * @return returns the prefix and its merged posting list, none if no word starts with it
+	 */
+	private QueryPlan.Term merged(String prefix) {
+		return prefixes.get(prefix, () -> expand(prefix).merged(lengths));
+	}
+
+	/**
+	 * Gets one posting list holding every word starting with the prefix, counts added up
+	 *
+	 * @param prefix the prefix to look for
+	 * @return returns the combined posting list or null if no word starts with the prefix
+	 */
+	private PostingList prefixPostings(String prefix) {
+		List<PostingList> lists = merged(prefix).lists();
+		return lists.isEmpty() ? null : lists.get(0);
+	}
+
+	/**
+	 * Gets the posting list of a word, building it the first time it is asked for
+	 * after the index changes unless the previous snapshot's list is still right. Caller must hold the read lock if there is one.
+	 *
+	 * @param word the word to get
+	 * @return returns the posting list or null if the word isn't in the index
+	 */
+	private PostingList postings(String word) {
+		return postings.computeIfAbsent(word, key -> {
+			PostingList list = carried == null || stale.contains(key) ? null : carried.get(key);
+			if (list != null) {
+				return list;
+			}
+			var wordsMap = index.get(key);
+			return wordsMap == null ? null : new PostingList(wordsMap, ids::get, lengths);
+		});
+	}
+
+	/**
+	 * @param location a location
+	 * @return returns the word count of the location, 0 if it isn't in this index
+	 */
+	private int length(String location) {
+		Integer id = ids.get(location);
+		return id == null || id >= documents ? 0 : lengths[id];
+	}
+
+	/**
+	 * Makes the result for a document that was scored by a top-k search.
+	 * Caller must hold the read lock if there is one.
+	 *
+	 * @param id the document id
+	 * @param count the total matches in the document
+	 * @return returns the finished result
+	 */
+	final Result result(int id, int count) {
+		Result result = new Result(locations[id], lengths[id]);
+		result.count = count;
+		result.score();
+		return result;
+	}
+
+	/**
+	 * Makes a result that was already scored somewhere else, like by a shard in another process
+	 *
+	 * @param location the location
+	 * @param count the total matches in the location
+	 * @param score the score of the location
+	 * @return returns the result
+	 */
+	final Result result(String location, int count, double score) {
+		Result result = new Result(location, 0);
+		result.count = count;
+		result.score = score;
+		return result;
 	}
 
 	/**
@@ -391,13 +1518,29 @@ public class InvertedIndex {
 		 */
 		private double score;
 
+		/**
+		 * word count of the location, read once from the length table
+		 */
+		private final int length;
+
 		/**
 		 * Constructor for this class
 		 *
 		 * @param location location of the file
 		 */
 		public Result(String location) {
+			this(location, length(location));
+		}
+
+		/**
+		 * Constructor for when the word count is already known
+		 *
+		 * @param location location of the file
+		 * @param length word count of the location
+		 */
+		private Result(String location, int length) {
 			this.location = location;
+			this.length = length;
 			this.count = 0; // these are set to 0 at first since we will only increment them with the increment method through the searches
 			this.score = 0;
 		}
@@ -439,13 +1582,10 @@ public class InvertedIndex {
 		}
 
 		/**
-		 * Use this when incrementing to an already established query
-		 *
-		 * @param increment the amount to increment
+		 * Sets the score from the count, call once all matches are counted
 		 */
-		private void increment(int increment) {
-			this.count += increment;
-			this.score = count / (double) wordCount(location);
+		private void score() {
+			this.score = count / (double) length;
 		}
 
 		/**
@@ -0,0 +1,193 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Accepts the words within a set number of edits of a word, where an edit adds, removes, or
+ * changes one letter. Built for walking a sorted term dictionary one letter at a time, so a
+ * whole range of words can be skipped as soon as their shared prefix is too far from the
+ * word, see {@link InvertedIndex#fuzzyWords(String, int, boolean)}.
+ *
+ * A state is a row of the edit distance table, the distance from every prefix of the word to
+ * the letters read so far, with distances past the limit all counted as one more than it.
+ * States are numbered and their transitions remembered as they are first reached, so the
+ * automaton only ever builds the part of itself the dictionary walks through. Every letter
+ * that isn't in the word moves a state the same way, so each state has one transition per
+ * letter of the word and one for everything else.
+ *
+ * Not thread-safe, each search makes its own.
+ */
+public class LevenshteinAutomaton {
+	/** Most edits allowed, the number of states grows quickly past this */
+	public static final int MAX_DISTANCE = 2;
+
+	/** The state reached once no word can be within the distance anymore */
+	public static final int DEAD = -1;
+
+	/** The word */
+	private final String word;
+
+	/** Most edits allowed */
+	private final int distance;
+
+	/** The letters of the word, sorted and without repeats */
+	private final char[] letters;
+
+	/** The row of each state */
+	private final ArrayList<int[]> states;
+
+	/** The number of each state by its row */
+	private final HashMap<String, Integer> numbers;
+
+	/** The state each state goes to by the letter read, the last one for letters not in the word */
+	private final ArrayList<int[]> transitions;
+
+	/** Marks a transition that hasn't been worked out yet */
+	private static final int UNKNOWN = -2;
+
+	/**
+	 * Constructor for LevenshteinAutomaton
+	 *
+	 * @param word the word to match
+	 * @param distance most edits allowed, at most {@link #MAX_DISTANCE}
+	 */
+	public LevenshteinAutomaton(String word, int distance) {
+		this.word = word;
+		this.distance = Math.max(0, Math.min(MAX_DISTANCE, distance));
+		char[] sorted = word.toCharArray();
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for (char letter : sorted) {
+			if (distinct == 0 || sorted[distinct - 1] != letter) {
+				sorted[distinct++] = letter;
+			}
+		}
+		this.letters = Arrays.copyOf(sorted, distinct);
+		this.states = new ArrayList<>();
+		this.numbers = new HashMap<>();
+		this.transitions = new ArrayList<>();
+
+		int[] start = new int[word.length() + 1];
+		for (int i = 0; i < start.length; i++) {
+			start[i] = Math.min(i, this.distance + 1);
+		}
+		state(start);
+	}
+
+	/**
+	 * @param row a row of the edit distance table
+	 * @return returns the number of the row's state, numbering it if it is new
+	 */
+	private int state(int[] row) {
+		String key = Arrays.toString(row);
+		Integer number = numbers.get(key);
+		if (number == null) {
+			number = states.size();
+			states.add(row);
+			numbers.put(key, number);
+			int[] next = new int[letters.length + 1];
+			Arrays.fill(next, UNKNOWN);
+			transitions.add(next);
+		}
+		return number;
+	}
+
+	/**
+	 * @return returns the state before any letters are read
+	 */
+	public int start() {
+		return 0;
+	}
+
+	/**
+	 * Reads one letter
+	 *
+	 * @param state the current state
+	 * @param letter the letter read
+	 * @return returns the next state, or {@link #DEAD} if no word continuing this way can match
+	 */
+	public int step(int state, char letter) {
+		int found = Arrays.binarySearch(letters, letter);
+		return step(state, found < 0 ? letters.length : found);
+	}
+
+	/**
+	 * @param state the current state
+	 * @param slot the letter read as its place in {@link #letters}, or its length for any letter not in the word
+	 * @return returns the next state, or {@link #DEAD} if no word continuing this way can match
+	 */
+	private int step(int state, int slot) {
+		int next = transitions.get(state)[slot];
+		if (next == UNKNOWN) {
+			int[] row = states.get(state);
+			int[] stepped = new int[row.length];
+			stepped[0] = Math.min(row[0] + 1, distance + 1);
+			int best = stepped[0];
+			for (int i = 1; i < row.length; i++) {
+				boolean same = slot < letters.length && word.charAt(i - 1) == letters[slot];
+				int change = row[i - 1] + (same ? 0 : 1);
+				stepped[i] = Math.min(distance + 1, Math.min(change, Math.min(row[i], stepped[i - 1]) + 1));
+				best = Math.min(best, stepped[i]);
+			}
+			next = best > distance ? DEAD : state(stepped);
+			transitions.get(state)[slot] = next;
+		}
+		return next;
+	}
+
+	/**
+	 * Checks whether a letter that isn't in the word can be read from a state. If it can't,
+	 * only the letters of the word need to be tried from it
+	 *
+	 * @param state a state
+	 * @return returns true if a letter that isn't in the word doesn't lead to {@link #DEAD}
+	 */
+	public boolean anyLetter(int state) {
+		return state != DEAD && step(state, letters.length) != DEAD;
+	}
+
+	/**
+	 * @return returns the letters of the word, sorted and without repeats
+	 */
+	public char[] letters() {
+		return letters.clone();
+	}
+
+	/**
+	 * @param state a state
+	 * @return returns true if the letters read to reach it are within the distance of the word
+	 */
+	public boolean accepts(int state) {
+		return state != DEAD && states.get(state)[word.length()] <= distance;
+	}
+
+	/**
+	 * Checks a whole word at once, mostly useful for testing
+	 *
+	 * @param text the word to check
+	 * @return returns true if it is within the distance of the word
+	 */
+	public boolean matches(String text) {
+		int state = start();
+		for (int i = 0; i < text.length() && state != DEAD; i++) {
+			state = step(state, text.charAt(i));
+		}
+		return accepts(state);
+	}
+
+	/**
+	 * @return returns the number of states built so far
+	 */
+	public int size() {
+		return states.size();
+	}
+
+	/**
+	 * @return returns the most edits allowed
+	 */
+	public int distance() {
+		return distance;
+	}
+}
@@ -0,0 +1,176 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import edu.usfca.cs272.MultiReaderLock.SimpleLock;
+
+/**
+ * Compares the locks {@link ThreadSafeInvertedIndex} can use on a read-heavy mix of
+ * small lookups with a few additions, the way the index is used while serving searches
+ * and crawling at the same time. Prints the operations per second of each lock.
+ *
+ * Usage: LockBenchmark [threads] [seconds] [write percent]
+ */
+public class LockBenchmark {
+	/** Number of words in the index, lookups and additions pick from these */
+	private static final int WORDS = 5000;
+
+	/** Number of locations in the index */
+	private static final int LOCATIONS = 200;
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args the number of threads, seconds per lock, and percent of operations that write
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int writes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		System.out.printf("%d threads, %d seconds each, %d%% writes%n", threads, seconds, writes);
+		// first round warms up the JIT, only the second is reported
+		for (int round = 0; round < 2; round++) {
+			run("MultiReaderLock", MultiReaderLock::new, threads, seconds, writes, round == 1);
+			run("ReentrantReadWriteLock", ReentrantLock::new, threads, seconds, writes, round == 1);
+			run("OptimisticReadWriteLock", OptimisticReadWriteLock::new, threads, seconds, writes, round == 1);
+		}
+	}
+
+	/**
+	 * Runs the mix on an index using one kind of lock
+	 *
+	 * @param name the name to print
+	 * @param locks creates the lock
+	 * @param threads the number of threads
+	 * @param seconds how long to run
+	 * @param writes percent of operations that add to the index
+	 * @param print true to print the result
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private static void run(String name, Supplier<ReadWriteLockInterface> locks, int threads,
+			int seconds, int writes, boolean print) throws InterruptedException {
+		ThreadSafeInvertedIndex index = new ThreadSafeInvertedIndex(locks.get());
+		for (int i = 0; i < WORDS; i++) {
+			index.add(word(i), location(i % LOCATIONS), i);
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		LongAdder reads = new LongAdder();
+		LongAdder added = new LongAdder();
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int position = WORDS;
+				while (running.get()) {
+					String word = word(random.nextInt(WORDS));
+					String location = location(random.nextInt(LOCATIONS));
+					if (random.nextInt(100) < writes) {
+						index.add(word, location, position++);
+						added.increment();
+						continue;
+					}
+					switch (random.nextInt(4)) {
+						case 0 -> index.size(word);
+						case 1 -> index.contains(word, location);
+						case 2 -> index.wordCount(location);
+						default -> index.size(word, location);
+					}
+					reads.increment();
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		if (print) {
+			long total = reads.sum() + added.sum();
+			System.out.printf("%-24s %,14.0f ops/sec (%,d reads, %,d writes)%n",
+					name, total / (double) seconds, reads.sum(), added.sum());
+		}
+	}
+
+	/**
+	 * @param i the word number
+	 * @return returns the word
+	 */
+	private static String word(int i) {
+		return "word" + i;
+	}
+
+	/**
+	 * @param i the location number
+	 * @return returns the location
+	 */
+	private static String location(int i) {
+		return "file" + i + ".txt";
+	}
+
+	/**
+	 * Adapts the JDK {@link ReentrantReadWriteLock} to the index's lock interface
+	 */
+	private static class ReentrantLock implements ReadWriteLockInterface {
+		/** The JDK lock */
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/** The read lock */
+		private final SimpleLock read = new Adapter(lock.readLock());
+
+		/** The write lock */
+		private final SimpleLock write = new Adapter(lock.writeLock());
+
+		@Override
+		public SimpleLock readLock() {
+			return read;
+		}
+
+		@Override
+		public SimpleLock writeLock() {
+			return write;
+		}
+	}
+
+	/**
+	 * Adapts a JDK lock to a {@link SimpleLock}
+	 */
+	private static class Adapter implements SimpleLock {
+		/** The JDK lock */
+		private final Lock lock;
+
+		/**
+		 * @param lock the JDK lock
+		 */
+		private Adapter(Lock lock) {
+			this.lock = lock;
+		}
+
+		@Override
+		public void lock() {
+			lock.lock();
+		}
+
+		@Override
+		public void unlock() {
+			lock.unlock();
+		}
+	}
+
+	/** Prevent instantiating this class of static methods. */
+	private LockBenchmark() {
+	}
+}
@@ -28,7 +28,7 @@ import org.apache.logging.log4j.Logger;
  * @author CS 272 Software Development (University of San Francisco)
  * @version Fall 2024
  */
-public class MultiReaderLock {
+public class MultiReaderLock implements ReadWriteLockInterface {
 	/** The conditional lock used for reading. */
 	private final SimpleLock readerLock;
 
@@ -44,6 +44,15 @@ public class MultiReaderLock {
 	/** The thread that holds the write lock. */
 	private Thread activeWriter;
 
+	/** Wait and hold times of this lock, only recorded while {@link ContentionStats} is enabled */
+	private final ContentionStats stats;
+
+	/** When the first of the active readers took the lock, 0 if not recording */
+	private long readAcquired;
+
+	/** When the active writer took the lock, 0 if not recording */
+	private long writeAcquired;
+
 	/** The log4j2 logger. */
 	private static final Logger log = LogManager.getLogger();
 
@@ -61,6 +70,22 @@ public class MultiReaderLock {
 	 * Initializes a new simple read/write lock.
 	 */
 	public MultiReaderLock() {
+		this("MultiReaderLock");
+	}
+
+	/**
+	 * Initializes a new simple read/write lock that records its contention under a name.
+	 * Locks with the same name share their stats. Hold times are how long the lock stays
+	 * taken, from the first reader in to the last reader out, or the writer in to out
+	 *
+	 * @param name the name of the stats
+	 * @see ContentionStats#get(String)
+	 */
+	public MultiReaderLock(String name) {
+		stats = ContentionStats.get(name);
+		readAcquired = 0;
+		writeAcquired = 0;
+
 		readerLock = new ReadLock();
 		writerLock = new WriteLock();
 
@@ -77,6 +102,7 @@ public class MultiReaderLock {
 	 *
 	 * @return the reader lock
 	 */
+	@Override
 	public SimpleLock readLock() {
 		return readerLock;
 	}
@@ -86,6 +112,7 @@ public class MultiReaderLock {
 	 *
 	 * @return the writer lock
 	 */
+	@Override
 	public SimpleLock writeLock() {
 		return writerLock;
 	}
@@ -162,12 +189,19 @@ public class MultiReaderLock {
 		 */
 		@Override
 		public void lock() {
+			long start = ContentionStats.start();
 			try {
 				synchronized (lock) {
+					boolean waited = false;
 					while (writers > 0 && !isActiveWriter()) {
+						waited = true;
 						lock.wait();
 					}
 					readers++;
+					long acquired = stats.acquired(start, waited);
+					if (readers == 1) {
+						readAcquired = acquired;
+					}
 				}
 			}
 			catch (InterruptedException ex) {
@@ -190,6 +224,8 @@ public class MultiReaderLock {
 				}
 				readers--;
 				if(readers == 0) {
+					stats.released(readAcquired);
+					readAcquired = 0;
 					lock.notifyAll();
 				}
 			}
@@ -209,13 +245,20 @@ public class MultiReaderLock {
 		 */
 		@Override
 		public void lock() {
+			long start = ContentionStats.start();
 			try {
 				synchronized (lock) {
+					boolean waited = false;
 					while ((writers > 0 || readers > 0) && !isActiveWriter()) {
+						waited = true;
 						lock.wait();
 					}
 					writers++;
 					activeWriter = Thread.currentThread();
+					long acquired = stats.acquired(start, waited);
+					if (writers == 1) {
+						writeAcquired = acquired;
+					}
 				}
 			}
 			catch (InterruptedException ex) {
@@ -241,6 +284,8 @@ public class MultiReaderLock {
 				}
 				writers--;
 				if(writers == 0) {
+					stats.released(writeAcquired);
+					writeAcquired = 0;
 					activeWriter = null;
 					lock.notifyAll();
 				}
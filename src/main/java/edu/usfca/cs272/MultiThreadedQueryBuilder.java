@@ -1,7 +1,10 @@
 package edu.usfca.cs272;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -10,7 +13,15 @@ import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -29,18 +40,45 @@ public class MultiThreadedQueryBuilder implements QueryBuilderInterface {
 	/** Logger to use for this class. */
 	public static final Logger log = LogManager.getLogger();
 
-	/** Total results and their keys (words) */
-	private final TreeMap<String, ArrayList<Result>> results;
+	/** Total results and their keys (words), only queries that were built */
+	private final TreeMap<String, List<Result>> results;
+
+	/** Recent results of every query, including ones that were only searched */
+	private final ResultCache cache;
+
+	/** Searches running right now by joined query, so the same query isn't searched twice at once */
+	private final ConcurrentHashMap<String, CompletableFuture<List<Result>>> inflight;
+
+	/** Number of searches that waited for the same query already running instead of searching */
+	private final LongAdder coalesced;
 
 	/** either partial or exact search, this will be true if partial search, false if exact */
 	private final boolean partial;
 
+	/** whether bag-of-words queries are scored with BM25 instead of count over word count */
+	private final boolean bm25;
+
+	/** most edits bag-of-words query words can be from the words they match, 0 for no fuzzy matching */
+	private final int fuzzy;
+
 	/** The shared workQueue to use */
 	private final WorkQueue queue;
 
 	/** Function call to the search functions in index */
 	private final Function<Set<String>, ArrayList<Result>> searchFunction;
 
+	/** Function call to the phrase search in index, used for lines with quotes */
+	private final Function<List<PhraseQuery>, ArrayList<Result>> phraseFunction;
+
+	/** Function call to the boolean search in index, used for lines with AND, OR, or NOT */
+	private final Function<BooleanQuery, ArrayList<Result>> booleanFunction;
+
+	/** Function call to the batch search in index, searches many bag-of-words queries at once */
+	private final Function<List<TreeSet<String>>, List<ArrayList<Result>>> batchFunction;
+
+	/** Function call to the planners in index, used to explain a line without searching */
+	private final Function<String, QueryPlan> planFunction;
+
 	/**
 	 * Constructor for MultiThreadedQueryBuilder class
 	 *
@@ -49,12 +87,94 @@ public class MultiThreadedQueryBuilder implements QueryBuilderInterface {
 	 * @param partial the type of search being done
 	 */
 	public MultiThreadedQueryBuilder(ThreadSafeInvertedIndex index, WorkQueue queue, boolean partial) {
+		this(index, queue, partial, 0);
+	}
+
+	/**
+	 * Constructor for MultiThreadedQueryBuilder class that only keeps the top results of each query
+	 *
+	 * @param index the specific II used for this QueryBuilder instance
+	 * @param queue the queue to use from driver
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 */
+	public MultiThreadedQueryBuilder(ThreadSafeInvertedIndex index, WorkQueue queue, boolean partial, int limit) {
+		this(index, queue, partial, limit, false);
+	}
+
+	/**
+	 * Constructor for MultiThreadedQueryBuilder class that can score with BM25, see {@link Bm25}
+	 *
+	 * @param index the specific II used for this QueryBuilder instance
+	 * @param queue the queue to use from driver
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether bag-of-words queries are scored with BM25, phrase and boolean queries keep the default scoring
+	 */
+	public MultiThreadedQueryBuilder(ThreadSafeInvertedIndex index, WorkQueue queue, boolean partial, int limit, boolean bm25) {
+		this(index, queue, partial, limit, bm25, new ResultCache(index));
+	}
+
+	/**
+	 * Constructor for MultiThreadedQueryBuilder class with the cache to keep recent results in
+	 *
+	 * @param index the specific II used for this QueryBuilder instance
+	 * @param queue the queue to use from driver
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether bag-of-words queries are scored with BM25, phrase and boolean queries keep the default scoring
+	 * @param cache the cache for results of this index
+	 */
+	public MultiThreadedQueryBuilder(ThreadSafeInvertedIndex index, WorkQueue queue, boolean partial, int limit, boolean bm25, ResultCache cache) {
+		this(index, queue, partial, limit, bm25, 0, cache);
+	}
+
+	/**
+	 * Constructor for MultiThreadedQueryBuilder class with the cache to keep recent results in and fuzzy matching
+	 *
+	 * @param index the specific II used for this QueryBuilder instance
+	 * @param queue the queue to use from driver
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether bag-of-words queries are scored with BM25, phrase and boolean queries keep the default scoring
+	 * @param fuzzy most edits bag-of-words query words can be from the words they match, 0 for no fuzzy matching, see {@link InvertedIndex#fuzzySearch(Set, int, boolean, boolean, int)}
+	 * @param cache the cache for results of this index
+	 */
+	public MultiThreadedQueryBuilder(ThreadSafeInvertedIndex index, WorkQueue queue, boolean partial, int limit, boolean bm25, int fuzzy, ResultCache cache) {
 		this.queue = queue;
 		this.results = new TreeMap<>();
+		this.cache = cache;
+		this.inflight = new ConcurrentHashMap<>();
+		this.coalesced = new LongAdder();
 		this.partial = partial;
-		this.lock = new MultiReaderLock();
-		this.searchFunction = partial ? index::partialSearch : index::exactSearch;
-
+		this.bm25 = bm25;
+		this.fuzzy = fuzzy;
+		this.lock = new MultiReaderLock("queries");
+		if (fuzzy > 0) {
+			this.searchFunction = words -> index.fuzzySearch(words, fuzzy, partial, bm25, limit);
+		} else if (bm25) {
+			this.searchFunction = words -> index.bm25Search(words, partial, limit);
+		} else {
+			this.searchFunction = partial ? words -> index.partialSearch(words, limit) : words -> index.exactSearch(words, limit);
+		}
+		this.phraseFunction = phrases -> index.phraseSearch(phrases, limit);
+		this.booleanFunction = query -> index.booleanSearch(query, partial, limit);
+		this.planFunction = line -> {
+			if (BooleanQuery.isBoolean(line)) {
+				return index.plan(new BooleanQuery(line), partial, limit);
+			}
+			if (PhraseQuery.isPhrase(line)) {
+				return index.plan(PhraseQuery.parse(line), limit);
+			}
+			TreeSet<String> stemmedWords = FileStemmer.uniqueStems(line);
+			return fuzzy > 0 ? index.fuzzyPlan(stemmedWords, fuzzy, partial, bm25, limit) : index.plan(stemmedWords, partial, bm25, limit);
+		};
+		if (fuzzy > 0) {
+			// batches share exact and prefix lookups, fuzzy queries are searched one at a time
+			this.batchFunction = queries -> queries.stream().map(searchFunction).toList();
+		} else {
+			this.batchFunction = queries -> index.batchSearch(queries, partial, bm25, limit);
+		}
 	}
 
 	@Override
@@ -112,6 +232,16 @@ public class MultiThreadedQueryBuilder implements QueryBuilderInterface {
 		return this.partial;
 	}
 
+	@Override
+	public boolean getBm25() {
+		return this.bm25;
+	}
+
+	@Override
+	public int getFuzzy() {
+		return this.fuzzy;
+	}
+
 	@Override
 	public void asJson(Path path) throws IOException {
 		lock.readLock().lock();
@@ -136,6 +266,66 @@ public class MultiThreadedQueryBuilder implements QueryBuilderInterface {
 		queue.finish();
 	}
 
+	/**
+	 * Stems the whole file first, in parallel, keeping one copy of each query. Then the
+	 * queries are sorted so ones starting with the same words end up together, and split
+	 * into a few batches searched with {@link InvertedIndex#batchSearch(List, boolean, boolean, int)}.
+	 * Phrase and boolean queries don't batch and are searched while stemming.
+	 * This will finish the queue after searching
+	 *
+	 * @param path path of the file
+	 * @throws IOException throws IOE
+	 */
+	@Override
+	public void buildBatch(Path path) throws IOException {
+		List<String> lines = Files.readAllLines(path, UTF_8);
+		ConcurrentHashMap<String, TreeSet<String>> distinct = new ConcurrentHashMap<>();
+		int chunk = Math.max(1, (lines.size() + queue.size() - 1) / queue.size());
+		for(int start = 0; start < lines.size(); start += chunk) {
+			List<String> part = lines.subList(start, Math.min(lines.size(), start + chunk));
+			queue.execute(() -> {
+				for(String line : part) {
+					if(BooleanQuery.isBoolean(line) || PhraseQuery.isPhrase(line)) {
+						search(line, true);
+						continue;
+					}
+					TreeSet<String> stemmedWords = FileStemmer.uniqueStems(line);
+					if(!stemmedWords.isEmpty()) {
+						distinct.putIfAbsent(String.join(" ", stemmedWords), stemmedWords);
+					}
+				}
+			});
+		}
+		queue.finish();
+
+		TreeMap<String, TreeSet<String>> batch = new TreeMap<>(distinct);
+		lock.readLock().lock();
+		try {
+			batch.keySet().removeAll(results.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// more batches than workers so a slow batch doesn't leave the others idle
+		List<String> joined = new ArrayList<>(batch.keySet());
+		int size = Math.max(1, (joined.size() + queue.size() * 2 - 1) / (queue.size() * 2));
+		for(int start = 0; start < joined.size(); start += size) {
+			List<String> keys = joined.subList(start, Math.min(joined.size(), start + size));
+			queue.execute(() -> {
+				List<ArrayList<Result>> found = batchFunction.apply(keys.stream().map(batch::get).toList());
+				lock.writeLock().lock();
+				try {
+					for(int i = 0; i < keys.size(); i++) {
+						results.putIfAbsent(keys.get(i), found.get(i));
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+			});
+		}
+		queue.finish();
+	}
+
 	/**
 	 * This method does not shutdown nor join (finish) the queue, it only executes tasks
 	 */
@@ -167,35 +357,155 @@ public class MultiThreadedQueryBuilder implements QueryBuilderInterface {
 		@Override
 		public void run() {
 			//@CITE got help from peer about making unique Stemmer for each, did not know they weren't thread safe
-			search(queryLine);
+			search(queryLine, true);
 		}
 	}
 
+	/**
+	 * Searches the line without storing its results, answering from the cache if it can
+	 */
 	@Override
 	public List<Result> search(String line) {
+		return search(line, false);
+	}
+
+	@Override
+	public QueryPlan explain(String line) {
+		return planFunction.apply(line);
+	}
+
+	/**
+	 * Parses and searches a line
+	 *
+	 * @param line the query line
+	 * @param store whether to store the results for output
+	 * @return returns query results
+	 */
+	private List<Result> search(String line, boolean store) {
+		if (BooleanQuery.isBoolean(line)) {
+			BooleanQuery query = new BooleanQuery(line);
+			if(!query.isEmpty()) {
+				return search(query.toString(), () -> booleanFunction.apply(query), store);
+			}
+			return Collections.emptyList();
+		}
+		if (PhraseQuery.isPhrase(line)) {
+			List<PhraseQuery> phrases = PhraseQuery.parse(line);
+			if(!phrases.isEmpty()) {
+				return search(PhraseQuery.join(phrases), () -> phraseFunction.apply(phrases), store);
+			}
+			return Collections.emptyList();
+		}
 		TreeSet<String> stemmedWords = FileStemmer.uniqueStems(line);
 		if(!stemmedWords.isEmpty()) {
-			String joined = String.join(" ", stemmedWords);
+			return search(String.join(" ", stemmedWords), () -> searchFunction.apply(stemmedWords), store);
+		}
+		return Collections.emptyList();
+	}
 
+	/**
+	 * Returns the results of a joined query, from the stored results or the cache if they
+	 * are there, searching if not
+	 *
+	 * @param joined the joined query used as the results key
+	 * @param search runs the search if the results are not cached
+	 * @param store whether to store the results for output
+	 * @return returns query results
+	 */
+	private List<Result> search(String joined, Supplier<ArrayList<Result>> search, boolean store) {
+		if(store) {
 			lock.readLock().lock();
 			try {
-				if(results.containsKey(joined)) {
-					return get(joined);
+				var resultList = results.get(joined);
+				if(resultList != null) {
+					return resultList;
 				}
 			} finally {
 				lock.readLock().unlock();
 			}
+		}
 
-			ArrayList<Result> queryResults = searchFunction.apply(stemmedWords);
+		List<Result> queryResults = coalesce(joined, search);
 
+		if(store) {
 			lock.writeLock().lock();
 			try {
-				results.put(joined, queryResults);
+				results.putIfAbsent(joined, queryResults);
 			} finally {
 				lock.writeLock().unlock();
 			}
+		}
+		return queryResults;
+	}
+
+	/**
+	 * Gets the results from the cache, but if the same query is already being searched by
+	 * another thread waits for its results instead of searching again. Results cut short by
+	 * a {@link Deadline} aren't shared, the waiting threads search for themselves instead,
+	 * and a thread with its own deadline stops waiting once it runs out
+	 *
+	 * @param joined the joined query
+	 * @param search runs the search
+	 * @return returns query results
+	 */
+	private List<Result> coalesce(String joined, Supplier<ArrayList<Result>> search) {
+		CompletableFuture<List<Result>> flight = new CompletableFuture<>();
+		CompletableFuture<List<Result>> running = inflight.putIfAbsent(joined, flight);
+		if(running != null) {
+			List<Result> shared = await(running);
+			if(shared != null) {
+				coalesced.increment();
+				return shared;
+			}
+			// the other search ran out of time or took longer than ours may, search with our own budget
+			return cache.get(joined, search);
+		}
+
+		try {
+			List<Result> queryResults = cache.get(joined, search);
+			Deadline deadline = Deadline.current();
+			flight.complete(deadline != null && deadline.reached() ? null : queryResults);
 			return queryResults;
+		} catch(RuntimeException e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inflight.remove(joined, flight);
 		}
-		return Collections.emptyList();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Waits for the results of the same query searched by another thread, for no longer
+	 * than the {@link Deadline} of this thread allows if it has one
+	 *
+	 * @param running the other thread's search
+	 * @return returns its results, or null if they were cut short or didn't come in time
+	 */
+	private static List<Result> await(CompletableFuture<List<Result>> running) {
+		Deadline deadline = Deadline.current();
+		try {
+			if(deadline == null) {
+				return running.join();
+			}
+			return running.get(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS);
+		} catch(CompletionException | ExecutionException e) {
+			// rethrow what the searching thread ran into
+			if(e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			throw new CompletionException(e.getCause());
+		} catch(TimeoutException e) {
+			return null;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * @return returns the number of searches that shared the results of the same query already running
+	 */
+	public long coalesced() {
+		return coalesced.sum();
+	}
+}
@@ -2,6 +2,12 @@ package edu.usfca.cs272;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.exception.UncheckedException;
 
@@ -9,6 +15,8 @@ import org.apache.commons.lang3.exception.UncheckedException;
  * Builder Class for multi-threaded Inverted index dataSets
  */
 public class MultiThreadedTextFileIndexer {
+	/** Word positions a worker's local index holds before it is handed to the shared index */
+	public static final long BATCH_POSITIONS = 1 << 20;
 
 	/**
 	 * Calls necessary functions to get all paths from user input
@@ -20,10 +28,123 @@ public class MultiThreadedTextFileIndexer {
 	 * @throws IOException throws IOException
 	 */
 	public static void indexDirectory(Path input, ThreadSafeInvertedIndex index, WorkQueue queue) throws IOException {
+		indexDirectory(input, index, queue, path -> true);
+	}
+
+	/**
+	 * Same as {@link #indexDirectory(Path, ThreadSafeInvertedIndex, WorkQueue)} but only
+	 * indexes some of the files, used when this process holds one part of a split index
+	 *
+	 * Each worker thread keeps adding its files to its own local index, so no locks are
+	 * taken while indexing. A local index is handed to the shared index once it holds
+	 * {@link #BATCH_POSITIONS} positions, so files become searchable and get logged as the
+	 * crawl goes instead of all at the end. Once every file is done the rest of the local
+	 * indexes are merged with {@link #merge(Collection)} and handed over in a single addAll.
+	 *
+	 * @param input the user path input
+	 * @param index the InvertedIndex class from driver
+	 * @param queue the queue to use
+	 * @param keep decides which files are indexed
+	 * @throws IOException throws IOException
+	 */
+	public static void indexDirectory(Path input, ThreadSafeInvertedIndex index, WorkQueue queue, Predicate<Path> keep) throws IOException {
+		indexDirectory(input, index, queue, keep, new TermDictionary());
+	}
+
+	/**
+	 * Same as {@link #indexDirectory(Path, ThreadSafeInvertedIndex, WorkQueue, Predicate)}
+	 * with the dictionary the local indexes share their words through, cleared once every
+	 * file is indexed
+	 *
+	 * @param input the user path input
+	 * @param index the InvertedIndex class from driver
+	 * @param queue the queue to use
+	 * @param keep decides which files are indexed
+	 * @param terms the dictionary of this build
+	 * @throws IOException throws IOException
+	 */
+	public static void indexDirectory(Path input, ThreadSafeInvertedIndex index, WorkQueue queue, Predicate<Path> keep, TermDictionary terms) throws IOException {
+		ConcurrentHashMap<Thread, Batch> locals = new ConcurrentHashMap<>();
 		for(Path path : DirectoryTraverser.getPaths(input)) {
-			queue.execute(new Task(path, index));
+			if(keep.test(path)) {
+				queue.execute(new Task(path, index, locals, terms));
+			}
 		}
 		queue.finish();
+		terms.clear();
+		if(!locals.isEmpty()) {
+			List<InvertedIndex> rest = new ArrayList<>();
+			for(Batch batch : locals.values()) {
+				rest.add(batch.index);
+			}
+			index.addAll(merge(rest));
+		}
+	}
+
+	/**
+	 * Merges indexes into one. The words are split into one range per processor using
+	 * the biggest index's words, and every range is merged from all of the indexes at the
+	 * same time. Ranges don't share any words, so they need no locks, and putting the
+	 * finished ranges together is just adding words that aren't there yet.
+	 *
+	 * The given indexes share their sets with the result, so don't use them afterwards
+	 *
+	 * @param indexes the indexes to merge
+	 * @return returns the merged index
+	 */
+	public static InvertedIndex merge(Collection<InvertedIndex> indexes) {
+		List<InvertedIndex> list = List.copyOf(indexes);
+		if(list.size() == 1) {
+			return list.get(0);
+		}
+
+		InvertedIndex biggest = new InvertedIndex();
+		for(InvertedIndex local : list) {
+			if(local.size() > biggest.size()) {
+				biggest = local;
+			}
+		}
+		List<String> words = new ArrayList<>(biggest.get());
+		int ranges = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), words.size()));
+		String[] bounds = new String[ranges + 1];
+		for(int i = 1; i < ranges; i++) {
+			bounds[i] = words.get(i * words.size() / ranges);
+		}
+
+		List<InvertedIndex> parts = IntStream.range(0, ranges).parallel().mapToObj(i -> {
+			InvertedIndex part = new InvertedIndex();
+			for(InvertedIndex local : list) {
+				part.addAll(local, bounds[i], bounds[i + 1]);
+			}
+			return part;
+		}).toList();
+
+		InvertedIndex merged = new InvertedIndex();
+		for(InvertedIndex part : parts) {
+			merged.addAll(part);
+		}
+		return merged;
+	}
+
+	/**
+	 * The local index of one worker thread and how many positions it holds
+	 */
+	private static class Batch {
+		/** The local index */
+		private final InvertedIndex index;
+
+		/** Word positions in the local index */
+		private long positions;
+
+		/**
+		 * Starts an empty batch
+		 *
+		 * @param terms the dictionary the local indexes share their words through
+		 */
+		private Batch(TermDictionary terms) {
+			this.index = new InvertedIndex(terms);
+			this.positions = 0;
+		}
 	}
 
 	/**
@@ -34,30 +155,51 @@ public class MultiThreadedTextFileIndexer {
 		/**The path to use*/
 		private final Path path;
 
-		/**The index to use*/
+		/**The shared index full batches are handed to*/
 		private final ThreadSafeInvertedIndex index;
 
+		/**The local index of each worker thread*/
+		private final ConcurrentHashMap<Thread, Batch> locals;
+
+		/**The dictionary the local indexes share their words through*/
+		private final TermDictionary terms;
+
 		/**
-		 * Constructor for the task class, needs a path input and Inverted Index to add to
+		 * Constructor for the task class, needs a path input and the indexes to add to
 		 *
 		 * @param path the file path of the file we want to stem/was input
-		 * @param index the index we want to add to, thread-safe for multi-threading
+		 * @param index the shared index full batches are handed to
+		 * @param locals the local index of each worker thread, filled in as threads run tasks
+		 * @param terms the dictionary the local indexes share their words through
 		 */
-		private Task(Path path, ThreadSafeInvertedIndex index) {
+		private Task(Path path, ThreadSafeInvertedIndex index, ConcurrentHashMap<Thread, Batch> locals, TermDictionary terms) {
 			this.path = path;
 			this.index = index;
+			this.locals = locals;
+			this.terms = terms;
 		}
 
 		@Override
 		public void run() {
 			try {
-				InvertedIndex local = new InvertedIndex();
-				TextFileIndexer.indexFile(path, local);
-				index.addAll(local);
+				// a file that fails partway is thrown away with its own index, the batch only gets whole files
+				InvertedIndex file = new InvertedIndex();
+				TextFileIndexer.indexFile(path, file);
+
+				// only this thread ever uses its local index, so no lock is needed
+				Batch batch = locals.computeIfAbsent(Thread.currentThread(), thread -> new Batch(terms));
+				batch.index.addAll(file);
+				for(int count : file.viewCounts().values()) {
+					batch.positions += count;
+				}
+				if(batch.positions >= BATCH_POSITIONS) {
+					locals.remove(Thread.currentThread());
+					index.addAll(batch.index);
+				}
 			}
 			catch (IOException e) {
 				throw new UncheckedException(e);
 			}
 		}
 	}
-}
+}
\ No newline at end of file
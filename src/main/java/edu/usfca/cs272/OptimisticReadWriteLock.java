@@ -0,0 +1,177 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+import edu.usfca.cs272.MultiReaderLock.SimpleLock;
+
+/**
+ * A read/write lock built on {@link StampedLock}. Short reads can skip the lock
+ * entirely with {@link #tryOptimisticRead()} and only take the read lock if a writer
+ * got in while they were reading. Taking and releasing the locks doesn't go through a
+ * monitor, and a release only wakes the threads that can go next.
+ *
+ * Writers go first: once a writer is waiting, new readers wait until it has had its
+ * turn, so a steady stream of readers can't starve writers. Like {@link MultiReaderLock}
+ * the active writer can take the read or write lock again, but a reader must not take
+ * the read lock again while holding it, since a waiting writer would hold it back.
+ */
+public class OptimisticReadWriteLock implements ReadWriteLockInterface {
+	/** The underlying lock */
+	private final StampedLock stamped;
+
+	/** The read lock view of the underlying lock */
+	private final Lock stampedRead;
+
+	/** The write lock view of the underlying lock */
+	private final Lock stampedWrite;
+
+	/** The conditional lock used for reading. */
+	private final SimpleLock readerLock;
+
+	/** The conditional lock used for writing. */
+	private final SimpleLock writerLock;
+
+	/** The thread that holds the write lock. */
+	private volatile Thread activeWriter;
+
+	/** Number of times the active writer has taken the write lock, only used by the active writer */
+	private int holds;
+
+	/** Number of writers waiting for the lock, readers wait while there are any */
+	private final AtomicInteger waiting;
+
+	/** Monitor readers wait on while writers are waiting */
+	private final Object gate;
+
+	/**
+	 * Initializes a new optimistic read/write lock.
+	 */
+	public OptimisticReadWriteLock() {
+		stamped = new StampedLock();
+		stampedRead = stamped.asReadLock();
+		stampedWrite = stamped.asWriteLock();
+		readerLock = new ReadLock();
+		writerLock = new WriteLock();
+		activeWriter = null;
+		holds = 0;
+		waiting = new AtomicInteger();
+		gate = new Object();
+	}
+
+	@Override
+	public SimpleLock readLock() {
+		return readerLock;
+	}
+
+	@Override
+	public SimpleLock writeLock() {
+		return writerLock;
+	}
+
+	/**
+	 * The active writer can't read optimistically, since its own writes would fail the
+	 * validation, so it is told to take the read lock instead
+	 */
+	@Override
+	public long tryOptimisticRead() {
+		return isActiveWriter() ? 0 : stamped.tryOptimisticRead();
+	}
+
+	@Override
+	public boolean validate(long stamp) {
+		return stamped.validate(stamp);
+	}
+
+	/**
+	 * @return returns true if the thread running this code holds the write lock
+	 */
+	public boolean isActiveWriter() {
+		return Thread.currentThread() == activeWriter;
+	}
+
+	/**
+	 * Used to maintain simultaneous read operations.
+	 */
+	private class ReadLock implements SimpleLock {
+		/**
+		 * Waits for any waiting writers to go first, then takes the read lock.
+		 * The active writer already has access, so it doesn't take anything
+		 */
+		@Override
+		public void lock() {
+			if (isActiveWriter()) {
+				return;
+			}
+			if (waiting.get() > 0) {
+				boolean interrupted = false;
+				synchronized (gate) {
+					while (waiting.get() > 0) {
+						try {
+							gate.wait();
+						}
+						catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			stampedRead.lock();
+		}
+
+		@Override
+		public void unlock() {
+			if (isActiveWriter()) {
+				return;
+			}
+			stampedRead.unlock();
+		}
+	}
+
+	/**
+	 * Used to maintain exclusive write operations.
+	 */
+	private class WriteLock implements SimpleLock {
+		/**
+		 * Takes the write lock, holding back new readers while waiting for it
+		 */
+		@Override
+		public void lock() {
+			if (isActiveWriter()) {
+				holds++;
+				return;
+			}
+			waiting.incrementAndGet();
+			try {
+				stampedWrite.lock();
+			}
+			finally {
+				if (waiting.decrementAndGet() == 0) {
+					synchronized (gate) {
+						gate.notifyAll();
+					}
+				}
+			}
+			activeWriter = Thread.currentThread();
+			holds = 1;
+		}
+
+		/**
+		 * @throws IllegalStateException if this thread doesn't hold the write lock
+		 */
+		@Override
+		public void unlock() throws IllegalStateException {
+			if (!isActiveWriter()) {
+				throw new IllegalStateException();
+			}
+			if (--holds == 0) {
+				activeWriter = null;
+				stampedWrite.unlock();
+			}
+		}
+	}
+}
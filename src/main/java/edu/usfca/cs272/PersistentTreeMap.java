@@ -0,0 +1,994 @@
+package edu.usfca.cs272;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * A sorted map that never changes. Adding to it makes a new map that shares everything
+ * but the path to the changed keys with the old one, so keeping both costs a few nodes
+ * per change instead of a copy of the whole map. Used for the versions of an index
+ * searched without locks, see {@link ThreadSafeInvertedIndex}.
+ *
+ * The map is an AVL tree that knows the size of every subtree, so views of a range of
+ * keys know their size without walking them. Views share the tree and never change
+ * either. Every method that would change the map throws {@link UnsupportedOperationException},
+ * use {@link #with(Comparable, Object)} or {@link #withAll(SortedMap)} instead.
+ *
+ * @param <K> the type of keys, in their natural order
+ * @param <V> the type of values
+ */
+public class PersistentTreeMap<K extends Comparable<? super K>, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+	/** The tree, shared by every view of it */
+	private final Node<K, V> root;
+
+	/** The lowest key of the view, ignored if fromStart */
+	private final K lo;
+
+	/** Whether the lowest key itself is in the view */
+	private final boolean loInclusive;
+
+	/** True if the view has no lowest key */
+	private final boolean fromStart;
+
+	/** The highest key of the view, ignored if toEnd */
+	private final K hi;
+
+	/** Whether the highest key itself is in the view */
+	private final boolean hiInclusive;
+
+	/** True if the view has no highest key */
+	private final boolean toEnd;
+
+	/** True if the view is in descending order */
+	private final boolean descending;
+
+	/** The empty map */
+	@SuppressWarnings("rawtypes")
+	private static final PersistentTreeMap EMPTY = new PersistentTreeMap<>(null);
+
+	/**
+	 * Makes a whole map
+	 *
+	 * @param root the tree
+	 */
+	private PersistentTreeMap(Node<K, V> root) {
+		this(root, null, false, true, null, false, true, false);
+	}
+
+	/**
+	 * Makes a view of a range of a tree
+	 *
+	 * @param root the tree
+	 * @param lo the lowest key
+	 * @param loInclusive whether the lowest key is in the view
+	 * @param fromStart true if there is no lowest key
+	 * @param hi the highest key
+	 * @param hiInclusive whether the highest key is in the view
+	 * @param toEnd true if there is no highest key
+	 * @param descending true for descending order
+	 */
+	private PersistentTreeMap(Node<K, V> root, K lo, boolean loInclusive, boolean fromStart, K hi, boolean hiInclusive, boolean toEnd, boolean descending) {
+		this.root = root;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.fromStart = fromStart;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.toEnd = toEnd;
+		this.descending = descending;
+	}
+
+	/**
+	 * @param <K> the type of keys
+	 * @param <V> the type of values
+	 * @return returns the empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K extends Comparable<? super K>, V> PersistentTreeMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Makes a map holding the same entries as a sorted map
+	 *
+	 * @param <K> the type of keys
+	 * @param <V> the type of values
+	 * @param sorted the entries, in natural order
+	 * @return returns the map
+	 */
+	public static <K extends Comparable<? super K>, V> PersistentTreeMap<K, V> of(SortedMap<K, ? extends V> sorted) {
+		return PersistentTreeMap.<K, V>empty().withAll(sorted);
+	}
+
+	/**
+	 * Makes a map with one more key, or with a new value for a key it has.
+	 * Only the path to the key is copied, the rest is shared with this map
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return returns the new map
+	 */
+	public PersistentTreeMap<K, V> with(K key, V value) {
+		whole();
+		return new PersistentTreeMap<>(put(root, Objects.requireNonNull(key), value));
+	}
+
+	/**
+	 * Makes a map with every entry of another map added. A few changes copy only their
+	 * paths, but once the changes are a big enough part of the map it is cheaper to merge
+	 * both into a new tree, so the cost is never much more than the size of the changes
+	 * times the height of the tree, or the size of the map, whichever is smaller
+	 *
+	 * @param changes the entries to add, in natural order
+	 * @return returns the new map
+	 */
+	public PersistentTreeMap<K, V> withAll(SortedMap<K, ? extends V> changes) {
+		whole();
+		if (changes.isEmpty()) {
+			return this;
+		}
+		int size = size(root);
+		if ((long) changes.size() * (height(root) + 1) < size) {
+			Node<K, V> changed = root;
+			for (var entry : changes.entrySet()) {
+				changed = put(changed, Objects.requireNonNull(entry.getKey()), entry.getValue());
+			}
+			return new PersistentTreeMap<>(changed);
+		}
+
+		// merge the two sorted sequences, a changed key replaces the old value
+		Object[] keys = new Object[size + changes.size()];
+		Object[] values = new Object[keys.length];
+		int merged = 0;
+		Iterator<Node<K, V>> old = new Walk(root, null, false, true, null, false, true, false);
+		Node<K, V> next = old.hasNext() ? old.next() : null;
+		for (var entry : changes.entrySet()) {
+			K key = Objects.requireNonNull(entry.getKey());
+			while (next != null && next.key.compareTo(key) < 0) {
+				keys[merged] = next.key;
+				values[merged++] = next.value;
+				next = old.hasNext() ? old.next() : null;
+			}
+			if (next != null && next.key.compareTo(key) == 0) {
+				next = old.hasNext() ? old.next() : null;
+			}
+			keys[merged] = key;
+			values[merged++] = entry.getValue();
+		}
+		while (next != null) {
+			keys[merged] = next.key;
+			values[merged++] = next.value;
+			next = old.hasNext() ? old.next() : null;
+		}
+		return new PersistentTreeMap<>(PersistentTreeMap.<K, V>build(keys, values, 0, merged));
+	}
+
+	/**
+	 * Makes sure this is a whole map and not a view, views can't be added to
+	 */
+	private void whole() {
+		if (!fromStart || !toEnd || descending) {
+			throw new UnsupportedOperationException("Only a whole map can be added to");
+		}
+	}
+
+	/**
+	 * One entry of the tree, never changed once made
+	 *
+	 * @param <K> the type of keys
+	 * @param <V> the type of values
+	 */
+	private static final class Node<K, V> implements Map.Entry<K, V> {
+		/** The key */
+		private final K key;
+
+		/** The value */
+		private final V value;
+
+		/** The smaller keys */
+		private final Node<K, V> left;
+
+		/** The bigger keys */
+		private final Node<K, V> right;
+
+		/** Number of entries in this subtree */
+		private final int size;
+
+		/** Height of this subtree */
+		private final int height;
+
+		/**
+		 * @param key the key
+		 * @param value the value
+		 * @param left the smaller keys
+		 * @param right the bigger keys
+		 */
+		private Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.size = size(left) + size(right) + 1;
+			this.height = Math.max(height(left), height(right)) + 1;
+		}
+
+		@Override
+		public K getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Map.Entry<?, ?> entry && key.equals(entry.getKey()) && Objects.equals(value, entry.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ Objects.hashCode(value);
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * @param node a subtree or null
+	 * @return returns its size
+	 */
+	private static int size(Node<?, ?> node) {
+		return node == null ? 0 : node.size;
+	}
+
+	/**
+	 * @param node a subtree or null
+	 * @return returns its height
+	 */
+	private static int height(Node<?, ?> node) {
+		return node == null ? 0 : node.height;
+	}
+
+	/**
+	 * Adds a key to a subtree, copying the path to it
+	 *
+	 * @param <K> the type of keys
+	 * @param <V> the type of values
+	 * @param node the subtree
+	 * @param key the key
+	 * @param value the value
+	 * @return returns the new subtree
+	 */
+	private static <K extends Comparable<? super K>, V> Node<K, V> put(Node<K, V> node, K key, V value) {
+		if (node == null) {
+			return new Node<>(key, value, null, null);
+		}
+		int compared = key.compareTo(node.key);
+		if (compared < 0) {
+			return balance(node.key, node.value, put(node.left, key, value), node.right);
+		}
+		if (compared > 0) {
+			return balance(node.key, node.value, node.left, put(node.right, key, value));
+		}
+		return new Node<>(node.key, value, node.left, node.right);
+	}
+
+	/**
+	 * Makes a node out of two subtrees whose heights differ by at most two, rotating if
+	 * they differ by two
+	 *
+	 * @param <K> the type of keys
+	 * @param <V> the type of values
+	 * @param key the key
+	 * @param value the value
+	 * @param left the smaller keys
+	 * @param right the bigger keys
+	 * @return returns the balanced subtree
+	 */
+	private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+		if (height(left) > height(right) + 1) {
+			if (height(left.left) >= height(left.right)) {
+				return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+			}
+			Node<K, V> middle = left.right;
+			return new Node<>(middle.key, middle.value, new Node<>(left.key, left.value, left.left, middle.left), new Node<>(key, value, middle.right, right));
+		}
+		if (height(right) > height(left) + 1) {
+			if (height(right.right) >= height(right.left)) {
+				return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+			}
+			Node<K, V> middle = right.left;
+			return new Node<>(middle.key, middle.value, new Node<>(key, value, left, middle.left), new Node<>(right.key, right.value, middle.right, right.right));
+		}
+		return new Node<>(key, value, left, right);
+	}
+
+	/**
+	 * Builds a balanced tree from sorted entries
+	 *
+	 * @param <K> the type of keys
+	 * @param <V> the type of values
+	 * @param keys the keys in order
+	 * @param values the value of each key
+	 * @param from the first entry
+	 * @param to the end of the entries
+	 * @return returns the tree
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V> build(Object[] keys, Object[] values, int from, int to) {
+		if (from >= to) {
+			return null;
+		}
+		int middle = (from + to) >>> 1;
+		return new Node<>((K) keys[middle], (V) values[middle], build(keys, values, from, middle), build(keys, values, middle + 1, to));
+	}
+
+	/**
+	 * @param key a key
+	 * @return returns true if the key is below the view
+	 */
+	private boolean tooLow(K key) {
+		if (fromStart) {
+			return false;
+		}
+		int compared = key.compareTo(lo);
+		return compared < 0 || (compared == 0 && !loInclusive);
+	}
+
+	/**
+	 * @param key a key
+	 * @return returns true if the key is above the view
+	 */
+	private boolean tooHigh(K key) {
+		if (toEnd) {
+			return false;
+		}
+		int compared = key.compareTo(hi);
+		return compared > 0 || (compared == 0 && !hiInclusive);
+	}
+
+	/**
+	 * @param key a key
+	 * @return returns true if the key is in the view
+	 */
+	private boolean inRange(K key) {
+		return !tooLow(key) && !tooHigh(key);
+	}
+
+	/**
+	 * Checks a bound of a smaller view is within this one, the same way {@link java.util.TreeMap} does
+	 *
+	 * @param key the bound
+	 * @param inclusive whether the bound itself is in the smaller view
+	 * @return returns true if the bound can be used
+	 */
+	private boolean allowed(K key, boolean inclusive) {
+		if (inclusive) {
+			return inRange(key);
+		}
+		return (fromStart || key.compareTo(lo) >= 0) && (toEnd || key.compareTo(hi) <= 0);
+	}
+
+	/**
+	 * @param key a key
+	 * @param inclusive whether the key itself counts
+	 * @return returns the lowest node of the tree at or above the key, or null
+	 */
+	private Node<K, V> ceiling(K key, boolean inclusive) {
+		Node<K, V> best = null;
+		Node<K, V> node = root;
+		while (node != null) {
+			int compared = key.compareTo(node.key);
+			if (compared == 0 && inclusive) {
+				return node;
+			}
+			if (compared < 0) {
+				best = node;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param key a key
+	 * @param inclusive whether the key itself counts
+	 * @return returns the highest node of the tree at or below the key, or null
+	 */
+	private Node<K, V> floor(K key, boolean inclusive) {
+		Node<K, V> best = null;
+		Node<K, V> node = root;
+		while (node != null) {
+			int compared = key.compareTo(node.key);
+			if (compared == 0 && inclusive) {
+				return node;
+			}
+			if (compared > 0) {
+				best = node;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return returns the node with the lowest key in the view, or null
+	 */
+	private Node<K, V> lowest() {
+		Node<K, V> node;
+		if (fromStart) {
+			node = root;
+			while (node != null && node.left != null) {
+				node = node.left;
+			}
+		} else {
+			node = ceiling(lo, loInclusive);
+		}
+		return node == null || tooHigh(node.key) ? null : node;
+	}
+
+	/**
+	 * @return returns the node with the highest key in the view, or null
+	 */
+	private Node<K, V> highest() {
+		Node<K, V> node;
+		if (toEnd) {
+			node = root;
+			while (node != null && node.right != null) {
+				node = node.right;
+			}
+		} else {
+			node = floor(hi, hiInclusive);
+		}
+		return node == null || tooLow(node.key) ? null : node;
+	}
+
+	/**
+	 * @param key a key
+	 * @param inclusive whether the key itself counts
+	 * @return returns the lowest node in the view at or above the key, or null
+	 */
+	private Node<K, V> above(K key, boolean inclusive) {
+		if (tooLow(key)) {
+			return lowest();
+		}
+		Node<K, V> node = ceiling(key, inclusive);
+		return node == null || tooHigh(node.key) ? null : node;
+	}
+
+	/**
+	 * @param key a key
+	 * @param inclusive whether the key itself counts
+	 * @return returns the highest node in the view at or below the key, or null
+	 */
+	private Node<K, V> below(K key, boolean inclusive) {
+		if (tooHigh(key)) {
+			return highest();
+		}
+		Node<K, V> node = floor(key, inclusive);
+		return node == null || tooLow(node.key) ? null : node;
+	}
+
+	/**
+	 * @param key a key
+	 * @param inclusive whether the key itself counts
+	 * @return returns the number of keys in the tree below the key, or at or below it if inclusive
+	 */
+	private int rank(K key, boolean inclusive) {
+		int rank = 0;
+		Node<K, V> node = root;
+		while (node != null) {
+			int compared = key.compareTo(node.key);
+			if (compared < 0 || (compared == 0 && !inclusive)) {
+				node = node.left;
+			} else {
+				rank += size(node.left) + 1;
+				node = node.right;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * @param <K> the type of keys
+	 * @param node a node or null
+	 * @return returns its key
+	 * @throws NoSuchElementException if there is no node
+	 */
+	private static <K> K key(Node<K, ?> node) {
+		if (node == null) {
+			throw new NoSuchElementException();
+		}
+		return node.key;
+	}
+
+	/**
+	 * @param <K> the type of keys
+	 * @param node a node or null
+	 * @return returns its key, or null if there is no node
+	 */
+	private static <K> K keyOrNull(Node<K, ?> node) {
+		return node == null ? null : node.key;
+	}
+
+	/**
+	 * @param key the key to look for, of the map's key type
+	 * @return returns the node of the key in the view, or null
+	 */
+	@SuppressWarnings("unchecked")
+	private Node<K, V> find(Object key) {
+		K wanted = (K) Objects.requireNonNull(key);
+		if (!inRange(wanted)) {
+			return null;
+		}
+		Node<K, V> node = root;
+		while (node != null) {
+			int compared = wanted.compareTo(node.key);
+			if (compared == 0) {
+				return node;
+			}
+			node = compared < 0 ? node.left : node.right;
+		}
+		return null;
+	}
+
+	@Override
+	public V get(Object key) {
+		Node<K, V> node = find(key);
+		return node == null ? null : node.value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) != null;
+	}
+
+	@Override
+	public int size() {
+		int end = toEnd ? size(root) : rank(hi, hiInclusive);
+		int start = fromStart ? 0 : rank(lo, !loInclusive);
+		return Math.max(0, end - start);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return lowest() == null;
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				Iterator<Node<K, V>> nodes = new Walk(root, lo, loInclusive, fromStart, hi, hiInclusive, toEnd, descending);
+				return new Iterator<>() {
+					@Override
+					public boolean hasNext() {
+						return nodes.hasNext();
+					}
+
+					@Override
+					public Map.Entry<K, V> next() {
+						return nodes.next();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return PersistentTreeMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return descending ? Collections.reverseOrder() : null;
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return descending ? highest() : lowest();
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return descending ? lowest() : highest();
+	}
+
+	@Override
+	public K firstKey() {
+		return key(descending ? highest() : lowest());
+	}
+
+	@Override
+	public K lastKey() {
+		return key(descending ? lowest() : highest());
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return descending ? below(key, true) : above(key, true);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return keyOrNull(descending ? below(key, true) : above(key, true));
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		return descending ? below(key, false) : above(key, false);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return keyOrNull(descending ? below(key, false) : above(key, false));
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		return descending ? above(key, true) : below(key, true);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return keyOrNull(descending ? above(key, true) : below(key, true));
+	}
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return descending ? above(key, false) : below(key, false);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return keyOrNull(descending ? above(key, false) : below(key, false));
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> descendingMap() {
+		return new PersistentTreeMap<>(root, lo, loInclusive, fromStart, hi, hiInclusive, toEnd, !descending);
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return new Keys<>(this);
+	}
+
+	@Override
+	public NavigableSet<K> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	/**
+	 * Makes a view of the keys between two keys in ascending order, within this view
+	 *
+	 * @param low the lowest key, or null to keep this view's
+	 * @param lowInclusive whether the lowest key is in the view
+	 * @param high the highest key, or null to keep this view's
+	 * @param highInclusive whether the highest key is in the view
+	 * @return returns the view
+	 */
+	private PersistentTreeMap<K, V> range(K low, boolean lowInclusive, K high, boolean highInclusive) {
+		if (low != null && high != null && low.compareTo(high) > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		if ((low != null && !allowed(low, lowInclusive)) || (high != null && !allowed(high, highInclusive))) {
+			throw new IllegalArgumentException("key out of range");
+		}
+		K newLo = low == null ? lo : low;
+		boolean newLoInclusive = low == null ? loInclusive : lowInclusive;
+		boolean newFromStart = low == null && fromStart;
+		K newHi = high == null ? hi : high;
+		boolean newHiInclusive = high == null ? hiInclusive : highInclusive;
+		boolean newToEnd = high == null && toEnd;
+		return new PersistentTreeMap<>(root, newLo, newLoInclusive, newFromStart, newHi, newHiInclusive, newToEnd, descending);
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		Objects.requireNonNull(fromKey);
+		Objects.requireNonNull(toKey);
+		if (descending) {
+			if (fromKey.compareTo(toKey) < 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+			return range(toKey, toInclusive, fromKey, fromInclusive);
+		}
+		return range(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> headMap(K toKey, boolean inclusive) {
+		Objects.requireNonNull(toKey);
+		return descending ? range(toKey, inclusive, null, false) : range(null, false, toKey, inclusive);
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		Objects.requireNonNull(fromKey);
+		return descending ? range(null, false, fromKey, inclusive) : range(fromKey, inclusive, null, false);
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public PersistentTreeMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * Walks the nodes of a range of a tree in order, keeping the path still to visit
+	 */
+	private final class Walk implements Iterator<Node<K, V>> {
+		/** Nodes still to visit, the next one on top */
+		private final Object[] stack;
+
+		/** Number of nodes on the stack */
+		private int depth;
+
+		/** The highest key to visit in the walking direction, ignored if unbounded */
+		private final K end;
+
+		/** Whether the end key itself is visited */
+		private final boolean endInclusive;
+
+		/** True if there is no end key */
+		private final boolean unbounded;
+
+		/** True to walk from the highest key down */
+		private final boolean reverse;
+
+		/**
+		 * Starts a walk at the first key of a range
+		 *
+		 * @param root the tree
+		 * @param lo the lowest key
+		 * @param loInclusive whether the lowest key is visited
+		 * @param fromStart true if there is no lowest key
+		 * @param hi the highest key
+		 * @param hiInclusive whether the highest key is visited
+		 * @param toEnd true if there is no highest key
+		 * @param reverse true to walk from the highest key down
+		 */
+		private Walk(Node<K, V> root, K lo, boolean loInclusive, boolean fromStart, K hi, boolean hiInclusive, boolean toEnd, boolean reverse) {
+			this.stack = new Object[height(root) + 1];
+			this.depth = 0;
+			this.reverse = reverse;
+			this.end = reverse ? lo : hi;
+			this.endInclusive = reverse ? loInclusive : hiInclusive;
+			this.unbounded = reverse ? fromStart : toEnd;
+			K start = reverse ? hi : lo;
+			boolean startInclusive = reverse ? hiInclusive : loInclusive;
+			boolean open = reverse ? toEnd : fromStart;
+
+			Node<K, V> node = root;
+			while (node != null) {
+				int compared = open ? 1 : (reverse ? start.compareTo(node.key) : node.key.compareTo(start));
+				if (compared > 0 || (compared == 0 && startInclusive)) {
+					stack[depth++] = node;
+					node = reverse ? node.right : node.left;
+				} else {
+					node = reverse ? node.left : node.right;
+				}
+			}
+		}
+
+		/**
+		 * @return returns the next node without moving past it, or null
+		 */
+		@SuppressWarnings("unchecked")
+		private Node<K, V> peek() {
+			return depth == 0 ? null : (Node<K, V>) stack[depth - 1];
+		}
+
+		@Override
+		public boolean hasNext() {
+			Node<K, V> next = peek();
+			if (next == null) {
+				return false;
+			}
+			if (unbounded) {
+				return true;
+			}
+			int compared = reverse ? end.compareTo(next.key) : next.key.compareTo(end);
+			return compared < 0 || (compared == 0 && endInclusive);
+		}
+
+		@Override
+		public Node<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Node<K, V> next = peek();
+			depth--;
+			Node<K, V> node = reverse ? next.left : next.right;
+			while (node != null) {
+				stack[depth++] = node;
+				node = reverse ? node.right : node.left;
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * The keys of a map or view, in its order
+	 *
+	 * @param <K> the type of keys
+	 */
+	private static final class Keys<K extends Comparable<? super K>> extends AbstractSet<K> implements NavigableSet<K> {
+		/** The map or view */
+		private final PersistentTreeMap<K, ?> map;
+
+		/**
+		 * @param map the map or view
+		 */
+		private Keys(PersistentTreeMap<K, ?> map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			Iterator<? extends Map.Entry<K, ?>> entries = map.entrySet().iterator();
+			return new Iterator<>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return entries.next().getKey();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object key) {
+			return map.containsKey(key);
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return map.comparator();
+		}
+
+		@Override
+		public K first() {
+			return map.firstKey();
+		}
+
+		@Override
+		public K last() {
+			return map.lastKey();
+		}
+
+		@Override
+		public K lower(K key) {
+			return map.lowerKey(key);
+		}
+
+		@Override
+		public K floor(K key) {
+			return map.floorKey(key);
+		}
+
+		@Override
+		public K ceiling(K key) {
+			return map.ceilingKey(key);
+		}
+
+		@Override
+		public K higher(K key) {
+			return map.higherKey(key);
+		}
+
+		@Override
+		public K pollFirst() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public K pollLast() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return map.descendingKeySet();
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return map.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return map.headMap(toElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return map.tailMap(fromElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package edu.usfca.cs272;
+
+import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * A single clause of a positional query, either a quoted phrase or a lone word.
+ *
+ * Quoted text like {@code "foo bar"} must appear as consecutive words, and
+ * {@code "foo bar"~3} lets the words appear in order with up to 3 other words
+ * between the first and the last. Words outside of quotes are clauses of their own,
+ * so {@code "foo bar" baz} matches the phrase or the word.
+ */
+public class PhraseQuery {
+	/** Regular expression that matches a quoted phrase and its optional slop */
+	public static final Pattern PHRASE_REGEX = Pattern.compile("\"([^\"]*)\"(?:~(\\d+))?");
+
+	/** Stems of the phrase in the order they have to appear */
+	private final List<String> terms;
+
+	/** Number of extra words allowed inside the phrase, 0 for an exact phrase */
+	private final int slop;
+
+	/**
+	 * Constructor for PhraseQuery
+	 *
+	 * @param terms stems of the phrase in order
+	 * @param slop number of extra words allowed inside the phrase
+	 */
+	public PhraseQuery(List<String> terms, int slop) {
+		this.terms = List.copyOf(terms);
+		this.slop = terms.size() > 1 ? slop : 0;
+	}
+
+	/**
+	 * @return returns the stems of this phrase in order
+	 */
+	public List<String> getTerms() {
+		return terms;
+	}
+
+	/**
+	 * @return returns the number of extra words allowed inside the phrase
+	 */
+	public int getSlop() {
+		return slop;
+	}
+
+	/**
+	 * Checks whether a query line uses quotes and needs to be parsed as phrases
+	 *
+	 * @param line the query line
+	 * @return returns true if the line has a quote in it
+	 */
+	public static boolean isPhrase(String line) {
+		return line.indexOf('"') >= 0;
+	}
+
+	/**
+	 * Parses a query line into its unique clauses, sorted by their text
+	 *
+	 * @param line the query line
+	 * @param stemmer the stemmer to use
+	 * @return returns the clauses, or an empty list if nothing was left after stemming
+	 */
+	public static List<PhraseQuery> parse(String line, Stemmer stemmer) {
+		TreeMap<String, PhraseQuery> clauses = new TreeMap<>();
+		Matcher matcher = PHRASE_REGEX.matcher(line);
+		StringBuilder rest = new StringBuilder();
+		int last = 0;
+
+		while (matcher.find()) {
+			rest.append(line, last, matcher.start()).append(' ');
+			last = matcher.end();
+
+			ArrayList<String> stems = FileStemmer.listStems(matcher.group(1), stemmer);
+			if (!stems.isEmpty()) {
+				int slop = matcher.group(2) == null ? 0 : parseSlop(matcher.group(2));
+				PhraseQuery phrase = new PhraseQuery(stems, slop);
+				clauses.put(phrase.toString(), phrase);
+			}
+		}
+		rest.append(line, last, line.length());
+
+		for (String stem : FileStemmer.uniqueStems(rest.toString(), stemmer)) {
+			clauses.put(stem, new PhraseQuery(List.of(stem), 0));
+		}
+		return new ArrayList<>(clauses.values());
+	}
+
+	/**
+	 * Parses the slop of a phrase, anything too big for an int allows any distance
+	 *
+	 * @param digits the digits after the tilde
+	 * @return returns the slop
+	 */
+	private static int parseSlop(String digits) {
+		try {
+			return Integer.parseInt(digits);
+		} catch(NumberFormatException e) {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Parses a query line into its unique clauses using the default stemmer for English
+	 *
+	 * @param line the query line
+	 * @return returns the clauses
+	 * @see #parse(String, Stemmer)
+	 */
+	public static List<PhraseQuery> parse(String line) {
+		return parse(line, new SnowballStemmer(ENGLISH));
+	}
+
+	/**
+	 * Joins parsed clauses into the key used to store their results
+	 *
+	 * @param clauses the parsed clauses
+	 * @return returns the clauses joined by spaces
+	 */
+	public static String join(List<PhraseQuery> clauses) {
+		ArrayList<String> parts = new ArrayList<>();
+		for (PhraseQuery clause : clauses) {
+			parts.add(clause.toString());
+		}
+		return String.join(" ", parts);
+	}
+
+	/**
+	 * Counts how many times this phrase occurs in one document
+	 *
+	 * @param positions sorted word positions of each term in this document, in term order
+	 * @return returns the number of positions the phrase starts at
+	 */
+	public int count(int[][] positions) {
+		if (positions.length == 1) {
+			return positions[0].length;
+		}
+		return slop == 0 ? countExact(positions) : countNear(positions);
+	}
+
+	/**
+	 * Counts exact phrases. The term with the fewest positions drives the search and
+	 * every other term is galloped forward to where it would have to be.
+	 *
+	 * @param positions sorted positions of each term
+	 * @return returns the number of matches
+	 */
+	private static int countExact(int[][] positions) {
+		int rarest = 0;
+		for (int i = 1; i < positions.length; i++) {
+			if (positions[i].length < positions[rarest].length) {
+				rarest = i;
+			}
+		}
+
+		int[] cursors = new int[positions.length];
+		int matches = 0;
+
+		outer:
+		for (int position : positions[rarest]) {
+			int start = position - rarest;
+			for (int i = 0; i < positions.length; i++) {
+				if (i == rarest) {
+					continue;
+				}
+				cursors[i] = gallop(positions[i], cursors[i], start + i);
+				if (cursors[i] == positions[i].length) {
+					break outer;
+				}
+				if (positions[i][cursors[i]] != start + i) {
+					continue outer;
+				}
+			}
+			matches++;
+		}
+		return matches;
+	}
+
+	/**
+	 * Counts phrases with slop. From each position of the first term, every following
+	 * term is galloped to its next position after the one before it, which gives the
+	 * shortest ordered window starting there.
+	 *
+	 * @param positions sorted positions of each term
+	 * @return returns the number of matches
+	 */
+	private int countNear(int[][] positions) {
+		int[] cursors = new int[positions.length];
+		int words = positions.length - 1;
+		int matches = 0;
+
+		for (int start : positions[0]) {
+			int current = start;
+			for (int i = 1; i < positions.length; i++) {
+				cursors[i] = gallop(positions[i], cursors[i], current + 1);
+				if (cursors[i] == positions[i].length) {
+					return matches;
+				}
+				current = positions[i][cursors[i]];
+			}
+			if (current - start - words <= slop) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Exponential search for the first element at or after from that is at least target.
+	 * Steps double until they pass the target, then a binary search finishes inside the
+	 * last step, so short moves cost little even in long arrays.
+	 *
+	 * @param sorted the sorted array
+	 * @param from the index to start from
+	 * @param target the value to find
+	 * @return returns the index found, or the array length if there is none
+	 */
+	public static int gallop(int[] sorted, int from, int target) {
+		if (from >= sorted.length || sorted[from] >= target) {
+			return from;
+		}
+		int low = from;
+		int step = 1;
+		while (low + step < sorted.length && sorted[low + step] < target) {
+			low += step;
+			step <<= 1;
+		}
+		int high = Math.min(sorted.length, low + step + 1);
+		int found = Arrays.binarySearch(sorted, low + 1, high, target);
+		return found >= 0 ? found : -found - 1;
+	}
+
+	@Override
+	public String toString() {
+		if (terms.size() == 1) {
+			return terms.get(0);
+		}
+		String phrase = "\"" + String.join(" ", terms) + "\"";
+		return slop > 0 ? phrase + "~" + slop : phrase;
+	}
+}
@@ -0,0 +1,363 @@
+package edu.usfca.cs272;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compact, read-only copy of a single word's postings from {@link InvertedIndex}.
+ * Postings are kept as parallel arrays sorted by document id, and are split into
+ * fixed-size blocks that each remember the largest score contribution found in
+ * the block so searches can skip whole blocks that cannot matter.
+ *
+ * The score contribution of a posting is {@code count / wordCount(location)},
+ * which sums to the same score {@link InvertedIndex.Result} uses. Lists made by
+ * {@link #union(List)} or {@link #intersect(List, List)} keep the block skip data
+ * but have no score bounds, lists made by {@link #union(List, int[])} have both.
+ */
+public class PostingList {
+	/** Number of postings per block */
+	public static final int BLOCK_SIZE = 64;
+
+	/** Document ids in increasing order */
+	private final int[] documents;
+
+	/** Number of times the word appears in the matching document */
+	private final int[] counts;
+
+	/** Posting index of each posting in location order, null when that is document order */
+	private final int[] byLocation;
+
+	/** Last document id in each block */
+	private final int[] blockLast;
+
+	/** Largest score contribution in each block */
+	private final double[] blockMax;
+
+	/** Largest score contribution in the whole list */
+	private final double maxScore;
+
+	/**
+	 * Builds the posting list from a word's inner index map
+	 *
+	 * @param postings the location to positions map for a single word
+	 * @param ids looks up the document id of a location
+	 * @param lengths word count of each document by id
+	 */
+	public PostingList(Map<String, ? extends Set<Integer>> postings, ToIntFunction<String> ids, int[] lengths) {
+		int size = postings.size();
+		int[] found = new int[size];
+		double[] lookup = new double[size];
+		long[] packed = new long[size];
+		int i = 0;
+
+		// scores are worked out once per posting here instead of once per search
+		for (var entry : postings.entrySet()) {
+			int id = ids.applyAsInt(entry.getKey());
+			found[i] = entry.getValue().size();
+			lookup[i] = found[i] / (double) lengths[id];
+			// document id in the high bits so sorting the longs sorts by document
+			packed[i] = ((long) id << 32) | i;
+			i++;
+		}
+		Arrays.sort(packed);
+
+		this.documents = new int[size];
+		this.counts = new int[size];
+		this.byLocation = new int[size];
+		double[] scores = new double[size];
+		for (i = 0; i < size; i++) {
+			int original = (int) packed[i];
+			documents[i] = (int) (packed[i] >>> 32);
+			counts[i] = found[original];
+			scores[i] = lookup[original];
+			byLocation[original] = i;
+		}
+
+		int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		this.blockLast = new int[blocks];
+		this.blockMax = new double[blocks];
+		double max = 0;
+		for (int block = 0; block < blocks; block++) {
+			int end = Math.min(size, (block + 1) * BLOCK_SIZE);
+			double blockScore = 0;
+			for (int j = block * BLOCK_SIZE; j < end; j++) {
+				blockScore = Math.max(blockScore, scores[j]);
+			}
+			blockLast[block] = documents[end - 1];
+			blockMax[block] = blockScore;
+			max = Math.max(max, blockScore);
+		}
+		this.maxScore = max;
+	}
+
+	/**
+	 * Builds a list from postings that are already sorted by document, without score bounds
+	 *
+	 * @param documents document ids in increasing order
+	 * @param counts the count of each document
+	 */
+	private PostingList(int[] documents, int[] counts) {
+		this(documents, counts, null);
+	}
+
+	/**
+	 * Builds a list from postings that are already sorted by document
+	 *
+	 * @param documents document ids in increasing order
+	 * @param counts the count of each document
+	 * @param lengths word count of each document by id, or null for no score bounds
+	 */
+	private PostingList(int[] documents, int[] counts, int[] lengths) {
+		this.documents = documents;
+		this.counts = counts;
+		this.byLocation = null;
+
+		int blocks = (documents.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		this.blockLast = new int[blocks];
+		this.blockMax = new double[blocks];
+		double max = 0;
+		for (int block = 0; block < blocks; block++) {
+			int end = Math.min(documents.length, (block + 1) * BLOCK_SIZE);
+			blockLast[block] = documents[end - 1];
+			if (lengths != null) {
+				for (int j = block * BLOCK_SIZE; j < end; j++) {
+					blockMax[block] = Math.max(blockMax[block], counts[j] / (double) lengths[documents[j]]);
+				}
+				max = Math.max(max, blockMax[block]);
+			}
+		}
+		this.maxScore = max;
+	}
+
+	/**
+	 * Makes a list of every document in any of the lists, adding up their counts
+	 *
+	 * @param lists the lists to combine
+	 * @return returns the combined list
+	 */
+	public static PostingList union(List<PostingList> lists) {
+		return union(lists, null);
+	}
+
+	/**
+	 * Makes a list of every document in any of the lists, adding up their counts, with
+	 * score bounds so a top-k search can skip through it like a single word's list. Once
+	 * the {@link Deadline} of the search passes, only the postings gathered so far are combined
+	 *
+	 * @param lists the lists to combine
+	 * @param lengths word count of each document by id, or null for no score bounds
+	 * @return returns the combined list
+	 */
+	public static PostingList union(List<PostingList> lists, int[] lengths) {
+		if (lists.size() == 1) {
+			return lists.get(0);
+		}
+		int total = 0;
+		for (PostingList list : lists) {
+			total += list.size();
+		}
+
+		Deadline deadline = Deadline.current();
+		long[] packed = new long[total];
+		int i = 0;
+		gather:
+		for (PostingList list : lists) {
+			for (int j = 0; j < list.size(); j++) {
+				if (deadline != null && i > 0 && i % Deadline.CHECK_EVERY == 0 && deadline.expired()) {
+					break gather;
+				}
+				packed[i++] = ((long) list.documents[j] << 32) | list.counts[j];
+			}
+		}
+		Arrays.sort(packed, 0, i);
+
+		int[] documents = new int[i];
+		int[] counts = new int[i];
+		int size = 0;
+		for (int k = 0; k < i; k++) {
+			long posting = packed[k];
+			int document = (int) (posting >>> 32);
+			if (size > 0 && documents[size - 1] == document) {
+				counts[size - 1] += (int) posting;
+			} else {
+				documents[size] = document;
+				counts[size] = (int) posting;
+				size++;
+			}
+		}
+		return new PostingList(Arrays.copyOf(documents, size), Arrays.copyOf(counts, size), lengths);
+	}
+
+	/**
+	 * Makes a list of the documents in every included list and none of the excluded ones,
+	 * adding up the included counts. The shortest list drives and the others skip
+	 * ahead to it, so the work follows the rarest list instead of the total size.
+	 * Once the {@link Deadline} of the search passes it stops with the documents found so far.
+	 *
+	 * @param include the lists every document must be in, at least one
+	 * @param exclude the lists no document may be in
+	 * @return returns the combined list
+	 */
+	public static PostingList intersect(List<PostingList> include, List<PostingList> exclude) {
+		PostingList[] lists = include.toArray(new PostingList[0]);
+		Arrays.sort(lists, Comparator.comparingInt(PostingList::size));
+		int[] cursors = new int[lists.length];
+		int[] skips = new int[exclude.size()];
+
+		PostingList rarest = lists[0];
+		int[] documents = new int[rarest.size()];
+		int[] counts = new int[rarest.size()];
+		int size = 0;
+		Deadline deadline = Deadline.current();
+		int steps = 0;
+
+		outer:
+		while (cursors[0] < rarest.size()) {
+			if (deadline != null && ++steps % Deadline.CHECK_EVERY == 0 && deadline.expired()) {
+				break;
+			}
+			int document = rarest.documents[cursors[0]];
+			int count = rarest.counts[cursors[0]];
+
+			for (int i = 1; i < lists.length; i++) {
+				cursors[i] = lists[i].advance(cursors[i], document);
+				if (cursors[i] == lists[i].size()) {
+					break outer;
+				}
+				int other = lists[i].documents[cursors[i]];
+				if (other != document) {
+					// leapfrog, the rarest list can skip straight to the other document
+					cursors[0] = rarest.advance(cursors[0], other);
+					continue outer;
+				}
+				count += lists[i].counts[cursors[i]];
+			}
+
+			cursors[0]++;
+			for (int i = 0; i < skips.length; i++) {
+				PostingList excluded = exclude.get(i);
+				skips[i] = excluded.advance(skips[i], document);
+				if (skips[i] < excluded.size() && excluded.documents[skips[i]] == document) {
+					continue outer;
+				}
+			}
+			documents[size] = document;
+			counts[size] = count;
+			size++;
+		}
+		return new PostingList(Arrays.copyOf(documents, size), Arrays.copyOf(counts, size));
+	}
+
+	/**
+	 * @return returns an empty list
+	 */
+	public static PostingList empty() {
+		return new PostingList(new int[0], new int[0]);
+	}
+
+	/**
+	 * @return returns the number of documents in this list
+	 */
+	public int size() {
+		return documents.length;
+	}
+
+	/**
+	 * @param i the posting index
+	 * @return returns the document id at that posting
+	 */
+	public int document(int i) {
+		return documents[i];
+	}
+
+	/**
+	 * @param i the posting index
+	 * @return returns the word count at that posting
+	 */
+	public int count(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * @param i the index in location order
+	 * @return returns the posting index of the i-th posting by location
+	 */
+	public int byLocation(int i) {
+		return byLocation == null ? i : byLocation[i];
+	}
+
+	/**
+	 * @return returns the largest score contribution in this list
+	 */
+	public double maxScore() {
+		return maxScore;
+	}
+
+	/**
+	 * @param i the posting index
+	 * @return returns the block the posting belongs to
+	 */
+	public int block(int i) {
+		return i / BLOCK_SIZE;
+	}
+
+	/**
+	 * @param block the block number
+	 * @return returns the last document id in the block
+	 */
+	public int blockLast(int block) {
+		return blockLast[block];
+	}
+
+	/**
+	 * @param block the block number
+	 * @return returns the largest score contribution in the block
+	 */
+	public double blockMax(int block) {
+		return blockMax[block];
+	}
+
+	/**
+	 * Finds the first posting at or after start whose document is at least target.
+	 * Skips whole blocks using the block last document ids before searching inside one.
+	 *
+	 * @param start the posting index to start from
+	 * @param target the document id to look for
+	 * @return returns the posting index, or size() if there is none
+	 */
+	public int advance(int start, int target) {
+		if (start >= documents.length || documents[start] >= target) {
+			return start;
+		}
+		int block = block(start);
+		while (block < blockLast.length && blockLast[block] < target) {
+			block++;
+		}
+		if (block == blockLast.length) {
+			return documents.length;
+		}
+		int from = Math.max(start, block * BLOCK_SIZE);
+		int to = Math.min(documents.length, (block + 1) * BLOCK_SIZE);
+		int found = Arrays.binarySearch(documents, from, to, target);
+		return found >= 0 ? found : -found - 1;
+	}
+
+	/**
+	 * Finds the block that would hold the target document, starting from a block.
+	 * Only block metadata is read, none of the postings themselves.
+	 *
+	 * @param block the block to start from
+	 * @param target the document id to look for
+	 * @return returns the block number, or -1 if the target is past the last block
+	 */
+	public int shallowAdvance(int block, int target) {
+		while (block < blockLast.length && blockLast[block] < target) {
+			block++;
+		}
+		return block < blockLast.length ? block : -1;
+	}
+}
@@ -0,0 +1,210 @@
+package edu.usfca.cs272;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of what partial search prefixes expand into, so type-ahead style queries
+ * for popular short prefixes don't walk and merge every word starting with them on every
+ * search. Each prefix keeps the postings of all its words merged into one list, see
+ * {@link PostingList#union(java.util.List, int[])}.
+ *
+ * The cache holds at most a set number of bytes of postings and drops the least recently
+ * used prefix to make room. It belongs to one version of one index and is cleared when the
+ * index changes, copies made with {@link #fresh()} for newer versions share the settings
+ * and the hit and miss counts.
+ *
+ * It also holds the cap on how many words a prefix expands into. A prefix matching more
+ * words than that only keeps the words in the most documents.
+ */
+public class PrefixCache {
+	/** Default size of the cache in bytes */
+	public static final long DEFAULT_BYTES = 16L * 1024 * 1024;
+
+	/** Rough heap cost of one cached posting, its document, count, and share of the block data */
+	private static final long BYTES_PER_POSTING = 9;
+
+	/** Rough heap cost of a cache entry without its postings */
+	private static final long BYTES_PER_ENTRY = 160;
+
+	/** The merged postings by prefix, in least recently used order */
+	private final LinkedHashMap<String, QueryPlan.Term> entries;
+
+	/** Maximum size of the cached postings in bytes */
+	private final long capacity;
+
+	/** Most words a prefix expands into, 0 or less for no cap */
+	private final int maxExpansions;
+
+	/** Estimated size of the cached postings in bytes */
+	private long size;
+
+	/** Number of lookups answered from the cache */
+	private final LongAdder hits;
+
+	/** Number of lookups that had to merge */
+	private final LongAdder misses;
+
+	/** Number of entries dropped to make room */
+	private final LongAdder evictions;
+
+	/**
+	 * Constructor for PrefixCache
+	 *
+	 * @param capacity maximum size of the cached postings in bytes, 0 to not cache
+	 * @param maxExpansions most words a prefix expands into, 0 or less for no cap
+	 */
+	public PrefixCache(long capacity, int maxExpansions) {
+		this(capacity, maxExpansions, new LongAdder(), new LongAdder(), new LongAdder());
+	}
+
+	/**
+	 * @param capacity maximum size of the cached postings in bytes
+	 * @param maxExpansions most words a prefix expands into
+	 * @param hits number of lookups answered from the cache
+	 * @param misses number of lookups that had to merge
+	 * @param evictions number of entries dropped to make room
+	 */
+	private PrefixCache(long capacity, int maxExpansions, LongAdder hits, LongAdder misses, LongAdder evictions) {
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.capacity = Math.max(0, capacity);
+		this.maxExpansions = Math.max(0, maxExpansions);
+		this.size = 0;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	/**
+	 * Makes an empty cache with the same settings for a newer version of the index. The
+	 * counts are shared, so they cover every version
+	 *
+	 * @return returns the new cache
+	 */
+	public PrefixCache fresh() {
+		return new PrefixCache(capacity, maxExpansions, hits, misses, evictions);
+	}
+
+	/**
+	 * Returns the cached merged postings of a prefix, merging and caching them if needed.
+	 * The merge runs without holding the cache. Postings cut short by a {@link Deadline}
+	 * are not cached
+	 *
+	 * @param prefix the prefix
+	 * @param merge merges the postings of every word starting with the prefix
+	 * @return returns the merged postings
+	 */
+	public QueryPlan.Term get(String prefix, Supplier<QueryPlan.Term> merge) {
+		synchronized (this) {
+			QueryPlan.Term cached = entries.get(prefix);
+			if (cached != null) {
+				hits.increment();
+				return cached;
+			}
+		}
+
+		misses.increment();
+		QueryPlan.Term merged = merge.get();
+		Deadline deadline = Deadline.current();
+		if (deadline == null || !deadline.reached()) {
+			put(prefix, merged);
+		}
+		return merged;
+	}
+
+	/**
+	 * Caches merged postings, making room if needed
+	 *
+	 * @param prefix the prefix
+	 * @param merged the merged postings
+	 */
+	private synchronized void put(String prefix, QueryPlan.Term merged) {
+		long bytes = bytes(prefix, merged);
+		if (bytes > capacity || entries.containsKey(prefix)) {
+			return;
+		}
+		Iterator<Map.Entry<String, QueryPlan.Term>> eldest = entries.entrySet().iterator();
+		while (size + bytes > capacity && eldest.hasNext()) {
+			Map.Entry<String, QueryPlan.Term> victim = eldest.next();
+			size -= bytes(victim.getKey(), victim.getValue());
+			eldest.remove();
+			evictions.increment();
+		}
+		entries.put(prefix, merged);
+		size += bytes;
+	}
+
+	/**
+	 * Drops everything cached, called when the index changes
+	 */
+	public synchronized void clear() {
+		if (!entries.isEmpty()) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * @param prefix the prefix
+	 * @param merged the merged postings
+	 * @return returns the estimated size of an entry in bytes
+	 */
+	private static long bytes(String prefix, QueryPlan.Term merged) {
+		return BYTES_PER_ENTRY + prefix.length() * 2L + merged.documents() * BYTES_PER_POSTING;
+	}
+
+	/**
+	 * @return returns the most words a prefix expands into, 0 for no cap
+	 */
+	public int maxExpansions() {
+		return maxExpansions;
+	}
+
+	/**
+	 * @return returns the number of cached prefixes
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return returns the estimated size of the cached postings in bytes
+	 */
+	public synchronized long bytes() {
+		return size;
+	}
+
+	/**
+	 * @return returns the number of lookups answered from the cache
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return returns the number of lookups that had to merge
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return returns the number of entries dropped to make room
+	 */
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		long hits = hits();
+		long total = hits + misses();
+		return String.format("Prefix cache: %d prefixes, %.1f of %.1f MB, %,d hits, %,d misses (%.1f%% hit rate), %,d evicted, %s",
+				size(), bytes() / (1024.0 * 1024.0), capacity / (1024.0 * 1024.0), hits, misses(),
+				total == 0 ? 0 : 100.0 * hits / total, evictions(),
+				maxExpansions == 0 ? "no expansion cap" : "at most " + maxExpansions + " words per prefix");
+	}
+}
@@ -13,6 +13,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import edu.usfca.cs272.InvertedIndex.Result;
 import opennlp.tools.stemmer.Stemmer;
@@ -24,15 +25,30 @@ import opennlp.tools.stemmer.snowball.SnowballStemmer;
 public class QueryBuilder implements QueryBuilderInterface {
 
 	/**
-	 * Total results and their keys (lines or single words)
+	 * Total results and their keys (lines or single words), only queries that were built
 	 */
-	private final TreeMap<String, ArrayList<Result>> results;
+	private final TreeMap<String, List<Result>> results;
+
+	/**
+	 * Recent results of every query, including ones that were only searched
+	 */
+	private final ResultCache cache;
 
 	/**
 	 * Either partial or exact search, this will be true if partial search, false if exact
 	 */
 	private final boolean partial;
 
+	/**
+	 * Whether bag-of-words queries are scored with BM25 instead of count over word count
+	 */
+	private final boolean bm25;
+
+	/**
+	 * Most edits bag-of-words query words can be from the words they match, 0 for no fuzzy matching
+	 */
+	private final int fuzzy;
+
 	/**
 	 * Shared stemmer, since we are single threaded this is ok to use so we don't have to create more
 	 */
@@ -43,6 +59,21 @@ public class QueryBuilder implements QueryBuilderInterface {
 	 */
 	private final Function<Set<String>, ArrayList<Result>> searchFunction;
 
+	/**
+	 * Function call to the phrase search in index, used for lines with quotes
+	 */
+	private final Function<List<PhraseQuery>, ArrayList<Result>> phraseFunction;
+
+	/**
+	 * Function call to the boolean search in index, used for lines with AND, OR, or NOT
+	 */
+	private final Function<BooleanQuery, ArrayList<Result>> booleanFunction;
+
+	/**
+	 * Function call to the planners in index, used to explain a line without searching
+	 */
+	private final Function<String, QueryPlan> planFunction;
+
 	/**
 	 * Constructor for QueryBuilder class
 	 *
@@ -50,10 +81,81 @@ public class QueryBuilder implements QueryBuilderInterface {
 	 * @param partial the type of search being done
 	 */
 	public QueryBuilder(InvertedIndex index, boolean partial) {
+		this(index, partial, 0);
+	}
+
+	/**
+	 * Constructor for QueryBuilder class that only keeps the top results of each query
+	 *
+	 * @param index the specific InvertedIndex used for this QueryBuilder instance
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 */
+	public QueryBuilder(InvertedIndex index, boolean partial, int limit) {
+		this(index, partial, limit, false);
+	}
+
+	/**
+	 * Constructor for QueryBuilder class that can score with BM25, see {@link Bm25}
+	 *
+	 * @param index the specific InvertedIndex used for this QueryBuilder instance
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether bag-of-words queries are scored with BM25, phrase and boolean queries keep the default scoring
+	 */
+	public QueryBuilder(InvertedIndex index, boolean partial, int limit, boolean bm25) {
+		this(index, partial, limit, bm25, new ResultCache(index));
+	}
+
+	/**
+	 * Constructor for QueryBuilder class with the cache to keep recent results in
+	 *
+	 * @param index the specific InvertedIndex used for this QueryBuilder instance
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether bag-of-words queries are scored with BM25, phrase and boolean queries keep the default scoring
+	 * @param cache the cache for results of this index
+	 */
+	public QueryBuilder(InvertedIndex index, boolean partial, int limit, boolean bm25, ResultCache cache) {
+		this(index, partial, limit, bm25, 0, cache);
+	}
+
+	/**
+	 * Constructor for QueryBuilder class with the cache to keep recent results in and fuzzy matching
+	 *
+	 * @param index the specific InvertedIndex used for this QueryBuilder instance
+	 * @param partial the type of search being done
+	 * @param limit the number of results to keep per query, all of them if 0 or less
+	 * @param bm25 whether bag-of-words queries are scored with BM25, phrase and boolean queries keep the default scoring
+	 * @param fuzzy most edits bag-of-words query words can be from the words they match, 0 for no fuzzy matching, see {@link InvertedIndex#fuzzySearch(Set, int, boolean, boolean, int)}
+	 * @param cache the cache for results of this index
+	 */
+	public QueryBuilder(InvertedIndex index, boolean partial, int limit, boolean bm25, int fuzzy, ResultCache cache) {
 		this.results = new TreeMap<>();
+		this.cache = cache;
 		this.partial = partial;
+		this.bm25 = bm25;
+		this.fuzzy = fuzzy;
 		this.stemmer = new SnowballStemmer(ENGLISH);
-		this.searchFunction = partial ? index::partialSearch : index::exactSearch;
+		if (fuzzy > 0) {
+			this.searchFunction = words -> index.fuzzySearch(words, fuzzy, partial, bm25, limit);
+		} else if (bm25) {
+			this.searchFunction = words -> index.bm25Search(words, partial, limit);
+		} else {
+			this.searchFunction = partial ? words -> index.partialSearch(words, limit) : words -> index.exactSearch(words, limit);
+		}
+		this.phraseFunction = phrases -> index.phraseSearch(phrases, limit);
+		this.booleanFunction = query -> index.booleanSearch(query, partial, limit);
+		this.planFunction = line -> {
+			if (BooleanQuery.isBoolean(line)) {
+				return index.plan(new BooleanQuery(line, stemmer), partial, limit);
+			}
+			if (PhraseQuery.isPhrase(line)) {
+				return index.plan(PhraseQuery.parse(line, stemmer), limit);
+			}
+			TreeSet<String> stemmedWords = FileStemmer.uniqueStems(line, stemmer);
+			return fuzzy > 0 ? index.fuzzyPlan(stemmedWords, fuzzy, partial, bm25, limit) : index.plan(stemmedWords, partial, bm25, limit);
+		};
 	}
 
 	@Override
@@ -72,6 +174,16 @@ public class QueryBuilder implements QueryBuilderInterface {
 		return this.partial;
 	}
 
+	@Override
+	public boolean getBm25() {
+		return this.bm25;
+	}
+
+	@Override
+	public int getFuzzy() {
+		return this.fuzzy;
+	}
+
 	@Override
 	public boolean contains(String line) {
 		return results.containsKey(stemmedJoin(line));
@@ -96,24 +208,73 @@ public class QueryBuilder implements QueryBuilderInterface {
 
 	@Override
 	public String stemmedJoin(String line) {
+		if (BooleanQuery.isBoolean(line)) {
+			return new BooleanQuery(line, stemmer).toString();
+		}
+		if (PhraseQuery.isPhrase(line)) {
+			return PhraseQuery.join(PhraseQuery.parse(line, stemmer));
+		}
 		TreeSet<String> stemmedWords = FileStemmer.uniqueStems(line, stemmer);
 		return String.join(" ", stemmedWords);
 	}
 
+	/**
+	 * Searches the line and stores its results, so they are part of the output
+	 */
 	@Override
 	public void build(String line) {
-		search(line);
+		search(line, true);
 	}
 
+	/**
+	 * Searches the line without storing its results, answering from the cache if it can
+	 */
 	@Override
 	public List<Result> search(String line) {
+		return search(line, false);
+	}
+
+	@Override
+	public QueryPlan explain(String line) {
+		return planFunction.apply(line);
+	}
+
+	/**
+	 * Parses and searches a line
+	 *
+	 * @param line the query line
+	 * @param store whether to store the results for output
+	 * @return returns the results
+	 */
+	private List<Result> search(String line, boolean store) {
+		if (BooleanQuery.isBoolean(line)) {
+			BooleanQuery query = new BooleanQuery(line, stemmer);
+			return query.isEmpty() ? Collections.emptyList() : search(query.toString(), () -> booleanFunction.apply(query), store);
+		}
+		if (PhraseQuery.isPhrase(line)) {
+			List<PhraseQuery> phrases = PhraseQuery.parse(line, stemmer);
+			return phrases.isEmpty() ? Collections.emptyList() : search(PhraseQuery.join(phrases), () -> phraseFunction.apply(phrases), store);
+		}
 		TreeSet<String> stemmedWords = FileStemmer.uniqueStems(line, stemmer);
-		String joined = String.join(" ", stemmedWords);
-		if(!stemmedWords.isEmpty() && !results.containsKey(joined)) {
-			var result = searchFunction.apply(stemmedWords);
-			results.put(joined, result);
-			return result;
+		return stemmedWords.isEmpty() ? Collections.emptyList() : search(String.join(" ", stemmedWords), () -> searchFunction.apply(stemmedWords), store);
+	}
+
+	/**
+	 * Gets the results of a joined query from the cache, searching if they are not cached
+	 *
+	 * @param joined the joined query used as the results key
+	 * @param search runs the search
+	 * @param store whether to store the results for output
+	 * @return returns the results
+	 */
+	private List<Result> search(String joined, Supplier<ArrayList<Result>> search, boolean store) {
+		if (store && results.containsKey(joined)) {
+			return results.get(joined);
+		}
+		List<Result> found = cache.get(joined, search);
+		if (store) {
+			results.put(joined, found);
 		}
-		return Collections.emptyList();
+		return found;
 	}
-}
\ No newline at end of file
+}
@@ -40,11 +40,19 @@ public interface QueryBuilderInterface {
 
 	/**
 	 * Stems the line and returns the joined result of the stemmed set
+	 * Lines with quotes are joined by their phrases instead, see {@link PhraseQuery},
+	 * and lines with operators by their parsed form, see {@link BooleanQuery}
 	 *
 	 * @param line the line of text to stem and join
 	 * @return returns a joined String of stems
 	 */
 	public default String stemmedJoin(String line) {
+		if (BooleanQuery.isBoolean(line)) {
+			return new BooleanQuery(line).toString();
+		}
+		if (PhraseQuery.isPhrase(line)) {
+			return PhraseQuery.join(PhraseQuery.parse(line));
+		}
 		TreeSet<String> stemmedWords = FileStemmer.uniqueStems(line);
 		return String.join(" ", stemmedWords);
 	}
@@ -71,6 +79,23 @@ public interface QueryBuilderInterface {
 	 */
 	public boolean getPartial();
 
+	/**
+	 * Gets whether this class instance scores with BM25
+	 *
+	 * @return returns bm25's boolean value
+	 */
+	public boolean getBm25();
+
+	/**
+	 * Gets how many edits bag-of-words query words can be from the words they match, see
+	 * {@link InvertedIndex#fuzzySearch(java.util.Set, int, boolean, boolean, int)}
+	 *
+	 * @return returns the most edits, 0 if words match exactly or by prefix
+	 */
+	public default int getFuzzy() {
+		return 0;
+	}
+
 	/**
 	 * returns whether the given line exists in the results key set
 	 *
@@ -104,6 +129,18 @@ public interface QueryBuilderInterface {
 		}
 	}
 
+	/**
+	 * Builds every query in a file as one batch, so queries that share words can share the
+	 * work of looking them up. Results are the same as {@link #build(Path)}, which builders
+	 * that can't batch fall back to
+	 *
+	 * @param path path of query file
+	 * @throws IOException throws IOException
+	 */
+	public default void buildBatch(Path path) throws IOException {
+		build(path);
+	}
+
 	/**
 	 * Builds a single query and puts it into local dataSet using either partial
 	 * or exact search based on class member "partial"
@@ -117,4 +154,26 @@ public interface QueryBuilderInterface {
 	 * @return returns query results
 	 */
 	public List<Result> search(String line);
+
+	/**
+	 * Searches under a time budget. If the budget runs out the best results found so far
+	 * are returned and {@link Deadline#reached()} is true
+	 *
+	 * @param line query
+	 * @param deadline the time budget
+	 * @return returns query results, partial if the deadline was reached
+	 */
+	public default List<Result> search(String line, Deadline deadline) {
+		return deadline.run(() -> search(line));
+	}
+
+	/**
+	 * Plans a query without searching, to find out why it is slow, see {@link QueryPlan}
+	 *
+	 * @param line query
+	 * @return returns the plan, or null if this builder doesn't search an index of its own
+	 */
+	public default QueryPlan explain(String line) {
+		return null;
+	}
 }
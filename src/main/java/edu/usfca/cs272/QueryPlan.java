@@ -0,0 +1,422 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * How a search will run, planned from how many documents each query word is in before
+ * any postings are counted. Made by the {@code plan} methods of {@link InvertedIndex}.
+ *
+ * A bag-of-words query none of whose words are in the index is answered without searching.
+ * Otherwise the plan picks between counting every posting, split across threads when there
+ * are enough of them, and a pruned top-k search with {@link WandSearcher} that skips
+ * documents that can't make the top results. Counting everything wins when there are few
+ * postings, when every result is wanted, or when a short prefix expanded into so many words
+ * that WAND can skip little. Phrases and AND queries are walked rarest word first and
+ * skipped outright when a word they need isn't in the index.
+ *
+ * {@link #toString()} explains the plan, words listed rarest first, for finding out why a
+ * query is slow.
+ */
+public class QueryPlan {
+	/** How a search runs */
+	public enum Strategy {
+		/** Nothing can match, no postings are looked at */
+		EMPTY,
+		/** Every posting is counted on the searching thread */
+		EXHAUSTIVE,
+		/** Every posting is counted, split across the fork-join pool */
+		PARALLEL,
+		/** Top-k search that skips documents that can't make the results */
+		PRUNED,
+		/** The rarest word's postings are walked and the other words skip ahead to them */
+		INTERSECT,
+		/** Every shard plans its own part of the index */
+		SHARDED
+	}
+
+	/** Most posting lists a pruned search is used for */
+	public static final int WIDE = 64;
+
+	/** Fewest postings a pruned search is used for, below this counting them all is cheaper */
+	public static final int PRUNE_MIN = 2048;
+
+	/** What kind of search this is, like "partial search, top 10" */
+	private final String description;
+
+	/** The query's words in the order they were given */
+	private final List<Term> terms;
+
+	/** The chosen strategy */
+	private final Strategy strategy;
+
+	/** Why the strategy was chosen */
+	private final String reason;
+
+	/** Number of results kept, all of them if 0 or less */
+	private final int limit;
+
+	/** The plans of every shard, empty if the index isn't sharded */
+	private final List<QueryPlan> shards;
+
+	/**
+	 * Constructor for QueryPlan, use the static methods instead
+	 *
+	 * @param description what kind of search this is
+	 * @param terms the query's words
+	 * @param strategy the chosen strategy
+	 * @param reason why it was chosen
+	 * @param limit number of results kept
+	 * @param shards the plans of every shard
+	 */
+	private QueryPlan(String description, List<Term> terms, Strategy strategy, String reason, int limit, List<QueryPlan> shards) {
+		this.description = description;
+		this.terms = List.copyOf(terms);
+		this.strategy = strategy;
+		this.reason = reason;
+		this.limit = limit;
+		this.shards = List.copyOf(shards);
+	}
+
+	/**
+	 * Plans a bag-of-words search
+	 *
+	 * @param terms the query's words and their posting lists
+	 * @param partial whether each word matches every word it is a prefix of
+	 * @param bm25 whether the search scores with BM25
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public static QueryPlan words(List<Term> terms, boolean partial, boolean bm25, int limit) {
+		return words((partial ? "partial" : "exact") + (bm25 ? " BM25" : "") + " search, "
+				+ (limit > 0 ? "top " + limit : "every result"), terms, bm25, limit);
+	}
+
+	/**
+	 * Plans a fuzzy search, which runs like a bag-of-words search over the matched words
+	 *
+	 * @param terms the query's words and the posting lists of the words they matched
+	 * @param distance most edits a matched word can be from a query word
+	 * @param partial whether a word also matched if only its start was within the distance
+	 * @param bm25 whether the search scores with BM25
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public static QueryPlan fuzzy(List<Term> terms, int distance, boolean partial, boolean bm25, int limit) {
+		return words("fuzzy " + (partial ? "partial" : "exact") + (bm25 ? " BM25" : "") + " search within "
+				+ distance + (distance == 1 ? " edit, " : " edits, ") + (limit > 0 ? "top " + limit : "every result"), terms, bm25, limit);
+	}
+
+	/**
+	 * @param description what kind of search this is
+	 * @param terms the query's words and their posting lists
+	 * @param bm25 whether the search scores with BM25
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	private static QueryPlan words(String description, List<Term> terms, boolean bm25, int limit) {
+		long postings = postings(terms);
+		int lists = 0;
+		for (Term term : terms) {
+			lists += term.lists.size();
+		}
+
+		Strategy strategy;
+		String reason;
+		if (postings == 0) {
+			strategy = Strategy.EMPTY;
+			reason = "no query word is in the index";
+		} else if (bm25) {
+			strategy = Strategy.EXHAUSTIVE;
+			reason = String.format("BM25 scores all %,d postings", postings);
+		} else if (limit > 0 && lists < WIDE && postings >= Math.max(PRUNE_MIN, 4L * limit)) {
+			strategy = Strategy.PRUNED;
+			reason = String.format("WAND over %d posting lists, %,d postings at most", lists, postings);
+		} else {
+			if (limit <= 0) {
+				reason = "every result is wanted";
+			} else if (lists >= WIDE) {
+				reason = String.format("%d posting lists are too many to prune", lists);
+			} else {
+				reason = "too few postings to prune";
+			}
+			strategy = postings >= Accumulator.PARALLEL_THRESHOLD ? Strategy.PARALLEL : Strategy.EXHAUSTIVE;
+			reason = String.format("counts all %,d postings, %s", postings, reason);
+		}
+		return new QueryPlan(description, terms, strategy, reason, limit, List.of());
+	}
+
+	/**
+	 * Plans a phrase search. Every phrase is found by walking its rarest word, and phrases
+	 * with a word that isn't in the index are skipped
+	 *
+	 * @param phrases the parsed clauses of the query
+	 * @param terms every word used by the clauses and its posting list
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public static QueryPlan phrases(List<PhraseQuery> phrases, List<Term> terms, int limit) {
+		LinkedHashMap<String, Term> byWord = new LinkedHashMap<>();
+		for (Term term : terms) {
+			byWord.put(term.word, term);
+		}
+
+		ArrayList<String> steps = new ArrayList<>();
+		boolean empty = true;
+		for (PhraseQuery phrase : phrases) {
+			List<Term> used = phrase.getTerms().stream().distinct().map(byWord::get).sorted(Term.RAREST).toList();
+			String clause = phrase.toString();
+			if (used.get(0).documents == 0) {
+				steps.add(clause + " skipped, " + used.get(0).word + " is not in the index");
+			} else if (used.size() == 1) {
+				empty = false;
+				steps.add(String.format("%s counted, %,d documents", clause, used.get(0).documents));
+			} else {
+				empty = false;
+				steps.add(String.format("%s walks %s, checks at most %,d documents", clause, used.get(0).word, used.get(0).documents));
+			}
+		}
+		String description = "phrase search, " + (limit > 0 ? "top " + limit : "every result");
+		return new QueryPlan(description, terms, empty ? Strategy.EMPTY : Strategy.INTERSECT, String.join("; ", steps), limit, List.of());
+	}
+
+	/**
+	 * Plans a boolean search, see {@link BooleanQuery#explain(java.util.function.ToLongFunction)}
+	 *
+	 * @param explained the query with the estimated documents of every part, in the order they are evaluated
+	 * @param estimate the estimated number of matching documents
+	 * @param limit the number of results to return, all of them if 0 or less
+	 * @return returns the plan
+	 */
+	public static QueryPlan bool(String explained, long estimate, int limit) {
+		String description = "boolean search, " + (limit > 0 ? "top " + limit : "every result");
+		String reason = estimate == 0 ? "nothing can match " + explained : String.format("%s, at most %,d documents", explained, estimate);
+		return new QueryPlan(description, List.of(), estimate == 0 ? Strategy.EMPTY : Strategy.INTERSECT, reason, limit, List.of());
+	}
+
+	/**
+	 * Combines the plans of every shard of a sharded index. Document counts are added up,
+	 * and a partial word's expansions are those of the shard with the most
+	 *
+	 * @param shards the plan of each shard
+	 * @return returns the combined plan
+	 */
+	public static QueryPlan sharded(List<QueryPlan> shards) {
+		LinkedHashMap<String, Term> merged = new LinkedHashMap<>();
+		for (QueryPlan shard : shards) {
+			for (Term term : shard.terms) {
+				merged.merge(term.word, term, Term::merge);
+			}
+		}
+		QueryPlan first = shards.get(0);
+		String reason = String.format("%d shards plan their own part", shards.size());
+		return new QueryPlan(first.description, new ArrayList<>(merged.values()), Strategy.SHARDED, reason, first.limit, shards);
+	}
+
+	/**
+	 * @return returns the chosen strategy
+	 */
+	public Strategy strategy() {
+		return strategy;
+	}
+
+	/**
+	 * @return returns the number of results kept, all of them if 0 or less
+	 */
+	public int limit() {
+		return limit;
+	}
+
+	/**
+	 * @return returns the query's words in the order they were given
+	 */
+	public List<Term> terms() {
+		return terms;
+	}
+
+	/**
+	 * @return returns the plans of every shard, empty if the index isn't sharded
+	 */
+	public List<QueryPlan> shards() {
+		return shards;
+	}
+
+	/**
+	 * Gets the posting lists to search, in the order of the query's words. Counting adds up
+	 * the same whatever the order, so the order the words were given in is kept
+	 *
+	 * @return returns the posting lists of every word
+	 */
+	List<PostingList> lists() {
+		ArrayList<PostingList> lists = new ArrayList<>();
+		for (Term term : terms) {
+			lists.addAll(term.lists);
+		}
+		return lists;
+	}
+
+	/**
+	 * @param terms the words
+	 * @return returns the total postings of the words
+	 */
+	private static long postings(List<Term> terms) {
+		long postings = 0;
+		for (Term term : terms) {
+			postings += term.documents;
+		}
+		return postings;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		append(text, "");
+		return text.toString().stripTrailing();
+	}
+
+	/**
+	 * Writes this plan, indenting every line
+	 *
+	 * @param text where to write
+	 * @param indent the indent
+	 */
+	private void append(StringBuilder text, String indent) {
+		text.append(indent).append(description).append('\n');
+		text.append(indent).append("  ").append(strategy).append(": ").append(reason).append('\n');
+		for (Term term : terms.stream().sorted(Term.RAREST).toList()) {
+			text.append(indent).append("  ").append(term).append('\n');
+		}
+		for (int i = 0; i < shards.size(); i++) {
+			text.append(indent).append("  shard ").append(i + 1).append(":\n");
+			shards.get(i).append(text, indent + "    ");
+		}
+	}
+
+	/**
+	 * One word of a query and what it matches in the index
+	 */
+	public static class Term {
+		/** Orders terms by the documents they are in, rarest first */
+		public static final Comparator<Term> RAREST = Comparator.comparingLong(Term::documents).thenComparing(Term::word);
+
+		/** The stem */
+		private final String word;
+
+		/** Number of words in the index the stem matches, more than one for a partial search */
+		private final int expansions;
+
+		/** True if the stem matched more words than the expansion cap and only some were kept */
+		private final boolean capped;
+
+		/** Number of postings of every matched word added up */
+		private final long documents;
+
+		/** The posting lists of every matched word */
+		private final List<PostingList> lists;
+
+		/**
+		 * Constructor for Term
+		 *
+		 * @param word the stem
+		 * @param lists the posting lists of every word in the index it matches
+		 */
+		public Term(String word, List<PostingList> lists) {
+			this(word, lists, false);
+		}
+
+		/**
+		 * Constructor for Term
+		 *
+		 * @param word the stem
+		 * @param lists the posting lists of the words in the index it matches that were kept
+		 * @param capped true if it matched more words than the expansion cap
+		 */
+		public Term(String word, List<PostingList> lists, boolean capped) {
+			this(word, lists.size(), capped, lists.stream().mapToLong(PostingList::size).sum(), lists);
+		}
+
+		/**
+		 * @param word the stem
+		 * @param expansions number of words in the index the stem matches
+		 * @param capped true if it matched more words than the expansion cap
+		 * @param documents number of postings of every matched word added up
+		 * @param lists the posting lists of every matched word
+		 */
+		private Term(String word, int expansions, boolean capped, long documents, List<PostingList> lists) {
+			this.word = word;
+			this.expansions = expansions;
+			this.capped = capped;
+			this.documents = documents;
+			this.lists = List.copyOf(lists);
+		}
+
+		/**
+		 * Merges the posting lists of every matched word into one, counts added up, which
+		 * counts the same as searching them one at a time
+		 *
+		 * @param lengths word count of each document by id, for the score bounds
+		 * @return returns the term with one posting list
+		 */
+		public Term merged(int[] lengths) {
+			if (lists.size() <= 1) {
+				return this;
+			}
+			PostingList merged = PostingList.union(lists, lengths);
+			return new Term(word, expansions, capped, merged.size(), List.of(merged));
+		}
+
+		/**
+		 * @return returns the stem
+		 */
+		public String word() {
+			return word;
+		}
+
+		/**
+		 * @return returns the number of words in the index the stem matches
+		 */
+		public int expansions() {
+			return expansions;
+		}
+
+		/**
+		 * @return returns the posting lists of every matched word, one merged list for a cached prefix
+		 */
+		List<PostingList> lists() {
+			return lists;
+		}
+
+		/**
+		 * @return returns true if the stem matched more words than the expansion cap
+		 */
+		public boolean capped() {
+			return capped;
+		}
+
+		/**
+		 * @return returns the number of postings of every matched word added up, the number of
+		 *   documents the word is in for an exact search
+		 */
+		public long documents() {
+			return documents;
+		}
+
+		/**
+		 * @param other the same word in another shard
+		 * @return returns the word's numbers for both shards, without posting lists
+		 */
+		private Term merge(Term other) {
+			return new Term(word, Math.max(expansions, other.expansions), capped || other.capped, documents + other.documents, List.of());
+		}
+
+		@Override
+		public String toString() {
+			if (expansions == 1 || expansions == 0) {
+				return String.format("%s: %,d documents", word, documents);
+			}
+			return String.format("%s: %,d postings in %,d words%s", word, documents, expansions, capped ? ", capped" : "");
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package edu.usfca.cs272;
+
+import edu.usfca.cs272.MultiReaderLock.SimpleLock;
+
+/**
+ * Interface for the read/write locks used by {@link ThreadSafeInvertedIndex}
+ */
+public interface ReadWriteLockInterface {
+	/**
+	 * Returns the reader lock.
+	 *
+	 * @return the reader lock
+	 */
+	public SimpleLock readLock();
+
+	/**
+	 * Returns the writer lock.
+	 *
+	 * @return the writer lock
+	 */
+	public SimpleLock writeLock();
+
+	/**
+	 * Starts an optimistic read, one that takes no lock and is checked afterwards with
+	 * {@link #validate(long)}. Locks that don't support this always return 0
+	 *
+	 * @return returns a stamp to validate later, or 0 if the read has to take the read lock
+	 */
+	public default long tryOptimisticRead() {
+		return 0;
+	}
+
+	/**
+	 * Checks that nothing was written since an optimistic read started
+	 *
+	 * @param stamp the stamp from {@link #tryOptimisticRead()}
+	 * @return returns true if the values read since then can be trusted
+	 */
+	public default boolean validate(long stamp) {
+		return false;
+	}
+}
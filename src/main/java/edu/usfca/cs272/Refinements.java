@@ -0,0 +1,301 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counts of recent bag-of-words searches, so a query refined one word at a time, like
+ * {@code foo} then {@code foo bar} then {@code foo bar baz}, only counts the postings of the
+ * words that changed. A search starts from the counts of whichever recent search of the same
+ * index is closest to it, adding the postings of words it has that the recent search didn't
+ * and taking away the postings of words it dropped, see
+ * {@link InvertedIndex#setRefinements(Refinements)}.
+ *
+ * Counts are only kept for searches that counted every posting, not ones cut short by a
+ * {@link Deadline} or pruned with {@link WandSearcher}. They belong to one version of one
+ * index, a search never starts from counts of another version. Counts of an index that
+ * changed or was replaced by a newer copy are dropped the next time counts are kept or
+ * looked up, so they never hold an old copy of an index in memory. At most a set number
+ * of bytes are kept, counting the words and the kept search along with the counts, and
+ * the oldest search is dropped to make room.
+ */
+public class Refinements {
+	/** Default size of the kept counts in bytes */
+	public static final long DEFAULT_BYTES = 8L * 1024 * 1024;
+
+	/** Heap cost of one kept document, its id and count */
+	private static final long BYTES_PER_DOCUMENT = 8;
+
+	/** Rough heap cost of a kept search without its counts or words */
+	private static final long BYTES_PER_SEARCH = 160;
+
+	/** Rough heap cost of one kept word's set entry, not counting the word */
+	private static final long BYTES_PER_WORD = 40;
+
+	/** The kept searches, most recent first */
+	private final LinkedList<Search> searches;
+
+	/** Maximum size of the kept counts in bytes */
+	private final long capacity;
+
+	/** Estimated size of the kept counts in bytes */
+	private long size;
+
+	/** Number of searches that started from a recent search */
+	private final LongAdder refined;
+
+	/** Number of searches that counted every posting */
+	private final LongAdder counted;
+
+	/** Number of postings refined searches didn't count */
+	private final LongAdder skipped;
+
+	/**
+	 * Constructor for Refinements
+	 *
+	 * @param capacity maximum size of the kept counts in bytes, 0 to not keep any
+	 */
+	public Refinements(long capacity) {
+		this.searches = new LinkedList<>();
+		this.capacity = Math.max(0, capacity);
+		this.size = 0;
+		this.refined = new LongAdder();
+		this.counted = new LongAdder();
+		this.skipped = new LongAdder();
+	}
+
+	/**
+	 * Gets the kept searches a search of an index could start from, dropping every kept
+	 * search of an index that changed or was replaced since
+	 *
+	 * @param index the index being searched
+	 * @param partial whether the search is partial
+	 * @return returns the searches of the same version of the index, most recent first
+	 */
+	synchronized List<Search> recent(InvertedIndex index, boolean partial) {
+		drop();
+		ArrayList<Search> recent = new ArrayList<>();
+		for (Search search : searches) {
+			if (search.index == index && search.partial == partial) {
+				recent.add(search);
+			}
+		}
+		return recent;
+	}
+
+	/**
+	 * Keeps the counts of a search that counted every posting, making room if needed.
+	 * Nothing is kept if the index changed or was replaced while it was searched
+	 *
+	 * @param index the index that was searched
+	 * @param partial whether the search was partial
+	 * @param words the words searched for
+	 * @param accumulator the counts of the search
+	 */
+	void add(InvertedIndex index, boolean partial, Set<String> words, Accumulator accumulator) {
+		long bytes = BYTES_PER_SEARCH + accumulator.size() * BYTES_PER_DOCUMENT;
+		for (String word : words) {
+			bytes += BYTES_PER_WORD + size(word);
+		}
+		if (bytes > capacity) {
+			return;
+		}
+		long version = index.version();
+		int[] documents = accumulator.documents();
+		int[] counts = new int[documents.length];
+		for (int i = 0; i < documents.length; i++) {
+			counts[i] = accumulator.count(documents[i]);
+		}
+		Search search = new Search(index, version, partial, new TreeSet<>(words), documents, counts, bytes);
+
+		synchronized (this) {
+			drop();
+			if (stale(search)) {
+				return;
+			}
+			Iterator<Search> kept = searches.iterator();
+			while (kept.hasNext()) {
+				Search old = kept.next();
+				if (old.index == index && old.partial == partial && old.words.equals(search.words)) {
+					kept.remove();
+					size -= old.bytes;
+				}
+			}
+			while (size + bytes > capacity) {
+				size -= searches.removeLast().bytes;
+			}
+			searches.addFirst(search);
+			size += bytes;
+		}
+	}
+
+	/**
+	 * Drops every kept search whose counts can't be used again. Caller must hold the lock
+	 */
+	private void drop() {
+		Iterator<Search> kept = searches.iterator();
+		while (kept.hasNext()) {
+			Search search = kept.next();
+			if (stale(search)) {
+				kept.remove();
+				size -= search.bytes;
+			}
+		}
+	}
+
+	/**
+	 * @param search a kept search
+	 * @return returns true if its index changed or was replaced since it was searched
+	 */
+	private static boolean stale(Search search) {
+		return search.index.replaced() || search.version != search.index.version();
+	}
+
+	/**
+	 * Rough heap size of a String, its object header and fields plus its byte array,
+	 * assuming one byte per character and 8 byte alignment
+	 *
+	 * @param text the string
+	 * @return returns the estimated size in bytes
+	 */
+	private static long size(String text) {
+		return 24 + ((16 + text.length() + 7) / 8) * 8;
+	}
+
+	/**
+	 * Counts a search that started from a recent search
+	 *
+	 * @param postings the number of postings it didn't have to count
+	 */
+	void addRefined(long postings) {
+		refined.increment();
+		skipped.add(postings);
+	}
+
+	/**
+	 * Counts a search that had no recent search close enough to start from
+	 */
+	void addCounted() {
+		counted.increment();
+	}
+
+	/**
+	 * Drops every kept search
+	 */
+	public synchronized void clear() {
+		searches.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return returns the number of kept searches
+	 */
+	public synchronized int size() {
+		return searches.size();
+	}
+
+	/**
+	 * @return returns the estimated size of the kept counts in bytes
+	 */
+	public synchronized long bytes() {
+		return size;
+	}
+
+	/**
+	 * @return returns the number of searches that started from a recent search
+	 */
+	public long refined() {
+		return refined.sum();
+	}
+
+	/**
+	 * @return returns the number of searches that counted every posting
+	 */
+	public long counted() {
+		return counted.sum();
+	}
+
+	/**
+	 * @return returns the number of postings refined searches didn't count
+	 */
+	public long skipped() {
+		return skipped.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Refinements: %d searches, %.1f of %.1f MB, %,d refined, %,d counted in full, %,d postings skipped",
+				size(), bytes() / (1024.0 * 1024.0), capacity / (1024.0 * 1024.0), refined(), counted(), skipped());
+	}
+
+	/**
+	 * The counts of one search
+	 */
+	static class Search {
+		/** The index that was searched */
+		private final InvertedIndex index;
+
+		/** The version of the index that was searched */
+		private final long version;
+
+		/** Whether the search was partial */
+		private final boolean partial;
+
+		/** The words searched for */
+		private final Set<String> words;
+
+		/** The matching documents, in the order they were first counted */
+		private final int[] documents;
+
+		/** The count of each matching document */
+		private final int[] counts;
+
+		/** Estimated size in bytes */
+		private final long bytes;
+
+		/**
+		 * @param index the index that was searched
+		 * @param version the version of the index that was searched
+		 * @param partial whether the search was partial
+		 * @param words the words searched for
+		 * @param documents the matching documents
+		 * @param counts the count of each matching document
+		 * @param bytes estimated size in bytes
+		 */
+		private Search(InvertedIndex index, long version, boolean partial, Set<String> words, int[] documents, int[] counts, long bytes) {
+			this.index = index;
+			this.version = version;
+			this.partial = partial;
+			this.words = words;
+			this.documents = documents;
+			this.counts = counts;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return returns the words searched for
+		 */
+		Set<String> words() {
+			return words;
+		}
+
+		/**
+		 * @return returns the matching documents, in the order they were first counted
+		 */
+		int[] documents() {
+			return documents;
+		}
+
+		/**
+		 * @return returns the count of each matching document
+		 */
+		int[] counts() {
+			return counts;
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import edu.usfca.cs272.InvertedIndex.Result;
+
+/**
+ * A bounded cache of search results by joined query, so a long running server keeps
+ * the results of popular queries without keeping every query it was ever asked.
+ *
+ * The cache holds at most a set number of bytes of results, estimated from the number
+ * of results, and drops the least recently used query to make room. With admission on,
+ * the TinyLFU part of W-TinyLFU, a new query only replaces the least recently used one
+ * if it has been asked for more often recently, so a burst of one-off queries can't push
+ * out the popular ones. How often each query was asked is kept in a small count-min
+ * sketch that is halved every so often, so old popularity fades.
+ *
+ * Everything cached is dropped when the index changes, checked with
+ * {@link InvertedIndex#version()}, and entries can also expire after a set time.
+ */
+public class ResultCache {
+	/** Default size of the cache in bytes */
+	public static final long DEFAULT_BYTES = 32L * 1024 * 1024;
+
+	/** Rough heap cost of one cached result, the Result object and its place in the list */
+	private static final long BYTES_PER_RESULT = 48;
+
+	/** Rough heap cost of a cache entry without its results */
+	private static final long BYTES_PER_ENTRY = 128;
+
+	/** The cached results by joined query, in least recently used order */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/** How often each query was asked for recently */
+	private final FrequencySketch sketch;
+
+	/** Maximum size of the cached results in bytes */
+	private final long capacity;
+
+	/** True to only replace an entry with a query asked for more often */
+	private final boolean admission;
+
+	/** Time in nanoseconds an entry is kept, 0 to keep it until evicted */
+	private final long ttl;
+
+	/** Version of whatever the results came from, the cache is cleared when it changes */
+	private final LongSupplier version;
+
+	/** The version the cached results are from */
+	private long cachedVersion;
+
+	/** Estimated size of the cached results in bytes */
+	private long size;
+
+	/** Number of lookups answered from the cache */
+	private final LongAdder hits;
+
+	/** Number of lookups that had to search */
+	private final LongAdder misses;
+
+	/** Number of entries dropped to make room */
+	private final LongAdder evictions;
+
+	/** Number of results not cached since they weren't asked for more often than what they would replace */
+	private final LongAdder rejections;
+
+	/** Number of times everything was dropped since the index changed */
+	private final LongAdder invalidations;
+
+	/**
+	 * Constructor for ResultCache
+	 *
+	 * @param version returns the version of the index, see {@link InvertedIndex#version()}
+	 * @param capacity maximum size of the cached results in bytes
+	 * @param admission true for TinyLFU admission, false for plain least recently used
+	 * @param ttlMillis time in milliseconds an entry is kept, 0 or less to keep it until evicted
+	 */
+	public ResultCache(LongSupplier version, long capacity, boolean admission, long ttlMillis) {
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.capacity = Math.max(0, capacity);
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, this.capacity / 1024)));
+		this.admission = admission;
+		this.ttl = Math.max(0, ttlMillis) * 1_000_000;
+		this.version = version;
+		this.cachedVersion = version.getAsLong();
+		this.size = 0;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.rejections = new LongAdder();
+		this.invalidations = new LongAdder();
+	}
+
+	/**
+	 * Constructor for ResultCache with the default size and TinyLFU admission
+	 *
+	 * @param index the index the results come from
+	 */
+	public ResultCache(InvertedIndex index) {
+		this(index::version, DEFAULT_BYTES, true, 0);
+	}
+
+	/**
+	 * Returns the cached results of a query, searching and caching them if needed. The
+	 * search runs without holding the cache, so other queries aren't held up by it
+	 *
+	 * @param joined the joined query
+	 * @param search runs the search
+	 * @return returns the results
+	 */
+	public List<Result> get(String joined, Supplier<? extends List<Result>> search) {
+		return get(joined, search, () -> true);
+	}
+
+	/**
+	 * Returns the cached results of a query like {@link #get(String, Supplier)}, but only
+	 * caches them if the search says they are complete, for searches that can come back
+	 * missing results without running out of a {@link Deadline}
+	 *
+	 * @param joined the joined query
+	 * @param search runs the search
+	 * @param complete returns true, once the search ran, if its results are complete
+	 * @return returns the results
+	 */
+	public List<Result> get(String joined, Supplier<? extends List<Result>> search, BooleanSupplier complete) {
+		long current = version.getAsLong();
+		synchronized (this) {
+			if (current != cachedVersion) {
+				invalidate(current);
+			}
+			sketch.increment(joined);
+			Entry entry = entries.get(joined);
+			if (entry != null && (ttl == 0 || System.nanoTime() - entry.created < ttl)) {
+				hits.increment();
+				return entry.results;
+			}
+			if (entry != null) {
+				remove(joined);
+			}
+		}
+
+		misses.increment();
+		List<Result> results = List.copyOf(search.get());
+		Deadline deadline = Deadline.current();
+		if ((deadline == null || !deadline.reached()) && complete.getAsBoolean()) {
+			// results cut short by a deadline are only good for the search that asked for them
+			put(joined, results, current);
+		}
+		return results;
+	}
+
+	/**
+	 * Caches results if the index hasn't changed since the search started, making room if needed
+	 *
+	 * @param joined the joined query
+	 * @param results the results
+	 * @param searched the version the search ran on
+	 */
+	private synchronized void put(String joined, List<Result> results, long searched) {
+		if (searched != cachedVersion || entries.containsKey(joined)) {
+			return;
+		}
+		long bytes = size(joined, results);
+		if (bytes > capacity) {
+			return;
+		}
+
+		ArrayList<String> victims = new ArrayList<>();
+		long freed = 0;
+		Iterator<String> eldest = entries.keySet().iterator();
+		while (size - freed + bytes > capacity && eldest.hasNext()) {
+			String victim = eldest.next();
+			if (admission && sketch.frequency(victim) >= sketch.frequency(joined)) {
+				rejections.increment();
+				return;
+			}
+			victims.add(victim);
+			freed += entries.get(victim).bytes;
+		}
+
+		for (String victim : victims) {
+			remove(victim);
+			evictions.increment();
+		}
+		entries.put(joined, new Entry(results, bytes, System.nanoTime()));
+		size += bytes;
+	}
+
+	/**
+	 * @param joined the query to remove
+	 */
+	private void remove(String joined) {
+		Entry entry = entries.remove(joined);
+		if (entry != null) {
+			size -= entry.bytes;
+		}
+	}
+
+	/**
+	 * Drops everything cached from an older version of the index
+	 *
+	 * @param current the current version
+	 */
+	private void invalidate(long current) {
+		if (!entries.isEmpty()) {
+			invalidations.increment();
+		}
+		entries.clear();
+		size = 0;
+		cachedVersion = current;
+	}
+
+	/**
+	 * Drops everything cached
+	 */
+	public synchronized void clear() {
+		invalidate(version.getAsLong());
+	}
+
+	/**
+	 * @param joined the query
+	 * @param results the results
+	 * @return returns the estimated size of an entry in bytes
+	 */
+	private static long size(String joined, List<Result> results) {
+		return BYTES_PER_ENTRY + joined.length() * 2L + results.size() * BYTES_PER_RESULT;
+	}
+
+	/**
+	 * @return returns the number of cached queries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return returns the estimated size of the cached results in bytes
+	 */
+	public synchronized long bytes() {
+		return size;
+	}
+
+	/**
+	 * @return returns the number of lookups answered from the cache
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return returns the number of lookups that had to search
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return returns the number of entries dropped to make room
+	 */
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return returns the number of results not cached by admission
+	 */
+	public long rejections() {
+		return rejections.sum();
+	}
+
+	/**
+	 * @return returns the number of times the cache was cleared since the index changed
+	 */
+	public long invalidations() {
+		return invalidations.sum();
+	}
+
+	@Override
+	public String toString() {
+		long hits = hits();
+		long total = hits + misses();
+		return String.format("Result cache: %d queries, %.1f of %.1f MB, %,d hits, %,d misses (%.1f%% hit rate), %,d evicted, %,d rejected, %,d invalidations",
+				size(), bytes() / (1024.0 * 1024.0), capacity / (1024.0 * 1024.0), hits, misses(),
+				total == 0 ? 0 : 100.0 * hits / total, evictions(), rejections(), invalidations());
+	}
+
+	/**
+	 * Cached results of one query
+	 */
+	private static class Entry {
+		/** The results */
+		private final List<Result> results;
+
+		/** Estimated size in bytes */
+		private final long bytes;
+
+		/** When the entry was cached, in nanoseconds */
+		private final long created;
+
+		/**
+		 * @param results the results
+		 * @param bytes estimated size in bytes
+		 * @param created when the entry was cached
+		 */
+		private Entry(List<Result> results, long bytes, long created) {
+			this.results = results;
+			this.bytes = bytes;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Count-min sketch of how often keys were seen, four rows of small counters. Once it has
+	 * counted ten times as many keys as it has counters, every counter is halved
+	 */
+	private static class FrequencySketch {
+		/** Largest count kept per counter */
+		private static final int MAX = 15;
+
+		/** Seeds for the hash of each row */
+		private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+		/** The counters, one row after another */
+		private final byte[] counters;
+
+		/** Number of counters per row, a power of two */
+		private final int width;
+
+		/** Number of keys counted since the last halving */
+		private int added;
+
+		/**
+		 * @param width the number of counters per row, rounded up to a power of two
+		 */
+		private FrequencySketch(int width) {
+			this.width = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+			this.counters = new byte[this.width * SEEDS.length];
+			this.added = 0;
+		}
+
+		/**
+		 * @param key the key
+		 * @param row the row
+		 * @return returns the counter of the key in a row
+		 */
+		private int index(String key, int row) {
+			int hash = key.hashCode() * SEEDS[row];
+			hash ^= hash >>> 16;
+			return row * width + (hash & (width - 1));
+		}
+
+		/**
+		 * Counts a key, halving every counter if it is time to
+		 *
+		 * @param key the key
+		 */
+		private void increment(String key) {
+			for (int row = 0; row < SEEDS.length; row++) {
+				int i = index(key, row);
+				if (counters[i] < MAX) {
+					counters[i]++;
+				}
+			}
+			if (++added >= width * 10) {
+				for (int i = 0; i < counters.length; i++) {
+					counters[i] >>= 1;
+				}
+				added /= 2;
+			}
+		}
+
+		/**
+		 * @param key the key
+		 * @return returns the estimated number of times the key was counted recently
+		 */
+		private int frequency(String key) {
+			int min = MAX;
+			for (int row = 0; row < SEEDS.length; row++) {
+				min = Math.min(min, counters[index(key, row)]);
+			}
+			return min;
+		}
+	}
+}
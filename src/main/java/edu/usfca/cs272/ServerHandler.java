@@ -2,7 +2,10 @@ package edu.usfca.cs272;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
 import org.eclipse.jetty.server.Server;
@@ -24,13 +27,43 @@ public class ServerHandler {
 	/**The dataSet for the query results we have */
 	public final QueryBuilderInterface queries;
 
+	/** Header set on shard responses whose results were cut short by the time budget */
+	public static final String PARTIAL_HEADER = "X-Partial-Results";
+
+	/** Time budget of a search when the request doesn't give one, null for no budget */
+	public final Duration budget;
+
+	/** Suggests completions of what is being typed, null to leave /suggest out, like on a coordinator */
+	public final Autocomplete autocomplete;
+
 	/**
 	 * @param port port (default 8080)
 	 * @param queries queries
 	 */
 	public ServerHandler(int port, QueryBuilderInterface queries) {
+		this(port, queries, null, null);
+	}
+
+	/**
+	 * @param port port (default 8080)
+	 * @param queries queries
+	 * @param budget time budget of a search when the request doesn't give one, null for no budget
+	 */
+	public ServerHandler(int port, QueryBuilderInterface queries, Duration budget) {
+		this(port, queries, budget, null);
+	}
+
+	/**
+	 * @param port port (default 8080)
+	 * @param queries queries
+	 * @param budget time budget of a search when the request doesn't give one, null for no budget
+	 * @param autocomplete suggests completions for /suggest, null to leave it out
+	 */
+	public ServerHandler(int port, QueryBuilderInterface queries, Duration budget, Autocomplete autocomplete) {
 		this.port = port;
 		this.queries = queries;
+		this.budget = budget;
+		this.autocomplete = autocomplete;
 	}
 
 	/**
@@ -43,6 +76,11 @@ public class ServerHandler {
 
 		ServletContextHandler handler = new ServletContextHandler();
 		handler.addServlet(new SearchEngineServlet(), "/");
+		handler.addServlet(new ShardServlet(), "/shard");
+		handler.addServlet(new ExplainServlet(), "/explain");
+		if(autocomplete != null) {
+			handler.addServlet(new SuggestServlet(), "/suggest");
+		}
 		server.setHandler(handler);
 		server.start();
 		server.join();
@@ -53,20 +91,54 @@ public class ServerHandler {
 	 *
 	 * @param queryString the complete queryString from Http request
 	 * @param key the key we are looking for (q)
-	 * @return returns the String or null if not found
+	 * @return returns the String, empty if the key has no value, or null if not found
 	 * @CITE got help from a peer for this function and understanding why and what it was doing
 	 */
 	public static String getQueryValue(String queryString, String key) {
 		String[] pairs = queryString.split("&");
 		for(String pair : pairs) {
-			String[] keyValuePair = pair.split("=");
+			String[] keyValuePair = pair.split("=", 2);
 			if(key.equals(keyValuePair[0])) {
-				return keyValuePair[1].replaceAll("\\+", " ");
+				return keyValuePair.length < 2 ? "" : keyValuePair[1].replaceAll("\\+", " ");
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * Makes the deadline of one search, from the budget in milliseconds the request asked
+	 * for or else the server's default. A request can ask for less time than the default
+	 * but never more, or any client could turn the limit off
+	 *
+	 * @param millis the budget parameter of the request, may be null
+	 * @return returns the deadline, or null if the search has no budget
+	 */
+	private Deadline deadline(String millis) {
+		if(millis != null) {
+			try {
+				long requested = Long.parseLong(millis.strip());
+				if(requested > 0) {
+					Duration asked = Duration.ofMillis(requested);
+					return new Deadline(budget == null || asked.compareTo(budget) < 0 ? asked : budget);
+				}
+			} catch(NumberFormatException e) {
+				// fall back on the default budget
+			}
+		}
+		return budget == null ? null : new Deadline(budget);
+	}
+
+	/**
+	 * Searches under a deadline if there is one
+	 *
+	 * @param query the query
+	 * @param deadline the deadline, or null for none
+	 * @return returns the results
+	 */
+	private List<Result> search(String query, Deadline deadline) {
+		return deadline == null ? queries.search(query) : queries.search(query, deadline);
+	}
+
 	/**
 	 * Formatting html method for the Servlet
 	 *
@@ -89,6 +161,146 @@ public class ServerHandler {
 		return html.toString();
 	}
 
+	/**
+	 * Formats results for a coordinator to read, one result per line as count, score, and
+	 * location separated by tabs. Scores are written in full so nothing is lost on the way
+	 *
+	 * @param results results gotten from QueryBuilder
+	 * @return returns the text
+	 * @see CoordinatorQueryBuilder
+	 */
+	public static String formatShard(List<Result> results) {
+		StringBuilder text = new StringBuilder();
+		for(Result result : results) {
+			text.append(result.getCount())
+			.append('\t')
+			.append(Double.toString(result.getScore()))
+			.append('\t')
+			.append(result.getLocation())
+			.append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Answers a coordinator with this server's results for a query, so this server
+	 * can be one shard of an index split across processes
+	 */
+	public class ShardServlet extends HttpServlet {
+		/**
+		 * eclipse generated serialID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/** Creates a new instance of this class. */
+		public ShardServlet() {}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response)
+				throws ServletException, IOException {
+			String query = request.getParameter("q");
+			Deadline deadline = deadline(request.getParameter("budget"));
+			List<Result> result = query == null ? List.of() : search(query, deadline);
+
+			if(deadline != null && deadline.reached()) {
+				response.setHeader(PARTIAL_HEADER, "true");
+			}
+			response.setContentType("text/plain;charset=utf-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().print(formatShard(result));
+		}
+	}
+
+	/**
+	 * Answers with the plan of a query instead of its results, for finding out why it is
+	 * slow, see {@link QueryPlan}
+	 */
+	public class ExplainServlet extends HttpServlet {
+		/**
+		 * eclipse generated serialID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/** Creates a new instance of this class. */
+		public ExplainServlet() {}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response)
+				throws ServletException, IOException {
+			String query = request.getParameter("q");
+			QueryPlan plan = query == null ? null : queries.explain(query);
+
+			response.setContentType("text/plain;charset=utf-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().print(plan == null ? "No plan for this query" : plan.toString());
+		}
+	}
+
+	/**
+	 * Suggests completions of the last word of a prefix as JSON, the completion with the words
+	 * before it mapped to the number of documents the completed word is in, most first. It
+	 * only looks up a table built ahead of time, see {@link Autocomplete}, so it is cheap
+	 * enough to ask on every keystroke
+	 */
+	public class SuggestServlet extends HttpServlet {
+		/**
+		 * eclipse generated serialID
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/** Creates a new instance of this class. */
+		public SuggestServlet() {}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response)
+				throws ServletException, IOException {
+			String prefix = request.getParameter("prefix");
+			Map<String, Integer> suggestions = Map.of();
+
+			if(autocomplete != null && prefix != null) {
+				int count = autocomplete.max();
+				try {
+					String wanted = request.getParameter("n");
+					count = wanted == null ? count : Math.min(count, Integer.parseInt(wanted.strip()));
+				} catch(NumberFormatException e) {
+					// fall back on as many as are kept
+				}
+				suggestions = suggest(prefix, count);
+			}
+
+			response.setContentType("application/json;charset=utf-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().print(JsonWriter.writeObject(suggestions));
+		}
+
+		/**
+		 * @param prefix what has been typed so far
+		 * @param count the number of completions wanted
+		 * @return returns the completions of the last word with the words before it
+		 */
+		private Map<String, Integer> suggest(String prefix, int count) {
+			String[] words = FileStemmer.split(FileStemmer.clean(prefix));
+			// a space after the last word means it is finished, so there is nothing to complete
+			if(words.length == 0 || Character.isWhitespace(prefix.charAt(prefix.length() - 1))) {
+				return Map.of();
+			}
+
+			String last = words[words.length - 1];
+			Map<String, Integer> completions = autocomplete.suggest(last, count);
+			if(completions.isEmpty()) {
+				// the index holds stems, which can be shorter than the word being typed
+				completions = autocomplete.suggest(FileStemmer.listStems(last).get(0), count);
+			}
+
+			String before = String.join(" ", List.of(words).subList(0, words.length - 1));
+			LinkedHashMap<String, Integer> suggestions = new LinkedHashMap<>();
+			for(var completion : completions.entrySet()) {
+				suggestions.put(before.isEmpty() ? completion.getKey() : before + " " + completion.getKey(), completion.getValue());
+			}
+			return suggestions;
+		}
+	}
+
 	/**
 	 * Outputs and responds to HTML form.
 	 * @CITE got help from same peer for the query string and some of the html formatting
@@ -100,6 +312,18 @@ public class ServerHandler {
 		private static final long serialVersionUID = 1L;
 		/** The title to use for this webpage. */
 		private static final String TITLE = "Search";
+		/** Fills in the suggestions while typing, only on servers that answer /suggest */
+		private static final String SUGGEST = """
+				<script>
+				  const box = document.querySelector("input[name=q]");
+				  const list = document.getElementById("suggestions");
+				  box.addEventListener("input", async () => {
+				    const response = await fetch("/suggest?prefix=" + encodeURIComponent(box.value));
+				    const suggestions = await response.json();
+				    list.replaceChildren(...Object.keys(suggestions).map(text => new Option(text)));
+				  });
+				</script>
+				""";
 
 		/** Creates a new instance of this class. */
 		public SearchEngineServlet() {}
@@ -109,11 +333,18 @@ public class ServerHandler {
 				throws ServletException, IOException {
 
 			String query = null;
-			List<Result> result = null;
+			List<Result> result = List.of();
+			String note = "";
 
 			if(request.getQueryString() != null) {
 				query = getQueryValue(request.getQueryString(), "q");
-				result = queries.search(query);
+			}
+			if(query != null) {
+				Deadline deadline = deadline(request.getParameter("budget"));
+				result = search(query, deadline);
+				if(deadline != null && deadline.reached()) {
+					note = "<p>The search ran out of time, these are the best results found so far.</p>";
+				}
 			}
 
 			String html = """
@@ -130,20 +361,22 @@ public class ServerHandler {
 
 					<form method="get" action="/">
 					  <p>
-					    <input type="text" name="q" size="50"></input>
+					    <input type="text" name="q" size="50" list="suggestions" autocomplete="off"></input>
+					    <datalist id="suggestions"></datalist>
 					  </p>
 
 					  <p>
 					    <button>Search</button>
 					  </p>
 					</form>
+					%3$s
 					<pre>%2$s</pre>
-					</body>
+					%4$s</body>
 					</html>
 					""";
 
 			PrintWriter out = response.getWriter();
-			out.printf(html, TITLE, formatResult(result));
+			out.printf(html, TITLE, formatResult(result), note, autocomplete == null ? "" : SUGGEST);
 
 			response.setContentType("text/html");
 			response.setStatus(HttpServletResponse.SC_OK);
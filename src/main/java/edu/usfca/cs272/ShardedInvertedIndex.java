@@ -0,0 +1,379 @@
+package edu.usfca.cs272;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A thread-safe inverted index split into shards by location. Every location lives
+ * in exactly one shard, picked by its hash, so each shard has its own lock and
+ * adding files to different shards doesn't wait on one lock.
+ *
+ * Searches run on every shard at once and the sorted results of each shard are
+ * merged, so a single query uses as many cores as there are shards. Results and
+ * output are the same as an unsharded index, except BM25 which uses the word
+ * frequencies and average length of each shard instead of the whole index.
+ */
+public class ShardedInvertedIndex extends ThreadSafeInvertedIndex {
+	/** The shards, a location is always in shards[shard(location)] */
+	private final ThreadSafeInvertedIndex[] shards;
+
+	/**
+	 * Constructor for ShardedInvertedIndex
+	 *
+	 * @param shards the number of shards, at least 1
+	 */
+	public ShardedInvertedIndex(int shards) {
+		this(shards, false);
+	}
+
+	/**
+	 * Constructor for ShardedInvertedIndex, choosing the lock each shard uses
+	 *
+	 * @param shards the number of shards, at least 1
+	 * @param optimistic true to give each shard an {@link OptimisticReadWriteLock}
+	 */
+	public ShardedInvertedIndex(int shards, boolean optimistic) {
+		super();
+		this.shards = new ThreadSafeInvertedIndex[Math.max(1, shards)];
+		for (int i = 0; i < this.shards.length; i++) {
+			this.shards[i] = new ThreadSafeInvertedIndex(optimistic);
+			this.shards[i].setPrefixCache(prefixCache().fresh());
+		}
+	}
+
+	/**
+	 * @return returns the number of shards
+	 */
+	public int numShards() {
+		return shards.length;
+	}
+
+	/**
+	 * @param location the location
+	 * @return returns the shard number of the location
+	 */
+	private int shard(String location) {
+		return Math.floorMod(location.hashCode(), shards.length);
+	}
+
+	/**
+	 * Runs something on every shard at the same time, under the caller's {@link Deadline}
+	 *
+	 * @param <T> the type returned by each shard
+	 * @param function what to run on each shard
+	 * @return returns what each shard returned, in shard order
+	 */
+	private <T> List<T> scatter(Function<ThreadSafeInvertedIndex, T> function) {
+		Deadline deadline = Deadline.current();
+		return Arrays.stream(shards).parallel().map(shard -> Deadline.run(deadline, () -> function.apply(shard))).toList();
+	}
+
+	/**
+	 * Merges sorted results from each shard into one sorted list
+	 *
+	 * @param parts the sorted results of each shard
+	 * @param limit the number of results to keep, all of them if 0 or less
+	 * @return returns the merged results
+	 */
+	private static ArrayList<Result> gather(List<ArrayList<Result>> parts, int limit) {
+		ArrayList<Result> merged = new ArrayList<>();
+		int[] next = new int[parts.size()];
+
+		while (limit <= 0 || merged.size() < limit) {
+			int best = -1;
+			for (int i = 0; i < next.length; i++) {
+				if (next[i] < parts.get(i).size() && (best < 0
+						|| parts.get(i).get(next[i]).compareTo(parts.get(best).get(next[best])) < 0)) {
+					best = i;
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+			merged.add(parts.get(best).get(next[best]++));
+		}
+		return merged;
+	}
+
+	/**
+	 * Copies every shard into one plain index, used for output
+	 *
+	 * @return returns the merged copy
+	 */
+	private InvertedIndex merged() {
+		InvertedIndex merged = new InvertedIndex();
+		for (ThreadSafeInvertedIndex shard : shards) {
+			merged.addAll(shard.copy(location -> true));
+		}
+		return merged;
+	}
+
+	@Override
+	public Map<String, Integer> viewCounts() {
+		TreeMap<String, Integer> counts = new TreeMap<>();
+		for (ThreadSafeInvertedIndex shard : shards) {
+			counts.putAll(shard.viewCounts());
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+
+	@Override
+	public long version() {
+		long version = 0;
+		for (ThreadSafeInvertedIndex shard : shards) {
+			version += shard.version();
+		}
+		return version;
+	}
+
+	@Override
+	public Integer wordCount(String location) {
+		return shards[shard(location)].wordCount(location);
+	}
+
+	@Override
+	public int numLocations() {
+		int total = 0;
+		for (ThreadSafeInvertedIndex shard : shards) {
+			total += shard.numLocations();
+		}
+		return total;
+	}
+
+	@Override
+	public Integer size(String word, String location) {
+		return shards[shard(location)].size(word, location);
+	}
+
+	@Override
+	public Integer size(String word) {
+		int total = 0;
+		for (ThreadSafeInvertedIndex shard : shards) {
+			total += shard.size(word);
+		}
+		return total;
+	}
+
+	@Override
+	public Integer size() {
+		return get().size();
+	}
+
+	@Override
+	public Set<Integer> get(String word, String location) {
+		return shards[shard(location)].get(word, location);
+	}
+
+	@Override
+	public Set<String> get(String word) {
+		TreeSet<String> locations = new TreeSet<>();
+		for (ThreadSafeInvertedIndex shard : shards) {
+			locations.addAll(shard.get(word));
+		}
+		return Collections.unmodifiableSet(locations);
+	}
+
+	@Override
+	public NavigableSet<String> get() {
+		TreeSet<String> words = new TreeSet<>();
+		for (ThreadSafeInvertedIndex shard : shards) {
+			words.addAll(shard.get());
+		}
+		return Collections.unmodifiableNavigableSet(words);
+	}
+
+	@Override
+	public NavigableMap<String, Integer> documentFrequencies() {
+		TreeMap<String, Integer> frequencies = new TreeMap<>();
+		for (ThreadSafeInvertedIndex shard : shards) {
+			shard.documentFrequencies().forEach((word, documents) -> frequencies.merge(word, documents, Integer::sum));
+		}
+		return frequencies;
+	}
+
+	@Override
+	public void add(String word, String location, int wordNumber) {
+		shards[shard(location)].add(word, location, wordNumber);
+	}
+
+	@Override
+	public void addAll(List<String> words, String location) {
+		shards[shard(location)].addAll(words, location);
+	}
+
+	@Override
+	protected void merge(InvertedIndex bufferIndex) {
+		Set<String> locations = bufferIndex.viewCounts().keySet();
+		if (locations.size() == 1) {
+			// the usual case, one file or page per buffer
+			shards[shard(locations.iterator().next())].addAll(bufferIndex);
+			return;
+		}
+		for (int i = 0; i < shards.length; i++) {
+			int shard = i;
+			InvertedIndex part = bufferIndex.copy(location -> shard(location) == shard);
+			if (part.numLocations() > 0) {
+				shards[i].addAll(part);
+			}
+		}
+	}
+
+	@Override
+	public InvertedIndex copy(Predicate<String> keep) {
+		InvertedIndex copy = new InvertedIndex();
+		for (ThreadSafeInvertedIndex shard : shards) {
+			copy.addAll(shard.copy(keep));
+		}
+		return copy;
+	}
+
+	@Override
+	public boolean contains(String word, String location, int position) {
+		return shards[shard(location)].contains(word, location, position);
+	}
+
+	@Override
+	public boolean contains(String word, String location) {
+		return shards[shard(location)].contains(word, location);
+	}
+
+	@Override
+	public boolean contains(String word) {
+		for (ThreadSafeInvertedIndex shard : shards) {
+			if (shard.contains(word)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		merged().write(out);
+	}
+
+	@Override
+	public String toString() {
+		return merged().toString();
+	}
+
+	@Override
+	public void asJson(Path path) throws IOException {
+		merged().asJson(path);
+	}
+
+	@Override
+	public ArrayList<Result> partialSearch(Set<String> stemmedWords) {
+		return gather(scatter(shard -> shard.partialSearch(stemmedWords)), 0);
+	}
+
+	@Override
+	public ArrayList<Result> exactSearch(Set<String> stemmedWords) {
+		return gather(scatter(shard -> shard.exactSearch(stemmedWords)), 0);
+	}
+
+	@Override
+	public ArrayList<Result> partialSearch(Set<String> stemmedWords, int limit) {
+		return gather(scatter(shard -> shard.partialSearch(stemmedWords, limit)), limit);
+	}
+
+	@Override
+	public ArrayList<Result> exactSearch(Set<String> stemmedWords, int limit) {
+		return gather(scatter(shard -> shard.exactSearch(stemmedWords, limit)), limit);
+	}
+
+	@Override
+	public ArrayList<Result> phraseSearch(List<PhraseQuery> phrases, int limit) {
+		return gather(scatter(shard -> shard.phraseSearch(phrases, limit)), limit);
+	}
+
+	@Override
+	public ArrayList<Result> booleanSearch(BooleanQuery query, boolean partial, int limit) {
+		return gather(scatter(shard -> shard.booleanSearch(query, partial, limit)), limit);
+	}
+
+	@Override
+	public ArrayList<Result> bm25Search(Set<String> stemmedWords, boolean partial, int limit) {
+		return gather(scatter(shard -> shard.bm25Search(stemmedWords, partial, limit)), limit);
+	}
+
+	@Override
+	public ArrayList<Result> fuzzySearch(Set<String> stemmedWords, int distance, boolean partial, boolean bm25, int limit) {
+		return gather(scatter(shard -> shard.fuzzySearch(stemmedWords, distance, partial, bm25, limit)), limit);
+	}
+
+	@Override
+	public List<String> fuzzyWords(String word, int distance, boolean partial) {
+		TreeSet<String> words = new TreeSet<>();
+		for (ThreadSafeInvertedIndex shard : shards) {
+			words.addAll(shard.fuzzyWords(word, distance, partial));
+		}
+		return new ArrayList<>(words);
+	}
+
+	/**
+	 * Sets the prefix cache, every shard gets an empty copy of it so the counts are shared
+	 */
+	@Override
+	public void setPrefixCache(PrefixCache cache) {
+		super.setPrefixCache(cache);
+		for (ThreadSafeInvertedIndex shard : shards) {
+			shard.setPrefixCache(cache.fresh());
+		}
+	}
+
+	/**
+	 * Sets where recent counts are kept, shared by every shard since they are kept per shard
+	 */
+	@Override
+	public void setRefinements(Refinements refinements) {
+		super.setRefinements(refinements);
+		for (ThreadSafeInvertedIndex shard : shards) {
+			shard.setRefinements(refinements);
+		}
+	}
+
+	@Override
+	public QueryPlan plan(Set<String> stemmedWords, boolean partial, boolean bm25, int limit) {
+		return QueryPlan.sharded(scatter(shard -> shard.plan(stemmedWords, partial, bm25, limit)));
+	}
+
+	@Override
+	public QueryPlan plan(List<PhraseQuery> phrases, int limit) {
+		return QueryPlan.sharded(scatter(shard -> shard.plan(phrases, limit)));
+	}
+
+	@Override
+	public QueryPlan plan(BooleanQuery query, boolean partial, int limit) {
+		return QueryPlan.sharded(scatter(shard -> shard.plan(query, partial, limit)));
+	}
+
+	@Override
+	public QueryPlan fuzzyPlan(Set<String> stemmedWords, int distance, boolean partial, boolean bm25, int limit) {
+		return QueryPlan.sharded(scatter(shard -> shard.fuzzyPlan(stemmedWords, distance, partial, bm25, limit)));
+	}
+
+	@Override
+	public List<ArrayList<Result>> batchSearch(List<? extends Set<String>> queries, boolean partial, boolean bm25, int limit) {
+		List<List<ArrayList<Result>>> parts = scatter(shard -> shard.batchSearch(queries, partial, bm25, limit));
+		ArrayList<ArrayList<Result>> merged = new ArrayList<>(queries.size());
+		for (int i = 0; i < queries.size(); i++) {
+			int query = i;
+			merged.add(gather(parts.stream().map(part -> part.get(query)).toList(), limit));
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,466 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Builds an index that doesn't have to fit in memory, single-pass in-memory indexing
+ * style. Files are indexed into an in-memory buffer until it reaches the memory budget,
+ * then the buffer is written to disk as a sorted run and emptied. Once every file is
+ * indexed the runs are merged word by word into one file in the binary form of
+ * {@link InvertedIndex#write(java.io.DataOutput)}, reading and writing each run once in order.
+ */
+public class SpimiIndexer implements Closeable {
+	/**
+	 * Rough heap cost of one word position in the buffer, a tree entry and a boxed Integer
+	 */
+	public static final long BYTES_PER_POSITION = 56;
+
+	/** The directory the runs are written to */
+	private final Path directory;
+
+	/** Buffer size in bytes that triggers writing a run */
+	private final long budget;
+
+	/** The buffer being filled */
+	private InvertedIndex buffer;
+
+	/** Estimated size of the buffer in bytes */
+	private long used;
+
+	/** The runs written so far, in order */
+	private final ArrayList<Path> runs;
+
+	/**
+	 * Constructor for SpimiIndexer
+	 *
+	 * @param directory the directory to write runs to, created if needed
+	 * @param budget buffer size in bytes that triggers writing a run
+	 * @throws IOException if unable to create the directory
+	 */
+	public SpimiIndexer(Path directory, long budget) throws IOException {
+		Files.createDirectories(directory);
+		this.directory = directory;
+		this.budget = budget;
+		this.buffer = new InvertedIndex();
+		this.used = 0;
+		this.runs = new ArrayList<>();
+	}
+
+	/**
+	 * Indexes every text file in a directory with the work queue, then merges the runs
+	 * into the output file
+	 *
+	 * @param input the directory or file to index
+	 * @param output the file to write the merged index to
+	 * @param queue the queue to index files with
+	 * @param budget buffer size in bytes that triggers writing a run
+	 * @throws IOException if unable to read a file or write a run
+	 */
+	public static void indexDirectory(Path input, Path output, WorkQueue queue, long budget) throws IOException {
+		Path runs = Files.createTempDirectory("spimi");
+		try (SpimiIndexer indexer = new SpimiIndexer(runs, budget)) {
+			indexer.index(input, queue);
+			indexer.merge(output);
+		}
+		finally {
+			Files.deleteIfExists(runs);
+		}
+	}
+
+	/**
+	 * Builds the index like {@link #indexDirectory(Path, Path, WorkQueue, long)}, but merges
+	 * the runs straight into an index instead of a file. The budget only limits memory while
+	 * building, once merged the whole index is in memory anyway
+	 *
+	 * @param input the directory or file to index
+	 * @param index the index to merge into
+	 * @param queue the queue to index files with
+	 * @param budget buffer size in bytes that triggers writing a run
+	 * @throws IOException if unable to read a file or write a run
+	 */
+	public static void indexDirectory(Path input, InvertedIndex index, WorkQueue queue, long budget) throws IOException {
+		Path runs = Files.createTempDirectory("spimi");
+		try (SpimiIndexer indexer = new SpimiIndexer(runs, budget)) {
+			indexer.index(input, queue);
+			indexer.merge(index);
+		}
+		finally {
+			Files.deleteIfExists(runs);
+		}
+	}
+
+	/**
+	 * Indexes every text file in a directory into the buffer with the work queue
+	 *
+	 * @param input the directory or file to index
+	 * @param queue the queue to index files with
+	 * @throws IOException if unable to read the directory
+	 */
+	private void index(Path input, WorkQueue queue) throws IOException {
+		for (Path path : DirectoryTraverser.getPaths(input)) {
+			queue.execute(() -> {
+				try {
+					InvertedIndex local = new InvertedIndex();
+					TextFileIndexer.indexFile(path, local);
+					add(local);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		queue.finish();
+	}
+
+	/**
+	 * Adds an indexed file to the buffer, writing the buffer out as a run if it is full.
+	 * The full buffer is swapped for an empty one under the lock and written after, so
+	 * other files keep being added while the run is on its way to disk
+	 *
+	 * @param local the index of one file
+	 * @throws IOException if unable to write the run
+	 */
+	public void add(InvertedIndex local) throws IOException {
+		InvertedIndex full = null;
+		Path run = null;
+		synchronized (this) {
+			buffer.addAll(local);
+			for (int count : local.viewCounts().values()) {
+				used += count * BYTES_PER_POSITION;
+			}
+			if (used >= budget) {
+				full = buffer;
+				run = nextRun();
+			}
+		}
+		if (full != null) {
+			write(full, run);
+		}
+	}
+
+	/**
+	 * Names the run the buffer will be written to and starts a new buffer
+	 *
+	 * @return returns the path of the run
+	 */
+	private Path nextRun() {
+		Path run = directory.resolve("run" + runs.size());
+		runs.add(run);
+		buffer = new InvertedIndex();
+		used = 0;
+		return run;
+	}
+
+	/**
+	 * Writes a full buffer out as a sorted run
+	 *
+	 * @param full the buffer
+	 * @param run the path of the run
+	 * @throws IOException if unable to write the run
+	 */
+	private static void write(InvertedIndex full, Path run) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+			full.write(out);
+		}
+	}
+
+	/**
+	 * Writes out what is left in the buffer, called once every file is added
+	 *
+	 * @throws IOException if unable to write the run
+	 */
+	private void flush() throws IOException {
+		if (buffer.numLocations() > 0) {
+			InvertedIndex full = buffer;
+			write(full, nextRun());
+		}
+	}
+
+	/**
+	 * Opens every run, reading past the counts at their start
+	 *
+	 * @param readers where to add the open runs
+	 * @param counts where to merge the counts of the runs
+	 * @throws IOException if unable to read a run
+	 */
+	private void open(List<Run> readers, TreeMap<String, Integer> counts) throws IOException {
+		for (Path run : runs) {
+			readers.add(new Run(run));
+		}
+		for (Run reader : readers) {
+			reader.readCounts(counts);
+		}
+	}
+
+	/**
+	 * Writes out what is left in the buffer and merges every run into one file
+	 *
+	 * @param output the file to write the merged index to
+	 * @throws IOException if unable to read a run or write the output
+	 */
+	public synchronized void merge(Path output) throws IOException {
+		flush();
+		ArrayList<Run> readers = new ArrayList<>();
+		try {
+			TreeMap<String, Integer> counts = new TreeMap<>();
+			open(readers, counts);
+			merge(readers, counts, output);
+		}
+		finally {
+			for (Run reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes out what is left in the buffer and merges every run into an index, a batch of
+	 * words at a time so no more than about the budget is held besides the index itself.
+	 * Counts come from the last positions the same way {@link InvertedIndex#add(String, String, int)} keeps them
+	 *
+	 * @param index the index to merge into
+	 * @throws IOException if unable to read a run
+	 */
+	public synchronized void merge(InvertedIndex index) throws IOException {
+		flush();
+		ArrayList<Run> readers = new ArrayList<>();
+		try {
+			open(readers, new TreeMap<>());
+			PriorityQueue<Run> heap = heap(readers);
+			TreeMap<String, int[]> postings = new TreeMap<>();
+			InvertedIndex batch = new InvertedIndex();
+			long batched = 0;
+			String word;
+			while ((word = next(heap, postings)) != null) {
+				for (var entry : postings.entrySet()) {
+					for (int position : entry.getValue()) {
+						batch.add(word, entry.getKey(), position);
+					}
+					batched += entry.getValue().length * BYTES_PER_POSITION;
+				}
+				if (batched >= budget) {
+					index.addAll(batch);
+					batch = new InvertedIndex();
+					batched = 0;
+				}
+			}
+			index.addAll(batch);
+		}
+		finally {
+			for (Run reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * @param readers the open runs, past their counts
+	 * @return returns a heap of the runs that have words left, ordered by their current word
+	 * @throws IOException if unable to read a run
+	 */
+	private static PriorityQueue<Run> heap(List<Run> readers) throws IOException {
+		PriorityQueue<Run> heap = new PriorityQueue<>(Comparator.comparing((Run run) -> run.word));
+		for (Run reader : readers) {
+			if (reader.next()) {
+				heap.add(reader);
+			}
+		}
+		return heap;
+	}
+
+	/**
+	 * Reads the postings of the smallest word left from every run that has it
+	 *
+	 * @param heap the runs that have words left
+	 * @param postings cleared, then filled with the positions of each location
+	 * @return returns the word, or null if every run is done
+	 * @throws IOException if unable to read a run
+	 */
+	private static String next(PriorityQueue<Run> heap, TreeMap<String, int[]> postings) throws IOException {
+		if (heap.isEmpty()) {
+			return null;
+		}
+		String word = heap.peek().word;
+		postings.clear();
+		while (!heap.isEmpty() && heap.peek().word.equals(word)) {
+			Run reader = heap.poll();
+			reader.readPostings(postings);
+			if (reader.next()) {
+				heap.add(reader);
+			}
+		}
+		return word;
+	}
+
+	/**
+	 * Merges the runs into one file. Counts are small enough to merge in memory, words
+	 * are merged with a heap of runs ordered by their current word
+	 *
+	 * @param readers the open runs, past their counts
+	 * @param counts the merged counts of the runs
+	 * @param output the file to write the merged index to
+	 * @throws IOException if unable to read a run or write the output
+	 */
+	private static void merge(List<Run> readers, TreeMap<String, Integer> counts, Path output) throws IOException {
+		int words = 0;
+		int wordsOffset;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+			out.writeInt(counts.size());
+			for (var entry : counts.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+
+			// the number of words isn't known until the end, filled in after
+			wordsOffset = out.size();
+			out.writeInt(0);
+
+			PriorityQueue<Run> heap = heap(readers);
+			TreeMap<String, int[]> postings = new TreeMap<>();
+			String word;
+			while ((word = next(heap, postings)) != null) {
+				out.writeUTF(word);
+				out.writeInt(postings.size());
+				for (var entry : postings.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue().length);
+					for (int position : entry.getValue()) {
+						out.writeInt(position);
+					}
+				}
+				words++;
+			}
+		}
+
+		try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, words), wordsOffset);
+		}
+	}
+
+	/**
+	 * Deletes the runs
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		runs.clear();
+	}
+
+	/**
+	 * Reads one run a word at a time
+	 */
+	private static class Run implements Closeable {
+		/** The run file */
+		private final DataInputStream in;
+
+		/** Words left to read */
+		private int remaining;
+
+		/** The current word, whose postings are next in the file */
+		private String word;
+
+		/**
+		 * @param path the run file
+		 * @throws IOException if unable to open the run
+		 */
+		private Run(Path path) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+		}
+
+		/**
+		 * Reads the counts at the start of the run, keeping the larger count like
+		 * {@link InvertedIndex#addAll(InvertedIndex)}
+		 *
+		 * @param counts where to merge the counts
+		 * @throws IOException if unable to read
+		 */
+		private void readCounts(TreeMap<String, Integer> counts) throws IOException {
+			int locations = in.readInt();
+			for (int i = 0; i < locations; i++) {
+				counts.merge(in.readUTF(), in.readInt(), Math::max);
+			}
+			remaining = in.readInt();
+		}
+
+		/**
+		 * Moves to the next word
+		 *
+		 * @return returns false if there are no words left
+		 * @throws IOException if unable to read
+		 */
+		private boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			word = in.readUTF();
+			return true;
+		}
+
+		/**
+		 * Reads the postings of the current word
+		 *
+		 * @param postings where to add the positions of each location
+		 * @throws IOException if unable to read
+		 */
+		private void readPostings(TreeMap<String, int[]> postings) throws IOException {
+			int locations = in.readInt();
+			for (int i = 0; i < locations; i++) {
+				String location = in.readUTF();
+				int[] positions = new int[in.readInt()];
+				for (int j = 0; j < positions.length; j++) {
+					positions[j] = in.readInt();
+				}
+				postings.merge(location, positions, SpimiIndexer::union);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Merges two sorted position arrays, only needed if a location ended up in more than one run
+	 *
+	 * @param first sorted positions
+	 * @param second sorted positions
+	 * @return returns the sorted positions in either
+	 */
+	private static int[] union(int[] first, int[] second) {
+		int[] merged = new int[first.length + second.length];
+		int i = 0, j = 0, k = 0;
+		while (i < first.length || j < second.length) {
+			int next;
+			if (j == second.length || (i < first.length && first[i] <= second[j])) {
+				next = first[i++];
+			} else {
+				next = second[j++];
+			}
+			if (k == 0 || merged[k - 1] != next) {
+				merged[k++] = next;
+			}
+		}
+		return Arrays.copyOf(merged, k);
+	}
+}
@@ -0,0 +1,121 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dictionary of stems shared by the local indexes of one index build, so every thread
+ * uses the same String for the same stem. Without it each local index holds its own copy
+ * of every stem it sees, and merging keeps whichever copy got there first, leaving the
+ * rest of the copies for the garbage collector.
+ *
+ * An index only keeps the first instance of each word it is given, see
+ * {@link InvertedIndex#InvertedIndex(TermDictionary)}, so a stem is only looked up here
+ * the first time a local index sees it and only those copies are counted as saved. The
+ * dictionary is cleared once the build is done, its counts are kept for {@link #toString()}.
+ */
+public class TermDictionary {
+	/** Rough heap cost of one entry of the map, its node and table slot, not counting the stem */
+	private static final long BYTES_PER_ENTRY = 48;
+
+	/** Canonical instance of every stem seen so far in this build */
+	private final ConcurrentHashMap<String, String> terms;
+
+	/** Number of stems looked up */
+	private final LongAdder lookups;
+
+	/** Number of stems added to the dictionary */
+	private final LongAdder added;
+
+	/** Number of copies dropped in favor of an existing instance */
+	private final LongAdder dropped;
+
+	/** Estimated bytes of the copies that were dropped */
+	private final LongAdder saved;
+
+	/**
+	 * Constructor for TermDictionary
+	 */
+	public TermDictionary() {
+		this.terms = new ConcurrentHashMap<>();
+		this.lookups = new LongAdder();
+		this.added = new LongAdder();
+		this.dropped = new LongAdder();
+		this.saved = new LongAdder();
+	}
+
+	/**
+	 * Returns the canonical instance of a stem, adding it if it is new
+	 *
+	 * @param stem the stem, the first instance of it a local index is keeping
+	 * @return returns the shared instance equal to the stem
+	 */
+	public String intern(String stem) {
+		lookups.increment();
+		String existing = terms.get(stem);
+		if (existing == null) {
+			existing = terms.putIfAbsent(stem, stem);
+			if (existing == null) {
+				added.increment();
+				return stem;
+			}
+		}
+		if (existing != stem) {
+			dropped.increment();
+			saved.add(size(stem));
+		}
+		return existing;
+	}
+
+	/**
+	 * Drops every stem once the build is done, the indexes keep the instances they use
+	 */
+	public void clear() {
+		terms.clear();
+	}
+
+	/**
+	 * @return returns the number of stems in the dictionary right now
+	 */
+	public int size() {
+		return terms.size();
+	}
+
+	/**
+	 * @return returns the number of stems looked up
+	 */
+	public long lookups() {
+		return lookups.sum();
+	}
+
+	/**
+	 * @return returns the estimated bytes of the copies that were dropped
+	 */
+	public long saved() {
+		return saved.sum();
+	}
+
+	/**
+	 * @return returns the estimated bytes of every entry the dictionary has held
+	 */
+	public long cost() {
+		return added.sum() * BYTES_PER_ENTRY;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Terms: %d unique of %d looked up, %d duplicate strings dropped, about %.1f MB of copies not kept for %.1f MB of dictionary",
+				added.sum(), lookups(), dropped.sum(), saved() / (1024.0 * 1024.0), cost() / (1024.0 * 1024.0));
+	}
+
+	/**
+	 * Rough heap size of a String, its object header and fields plus its byte array,
+	 * assuming one byte per character and 8 byte alignment
+	 *
+	 * @param text the string
+	 * @return returns the estimated size in bytes
+	 */
+	private static long size(String text) {
+		return 24 + ((16 + text.length() + 7) / 8) * 8;
+	}
+}
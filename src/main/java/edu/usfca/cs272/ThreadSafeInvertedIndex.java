@@ -1,26 +1,117 @@
 package edu.usfca.cs272;
 
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
 
 /**
  * A ThreadSafe Inverted Index DataSet class for multi-threading
+ *
+ * Searches don't use the lock, they run on the latest published version of the index,
+ * see {@link #current()}, so long searches and writers never wait on each other. Every
+ * write publishes a new version before it lets go of the write lock, and versions share
+ * everything but what the write changed, see {@link InvertedIndex#snapshot(InvertedIndex, SortedMap)}.
+ *
+ * The small lookups like {@link #size(String)} and {@link #contains(String)} read the
+ * published version too, since it never changes they need no lock and can't see a write
+ * half done. Only reading the whole index, like {@link #toString()}, takes the read lock.
  */
 public class ThreadSafeInvertedIndex extends InvertedIndex {
 	/** The lock used to protect concurrent access to the underlying set. */
-	private final MultiReaderLock lock;
+	private final ReadWriteLockInterface lock;
+
+	/** Log that additions of whole indexes go through first, null if not logging */
+	private volatile WriteAheadLog log;
+
+	/**
+	 * The latest published version of the index, searched without any locks.
+	 * Never changed once published, a new version replaces it instead
+	 */
+	private volatile InvertedIndex snapshot;
+
+	/** Locations each word was added to by the write being published, guarded by the write lock */
+	private final TreeMap<String, TreeSet<String>> changed;
 
 	/**
 	 * Initializes a thread-safe indexed set.
 	 */
 	public ThreadSafeInvertedIndex() {
+		this(new MultiReaderLock("index"));
+	}
+
+	/**
+	 * Initializes a thread-safe indexed set, choosing the lock
+	 *
+	 * @param optimistic true to use an {@link OptimisticReadWriteLock}, false for a {@link MultiReaderLock}
+	 */
+	public ThreadSafeInvertedIndex(boolean optimistic) {
+		this(optimistic ? new OptimisticReadWriteLock() : new MultiReaderLock("index"));
+	}
+
+	/**
+	 * Initializes a thread-safe indexed set protected by the given lock
+	 *
+	 * @param lock the lock to use
+	 */
+	public ThreadSafeInvertedIndex(ReadWriteLockInterface lock) {
 		super();
-		lock = new MultiReaderLock();
+		this.lock = lock;
+		log = null;
+		changed = new TreeMap<>();
+		snapshot = snapshot(null, changed);
+	}
+
+	/**
+	 * Returns the latest version of the index for searching. Searches keep using the version
+	 * they got even if more is added while they run, so they see a consistent index and
+	 * never touch the lock
+	 *
+	 * @return returns the version to search
+	 */
+	protected InvertedIndex current() {
+		return snapshot;
+	}
+
+	/**
+	 * Publishes a new version with everything added so far, copying only the positions the
+	 * write changed. Caller must hold the write lock
+	 */
+	private void publish() {
+		snapshot = snapshot(snapshot, changed);
+		changed.clear();
+	}
+
+	/**
+	 * Remembers that a word was added to a location, for the next {@link #publish()}.
+	 * Caller must hold the write lock
+	 *
+	 * @param word the word
+	 * @param location the location
+	 */
+	private void changed(String word, String location) {
+		changed.computeIfAbsent(word, w -> new TreeSet<>()).add(location);
+	}
+
+	/**
+	 * Starts logging every {@link #addAll(InvertedIndex)} so it can be recovered after a crash.
+	 * Recover from the log before calling this, so the replay isn't logged again
+	 *
+	 * @param log the log to use, or null to stop logging
+	 * @see WriteAheadLog#recover(InvertedIndex)
+	 */
+	public void setLog(WriteAheadLog log) {
+		this.log = log;
 	}
 
 	/**
@@ -34,101 +125,61 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 
 	@Override
 	public Map<String, Integer> viewCounts() {
-		lock.readLock().lock();
-		try {
-			return super.viewCounts();
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().viewCounts();
 	}
 
 	@Override
 	public Integer wordCount(String location) {
-		lock.readLock().lock();
-		try {
-			return super.wordCount(location);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().wordCount(location);
 	}
 
 	@Override
 	public int numLocations() {
-		lock.readLock().lock();
-		try {
-			return super.numLocations();
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().numLocations();
 	}
 
 	@Override
 	public Integer size(String word, String location) {
-		lock.readLock().lock();
-		try {
-			return super.size(word, location);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().size(word, location);
 	}
 
 	@Override
 	public Integer size(String word) {
-		lock.readLock().lock();
-		try {
-			return super.size(word);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().size(word);
 	}
 
 	@Override
 	public Integer size() {
-		lock.readLock().lock();
-		try {
-			return super.size();
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().size();
 	}
 
 	@Override
 	public Set<Integer> get(String word, String location) {
-		lock.readLock().lock();
-		try {
-			return super.get(word, location);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().get(word, location);
 	}
 
 	@Override
 	public Set<String> get(String word) {
-		lock.readLock().lock();
-		try {
-			return super.get(word);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().get(word);
 	}
 
 	@Override
 	public NavigableSet<String> get() {
-		lock.readLock().lock();
-		try {
-			return super.get();
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().get();
+	}
+
+	/**
+	 * Gets the version searches see, so nothing is cached under a version newer than
+	 * the one that was searched
+	 */
+	@Override
+	public long version() {
+		return current().version();
+	}
+
+	@Override
+	public NavigableMap<String, Integer> documentFrequencies() {
+		return current().documentFrequencies();
 	}
 
 	@Override
@@ -136,6 +187,8 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		lock.writeLock().lock();
 		try {
 			super.add(word, location, wordNumber);
+			changed(word, location);
+			publish();
 		}
 		finally {
 			lock.writeLock().unlock();
@@ -147,17 +200,48 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		lock.writeLock().lock();
 		try {
 			super.addAll(words, location);
+			for (String word : words) {
+				changed(word, location);
+			}
+			publish();
 		}
 		finally {
 			lock.writeLock().unlock();
 		}
 	}
 
+	/**
+	 * Adds the buffer, writing it to the log first if there is one
+	 */
 	@Override
 	public void addAll(InvertedIndex bufferIndex) {
+		WriteAheadLog log = this.log;
+		if (log == null) {
+			merge(bufferIndex);
+			return;
+		}
+		try {
+			log.add(bufferIndex, this::merge);
+			log.checkpointIfFull(this);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Adds the buffer without logging it
+	 *
+	 * @param bufferIndex the index we are transferring elements from
+	 */
+	protected void merge(InvertedIndex bufferIndex) {
 		lock.writeLock().lock();
 		try {
 			super.addAll(bufferIndex);
+			for (String word : bufferIndex.get()) {
+				changed.computeIfAbsent(word, w -> new TreeSet<>()).addAll(bufferIndex.get(word));
+			}
+			publish();
 		}
 		finally {
 			lock.writeLock().unlock();
@@ -165,36 +249,50 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 	}
 
 	@Override
-	public boolean contains(String word, String location, int position) {
+	public void write(DataOutput out) throws IOException {
 		lock.readLock().lock();
 		try {
-			return super.contains(word, location, position);
+			super.write(out);
 		}
 		finally {
 			lock.readLock().unlock();
 		}
 	}
 
+	/**
+	 * Gathers the range first so it goes through {@link #addAll(InvertedIndex)} and its log
+	 */
 	@Override
-	public boolean contains(String word, String location) {
+	public void addAll(InvertedIndex bufferIndex, String from, String to) {
+		InvertedIndex range = new InvertedIndex();
+		range.addAll(bufferIndex, from, to);
+		addAll(range);
+	}
+
+	@Override
+	public InvertedIndex copy(Predicate<String> keep) {
 		lock.readLock().lock();
 		try {
-			return super.contains(word, location);
+			return super.copy(keep);
 		}
 		finally {
 			lock.readLock().unlock();
 		}
 	}
 
+	@Override
+	public boolean contains(String word, String location, int position) {
+		return current().contains(word, location, position);
+	}
+
+	@Override
+	public boolean contains(String word, String location) {
+		return current().contains(word, location);
+	}
+
 	@Override
 	public boolean contains(String word) {
-		lock.readLock().lock();
-		try {
-			return super.contains(word);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().contains(word);
 	}
 
 	@Override
@@ -222,23 +320,97 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 
 	@Override
 	public ArrayList<Result> partialSearch(Set<String> stemmedWords) {
-		lock.readLock().lock();
-		try {
-			return super.partialSearch(stemmedWords);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().partialSearch(stemmedWords);
 	}
 
 	@Override
 	public ArrayList<Result> exactSearch(Set<String> stemmedWords) {
-		lock.readLock().lock();
-		try {
-			return super.exactSearch(stemmedWords);
-		}
-		finally {
-			lock.readLock().unlock();
-		}
+		return current().exactSearch(stemmedWords);
+	}
+
+	@Override
+	public ArrayList<Result> partialSearch(Set<String> stemmedWords, int limit) {
+		return current().partialSearch(stemmedWords, limit);
+	}
+
+	@Override
+	public ArrayList<Result> exactSearch(Set<String> stemmedWords, int limit) {
+		return current().exactSearch(stemmedWords, limit);
+	}
+
+	@Override
+	public ArrayList<Result> phraseSearch(List<PhraseQuery> phrases, int limit) {
+		return current().phraseSearch(phrases, limit);
+	}
+
+	@Override
+	public ArrayList<Result> booleanSearch(BooleanQuery query, boolean partial, int limit) {
+		return current().booleanSearch(query, partial, limit);
+	}
+
+	@Override
+	public ArrayList<Result> bm25Search(Set<String> stemmedWords, boolean partial, int limit) {
+		return current().bm25Search(stemmedWords, partial, limit);
+	}
+
+	@Override
+	public ArrayList<Result> fuzzySearch(Set<String> stemmedWords, int distance, boolean partial, boolean bm25, int limit) {
+		return current().fuzzySearch(stemmedWords, distance, partial, bm25, limit);
+	}
+
+	@Override
+	public List<String> fuzzyWords(String word, int distance, boolean partial) {
+		return current().fuzzyWords(word, distance, partial);
+	}
+
+	/**
+	 * Sets the prefix cache, the version being searched gets an empty copy of it
+	 */
+	@Override
+	public void setPrefixCache(PrefixCache cache) {
+		super.setPrefixCache(cache);
+		current().setPrefixCache(cache.fresh());
+	}
+
+	/**
+	 * Gets the prefix cache of the version being searched, its counts cover every version
+	 */
+	@Override
+	public PrefixCache prefixCache() {
+		return current().prefixCache();
+	}
+
+	/**
+	 * Sets where recent counts are kept, shared by every version since they are kept per version
+	 */
+	@Override
+	public void setRefinements(Refinements refinements) {
+		super.setRefinements(refinements);
+		current().setRefinements(refinements);
+	}
+
+	@Override
+	public QueryPlan plan(Set<String> stemmedWords, boolean partial, boolean bm25, int limit) {
+		return current().plan(stemmedWords, partial, bm25, limit);
+	}
+
+	@Override
+	public QueryPlan plan(List<PhraseQuery> phrases, int limit) {
+		return current().plan(phrases, limit);
+	}
+
+	@Override
+	public QueryPlan plan(BooleanQuery query, boolean partial, int limit) {
+		return current().plan(query, partial, limit);
+	}
+
+	@Override
+	public QueryPlan fuzzyPlan(Set<String> stemmedWords, int distance, boolean partial, boolean bm25, int limit) {
+		return current().fuzzyPlan(stemmedWords, distance, partial, bm25, limit);
+	}
+
+	@Override
+	public List<ArrayList<Result>> batchSearch(List<? extends Set<String>> queries, boolean partial, boolean bm25, int limit) {
+		return current().batchSearch(queries, partial, bm25, limit);
 	}
 }
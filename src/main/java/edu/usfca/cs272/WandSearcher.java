@@ -0,0 +1,250 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import edu.usfca.cs272.InvertedIndex.Result;
+
+/**
+ * Top-k evaluator using Block-Max WAND over {@link PostingList} cursors.
+ *
+ * Every posting list knows the largest score it can add to a document, and so
+ * does every block of 64 postings. Once k results are held, any document whose
+ * best possible score is below the worst held result is skipped without being
+ * scored, so common words stop dragging in most of the index. Skipping is only
+ * done when the bound is strictly lower, so the results are the same as sorting
+ * every match and keeping the first k.
+ *
+ * This class is not thread-safe, make one per search.
+ */
+public class WandSearcher {
+	/**
+	 * Bounds are sums of doubles, so they are padded by this much before skipping.
+	 * Keeps rounding from ever skipping a document that ties the threshold.
+	 */
+	private static final double SLACK = 1e-9;
+
+	/** Document id used for a cursor that ran off the end of its list */
+	private static final int DONE = Integer.MAX_VALUE;
+
+	/** The index the posting lists came from, used to turn ids into results */
+	private final InvertedIndex index;
+
+	/** One posting list per cursor, words may repeat for overlapping partial searches */
+	private final PostingList[] lists;
+
+	/** Current posting index of each cursor */
+	private final int[] positions;
+
+	/** Current block of each cursor, only moves forward */
+	private final int[] blocks;
+
+	/** Cursor numbers sorted by their current document */
+	private final int[] order;
+
+	/** Best results so far, the worst one at the head */
+	private final PriorityQueue<Result> top;
+
+	/** Number of results to keep */
+	private final int limit;
+
+	/**
+	 * Constructor for WandSearcher
+	 *
+	 * @param index the index the lists belong to, caller must hold its read lock if it has one
+	 * @param lists the posting lists of every word being searched
+	 * @param limit the number of results to return, must be positive
+	 */
+	public WandSearcher(InvertedIndex index, List<PostingList> lists, int limit) {
+		this.index = index;
+		this.lists = lists.toArray(new PostingList[0]);
+		this.positions = new int[this.lists.length];
+		this.blocks = new int[this.lists.length];
+		this.order = new int[this.lists.length];
+		this.top = new PriorityQueue<>(limit, Comparator.reverseOrder());
+		this.limit = limit;
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+	}
+
+	/**
+	 * Runs the search
+	 *
+	 * @return returns up to limit results, sorted
+	 */
+	public ArrayList<Result> search() {
+		Deadline deadline = Deadline.current();
+		int steps = 0;
+		while (true) {
+			if (deadline != null && ++steps % Deadline.CHECK_EVERY == 0 && deadline.expired()) {
+				// out of time, the best results so far are in top
+				break;
+			}
+			sortCursors();
+
+			int pivot = findPivot();
+			if (pivot < 0) {
+				break;
+			}
+			int pivotDoc = document(order[pivot]);
+
+			// every cursor sitting on the pivot document can add to its score
+			while (pivot + 1 < order.length && document(order[pivot + 1]) == pivotDoc) {
+				pivot++;
+			}
+
+			if (isPruned(blockBound(pivot, pivotDoc))) {
+				skipBlocks(pivot, pivotDoc);
+			} else if (document(order[0]) == pivotDoc) {
+				score(pivot, pivotDoc);
+			} else {
+				// nothing before the pivot document can reach the threshold
+				for (int i = 0; i < pivot && document(order[i]) < pivotDoc; i++) {
+					moveTo(order[i], pivotDoc);
+				}
+			}
+		}
+
+		ArrayList<Result> results = new ArrayList<>(top);
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Finds the first cursor, in document order, where the summed list bounds could
+	 * reach the threshold.
+	 *
+	 * @return returns the position in order of that cursor, or -1 if there is none
+	 */
+	private int findPivot() {
+		double bound = 0;
+		for (int i = 0; i < order.length; i++) {
+			int cursor = order[i];
+			if (document(cursor) == DONE) {
+				return -1;
+			}
+			bound += lists[cursor].maxScore();
+			if (!isPruned(bound)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Sums the block bounds of every cursor up to the pivot, for the blocks that
+	 * would hold the pivot document.
+	 *
+	 * @param pivot the position in order of the last cursor to include
+	 * @param pivotDoc the pivot document
+	 * @return returns the summed block bounds
+	 */
+	private double blockBound(int pivot, int pivotDoc) {
+		double bound = 0;
+		for (int i = 0; i <= pivot; i++) {
+			int cursor = order[i];
+			blocks[cursor] = lists[cursor].shallowAdvance(blocks[cursor], pivotDoc);
+			if (blocks[cursor] >= 0) {
+				bound += lists[cursor].blockMax(blocks[cursor]);
+			} else {
+				blocks[cursor] = lists[cursor].block(lists[cursor].size() - 1);
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * Moves every cursor up to the pivot past the blocks that were just ruled out.
+	 * Stops at the first block end, or the next cursor's document, whichever is first.
+	 *
+	 * @param pivot the position in order of the last cursor to move
+	 * @param pivotDoc the pivot document
+	 */
+	private void skipBlocks(int pivot, int pivotDoc) {
+		long next = pivot + 1 < order.length ? document(order[pivot + 1]) : DONE;
+		for (int i = 0; i <= pivot; i++) {
+			int cursor = order[i];
+			int last = lists[cursor].blockLast(blocks[cursor]);
+			if (last >= pivotDoc) {
+				next = Math.min(next, last + 1L);
+			}
+		}
+		int target = (int) Math.min(next, DONE);
+		for (int i = 0; i <= pivot; i++) {
+			moveTo(order[i], target);
+		}
+	}
+
+	/**
+	 * Fully scores the pivot document and moves its cursors forward
+	 *
+	 * @param pivot the position in order of the last cursor on the document
+	 * @param pivotDoc the document to score
+	 */
+	private void score(int pivot, int pivotDoc) {
+		int count = 0;
+		for (int i = 0; i <= pivot; i++) {
+			int cursor = order[i];
+			count += lists[cursor].count(positions[cursor]);
+			positions[cursor]++;
+		}
+
+		Result result = index.result(pivotDoc, count);
+		if (top.size() < limit) {
+			top.add(result);
+		} else if (result.compareTo(top.peek()) < 0) {
+			top.poll();
+			top.add(result);
+		}
+	}
+
+	/**
+	 * A bound can be skipped only once the top results are full and the bound is
+	 * strictly lower than the worst of them.
+	 *
+	 * @param bound the highest score a document could get
+	 * @return returns true if no document with that bound can make the results
+	 */
+	private boolean isPruned(double bound) {
+		return top.size() == limit && bound + bound * SLACK < top.peek().getScore();
+	}
+
+	/**
+	 * Insertion sorts the cursors by document, queries are short so this is cheap
+	 */
+	private void sortCursors() {
+		for (int i = 1; i < order.length; i++) {
+			int cursor = order[i];
+			int doc = document(cursor);
+			int j = i - 1;
+			while (j >= 0 && document(order[j]) > doc) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = cursor;
+		}
+	}
+
+	/**
+	 * Moves the cursor to the first document at or after target
+	 *
+	 * @param cursor the cursor to move
+	 * @param target the document to move to
+	 */
+	private void moveTo(int cursor, int target) {
+		positions[cursor] = lists[cursor].advance(positions[cursor], target);
+	}
+
+	/**
+	 * @param cursor the cursor
+	 * @return returns the cursor's current document, or DONE
+	 */
+	private int document(int cursor) {
+		return positions[cursor] < lists[cursor].size() ? lists[cursor].document(positions[cursor]) : DONE;
+	}
+}
@@ -27,6 +27,9 @@ public class WebCrawler {
 	/** The total number of URL's to crawl */
 	private final int total;
 
+	/** Time spent waiting for and holding the visited set */
+	private static final ContentionStats visitedStats = ContentionStats.get("WebCrawler.visited");
+
 	/**
 	 * Constructor class for the Web Crawler
 	 *
@@ -125,14 +128,21 @@ public class WebCrawler {
 		public void processLinks(String html) {
 			List<URI> links = LinkFinder.listUris(seed, html);
 			var iterator = links.iterator();
+			long start = ContentionStats.start();
 			synchronized(visited) {
-				while(iterator.hasNext() && visited.size() < total) {
-					URI link = iterator.next();
-					if(!visited.contains(link)) {
-						visited.add(link);
-						queue.execute(new Task(link));
+				long acquired = visitedStats.acquired(start);
+				try {
+					while(iterator.hasNext() && visited.size() < total) {
+						URI link = iterator.next();
+						if(!visited.contains(link)) {
+							visited.add(link);
+							queue.execute(new Task(link));
+						}
 					}
 				}
+				finally {
+					visitedStats.released(acquired);
+				}
 			}
 		}
 	}
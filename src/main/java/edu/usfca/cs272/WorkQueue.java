@@ -25,6 +25,12 @@ public class WorkQueue {
 	/** used to show how many tasks are left */
 	private int pending;
 
+	/** Time spent waiting for and holding the task list monitor while adding tasks */
+	private static final ContentionStats monitorStats = ContentionStats.get("WorkQueue.monitor");
+
+	/** Time tasks wait in the queue before a worker takes them, the hold time is how long they run */
+	private static final ContentionStats queueStats = ContentionStats.get("WorkQueue.queue");
+
 	/**
 	 * Starts a work queue with the default number of threads.
 	 *
@@ -86,9 +92,12 @@ public class WorkQueue {
 			throw new IllegalStateException("Work queue is shutdown.");
 		}
 		incrementPending();
+		long start = ContentionStats.start();
 		synchronized (tasks) {
-			tasks.addLast(task);
+			long acquired = monitorStats.acquired(start);
+			tasks.addLast(start == 0 ? task : new Timed(task, start));
 			tasks.notifyAll();
+			monitorStats.released(acquired);
 		}
 	}
 
@@ -193,6 +202,12 @@ public class WorkQueue {
 						task = tasks.removeFirst();
 					}
 
+					long started = 0;
+					if (task instanceof Timed timed) {
+						started = queueStats.acquired(timed.queued, false);
+						task = timed.task;
+					}
+
 					try {
 						task.run();
 					}
@@ -202,6 +217,7 @@ public class WorkQueue {
 						log.catching(Level.ERROR, e);
 					}
 					finally { // @CITE Par reminded me that finally exists
+						queueStats.released(started);
 						decrementPending();
 					}
 				}
@@ -214,4 +230,29 @@ public class WorkQueue {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * A task added while contention stats were on, remembering when it was queued
+	 */
+	private static class Timed implements Runnable {
+		/** The task */
+		private final Runnable task;
+
+		/** When the task was added to the queue */
+		private final long queued;
+
+		/**
+		 * @param task the task
+		 * @param queued when the task was added to the queue
+		 */
+		private Timed(Runnable task, long queued) {
+			this.task = task;
+			this.queued = queued;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+	}
+}
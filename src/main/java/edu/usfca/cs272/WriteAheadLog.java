@@ -0,0 +1,312 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only log of everything added to an index, so a crashed process can get back
+ * to where it was. On startup the last snapshot is loaded and the log is replayed on
+ * top of it, and every so often the whole index is written to a new snapshot and the
+ * log starts over, so recovery only has to replay what came after the last snapshot.
+ *
+ * Each addition is written as one record with its length and checksum. A record cut
+ * short by a crash fails its checksum and is dropped along with anything after it.
+ *
+ * Adding is group committed. Threads that add while another thread is syncing the log
+ * to disk wait for it, then the next thread writes and syncs all of their records at
+ * once, so many additions share one fsync.
+ */
+public class WriteAheadLog implements Closeable {
+	/** Name of the snapshot file in the log directory */
+	public static final String SNAPSHOT = "index.snapshot";
+
+	/** Name of the log file in the log directory */
+	public static final String LOG = "index.wal";
+
+	/** Default log size that triggers a new snapshot, in bytes */
+	public static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+	/** The directory holding the snapshot and log */
+	private final Path directory;
+
+	/** The open log file */
+	private final FileChannel channel;
+
+	/** Log size that triggers a new snapshot */
+	private final long limit;
+
+	/** Held for reading while adding, and for writing while taking a snapshot */
+	private final MultiReaderLock lock;
+
+	/** Records waiting to be written, in order */
+	private final ArrayList<byte[]> pending;
+
+	/** Number of records ever appended, guarded by pending */
+	private long appended;
+
+	/** Number of records written and synced to disk, guarded by the flush lock */
+	private long durable;
+
+	/** Lock held by the thread writing and syncing a batch of records */
+	private final Object flush;
+
+	/** True while a snapshot started by {@link #checkpointIfFull(InvertedIndex)} is running */
+	private final AtomicBoolean checkpointing;
+
+	/**
+	 * Opens or creates the log in a directory
+	 *
+	 * @param directory the directory for the snapshot and log
+	 * @param limit log size in bytes that triggers a new snapshot
+	 * @throws IOException if unable to create or open the log
+	 */
+	public WriteAheadLog(Path directory, long limit) throws IOException {
+		Files.createDirectories(directory);
+		this.directory = directory;
+		this.channel = FileChannel.open(directory.resolve(LOG),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.limit = limit;
+		this.lock = new MultiReaderLock("wal");
+		this.pending = new ArrayList<>();
+		this.appended = 0;
+		this.durable = 0;
+		this.flush = new Object();
+		this.checkpointing = new AtomicBoolean();
+	}
+
+	/**
+	 * Opens or creates the log in a directory with the default snapshot limit
+	 *
+	 * @param directory the directory for the snapshot and log
+	 * @throws IOException if unable to create or open the log
+	 */
+	public WriteAheadLog(Path directory) throws IOException {
+		this(directory, DEFAULT_LIMIT);
+	}
+
+	/**
+	 * Loads the last snapshot and replays the log into the index. Call before anything else
+	 * is added, and before the index starts logging so the replay isn't logged again
+	 *
+	 * @param index the index to recover into
+	 * @return returns the number of log records replayed
+	 * @throws IOException if unable to read the snapshot or log
+	 */
+	public int recover(InvertedIndex index) throws IOException {
+		Path snapshot = directory.resolve(SNAPSHOT);
+		if (Files.exists(snapshot)) {
+			try (CheckedInputStream checked = new CheckedInputStream(
+					new BufferedInputStream(Files.newInputStream(snapshot)), new CRC32());
+					DataInputStream in = new DataInputStream(checked)) {
+				InvertedIndex loaded = InvertedIndex.read(in);
+				long expected = checked.getChecksum().getValue();
+				if (in.readLong() != expected) {
+					throw new IOException("Snapshot is corrupt: " + snapshot);
+				}
+				index.addAll(loaded);
+			}
+		}
+
+		int replayed = 0;
+		long good = 0;
+		channel.position(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+		try {
+			while (true) {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < 0 || length > channel.size()) {
+					break;
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				if (checksum(record) != checksum) {
+					break;
+				}
+				index.addAll(InvertedIndex.read(new DataInputStream(new ByteArrayInputStream(record))));
+				good += Integer.BYTES * 2 + length;
+				replayed++;
+			}
+		}
+		catch (EOFException e) {
+			// end of the log, or a record cut short by a crash
+		}
+
+		// anything after the last good record was never fully written
+		channel.truncate(good);
+		channel.position(good);
+		channel.force(true);
+		return replayed;
+	}
+
+	/**
+	 * Logs an addition and then applies it. Returns once the record is synced to disk
+	 * and applied, so a caller that returns knows the addition will survive a crash
+	 *
+	 * @param buffer the index being added
+	 * @param apply adds the buffer to the real index
+	 * @throws IOException if unable to write the log
+	 */
+	public void add(InvertedIndex buffer, Consumer<InvertedIndex> apply) throws IOException {
+		byte[] record = record(buffer);
+		lock.readLock().lock();
+		try {
+			append(record);
+			apply.accept(buffer);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a record to the pending batch and waits until it is synced
+	 *
+	 * @param record the framed record
+	 * @throws IOException if unable to write the log
+	 */
+	private void append(byte[] record) throws IOException {
+		long sequence;
+		synchronized (pending) {
+			pending.add(record);
+			sequence = ++appended;
+		}
+
+		synchronized (flush) {
+			if (durable >= sequence) {
+				// written by whoever held the lock before us
+				return;
+			}
+
+			ArrayList<byte[]> batch;
+			long last;
+			synchronized (pending) {
+				batch = new ArrayList<>(pending);
+				pending.clear();
+				last = appended;
+			}
+
+			for (byte[] bytes : batch) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			channel.force(false);
+			durable = last;
+		}
+	}
+
+	/**
+	 * Writes the whole index to a new snapshot and empties the log. Additions wait until
+	 * this is done, so none of them are in the log without being in the snapshot
+	 *
+	 * @param index the index to snapshot
+	 * @throws IOException if unable to write the snapshot
+	 */
+	public void checkpoint(InvertedIndex index) throws IOException {
+		lock.writeLock().lock();
+		try {
+			Path temp = directory.resolve(SNAPSHOT + ".tmp");
+			try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				CheckedOutputStream checked = new CheckedOutputStream(
+						new BufferedOutputStream(Channels.newOutputStream(file)), new CRC32());
+				DataOutputStream out = new DataOutputStream(checked);
+				index.write(out);
+				out.writeLong(checked.getChecksum().getValue());
+				out.flush();
+				file.force(true);
+			}
+			Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			synchronized (flush) {
+				channel.truncate(0);
+				channel.position(0);
+				channel.force(true);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes a new snapshot if the log has grown past its limit and no other thread is already
+	 * taking one
+	 *
+	 * @param index the index to snapshot
+	 * @throws IOException if unable to write the snapshot
+	 */
+	public void checkpointIfFull(InvertedIndex index) throws IOException {
+		if (channel.size() >= limit && checkpointing.compareAndSet(false, true)) {
+			try {
+				checkpoint(index);
+			}
+			finally {
+				checkpointing.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @return returns the size of the log in bytes
+	 * @throws IOException if unable to read the size
+	 */
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Serializes an index into a record, its length and checksum followed by the data
+	 *
+	 * @param buffer the index to serialize
+	 * @return returns the framed record
+	 * @throws IOException if unable to serialize
+	 */
+	private static byte[] record(InvertedIndex buffer) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		buffer.write(new DataOutputStream(bytes));
+		byte[] data = bytes.toByteArray();
+		return ByteBuffer.allocate(Integer.BYTES * 2 + data.length)
+				.putInt(data.length)
+				.putInt(checksum(data))
+				.put(data)
+				.array();
+	}
+
+	/**
+	 * @param data the data
+	 * @return returns the CRC32 of the data
+	 */
+	private static int checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+}